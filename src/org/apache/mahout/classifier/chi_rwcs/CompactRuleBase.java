@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs;
+
+import java.util.Arrays;
+
+import org.apache.mahout.classifier.chi_rwcs.mapreduce.BuildModel;
+
+/**
+ * Inference-time layout of a {@link RuleBase}, stored as structure of arrays: the label of every rule for
+ * each variable, the weights and the classes. The fuzzy sets are shared by all the rules, so the membership
+ * degrees of an example are computed once per variable and label, and the compatibility of the rules is
+ * computed by blocks, one variable at a time. The predictions are the same as {@link RuleBase#FRM}.
+ */
+final class CompactRuleBase {
+
+  /** rules whose compatibility is computed at once */
+  private static final int BLOCK_SIZE = 256;
+
+  private final int nRules;
+  private final int nVariables;
+  private final int inferenceType;
+  private final int compatibilityType;
+
+  /** fuzzy sets used by the rules, [variable][label] */
+  private final Fuzzy[][] fuzzySets;
+
+  /** labels of the rules, [variable][rule] */
+  private final int[][] labels;
+
+  private final double[] weights;
+  private final int[] classes;
+  private final int nClasses;
+
+  private CompactRuleBase(RuleBase ruleBase, Fuzzy[][] fuzzySets, int[][] labels) {
+    this.nRules = ruleBase.size();
+    this.nVariables = labels.length;
+    this.inferenceType = ruleBase.inferenceType;
+    this.compatibilityType = ruleBase.get(0).compatibilityType;
+    this.fuzzySets = fuzzySets;
+    this.labels = labels;
+    weights = new double[nRules];
+    classes = new int[nRules];
+    int maxClass = 0;
+    for (int r = 0; r < nRules; r++) {
+      Rule rule = ruleBase.get(r);
+      weights[r] = rule.weight;
+      classes[r] = rule.clas;
+      maxClass = Math.max(maxClass, rule.clas);
+    }
+    nClasses = maxClass + 1;
+  }
+
+  /**
+   * Builds the layout of the rule base
+   *
+   * @return null if the rule base is empty, or if its rules do not share the same fuzzy sets and t-norm
+   */
+  static CompactRuleBase build(RuleBase ruleBase) {
+    int nRules = ruleBase.size();
+    if (nRules == 0) {
+      return null;
+    }
+
+    Rule first = ruleBase.get(0);
+    int nVariables = first.antecedent.length;
+    Fuzzy[][] fuzzySets = new Fuzzy[nVariables][];
+    int[][] labels = new int[nVariables][nRules];
+    for (int r = 0; r < nRules; r++) {
+      Rule rule = ruleBase.get(r);
+      if (rule.antecedent.length != nVariables || rule.compatibilityType != first.compatibilityType) {
+        return null;
+      }
+      for (int i = 0; i < nVariables; i++) {
+        Fuzzy fuzzy = rule.antecedent[i];
+        if (fuzzy.label < 0) {
+          return null;
+        }
+        if (fuzzySets[i] == null || fuzzySets[i].length <= fuzzy.label) {
+          Fuzzy[] grown = new Fuzzy[fuzzy.label + 1];
+          if (fuzzySets[i] != null) {
+            System.arraycopy(fuzzySets[i], 0, grown, 0, fuzzySets[i].length);
+          }
+          fuzzySets[i] = grown;
+        }
+        Fuzzy known = fuzzySets[i][fuzzy.label];
+        if (known == null) {
+          fuzzySets[i][fuzzy.label] = fuzzy;
+        } else if (!sameSet(known, fuzzy)) {
+          return null;
+        }
+        labels[i][r] = fuzzy.label;
+      }
+    }
+    return new CompactRuleBase(ruleBase, fuzzySets, labels);
+  }
+
+  private static boolean sameSet(Fuzzy a, Fuzzy b) {
+    return Double.compare(a.x0, b.x0) == 0 && Double.compare(a.x1, b.x1) == 0
+        && Double.compare(a.x3, b.x3) == 0 && Double.compare(a.y, b.y) == 0;
+  }
+
+  int size() {
+    return nRules;
+  }
+
+  /**
+   * @return the same layout in single precision
+   */
+  FloatRuleBase toFloatPrecision() {
+    return new FloatRuleBase(inferenceType, compatibilityType, fuzzySets, labels, weights, classes, nClasses);
+  }
+
+  /**
+   * Fuzzy Reasoning Method, same result as {@link RuleBase#FRM}
+   *
+   * @return the predicted class, -1 if no rule fires
+   */
+  int FRM(double[] example) {
+    double[][] memberships = fuzzify(example);
+    double[] degrees = new double[Math.min(BLOCK_SIZE, nRules)];
+
+    if (inferenceType == BuildModel.WINNING_RULE) {
+      int clas = -1;
+      double max = 0.0;
+      for (int start = 0; start < nRules; start += BLOCK_SIZE) {
+        int end = Math.min(nRules, start + BLOCK_SIZE);
+        compatibility(memberships, start, end, degrees);
+        for (int r = start; r < end; r++) {
+          double produc = degrees[r - start] * weights[r];
+          if (produc > max) {
+            max = produc;
+            clas = classes[r];
+          }
+        }
+      }
+      return clas;
+    }
+
+    double[] classDegrees = new double[nClasses];
+    for (int start = 0; start < nRules; start += BLOCK_SIZE) {
+      int end = Math.min(nRules, start + BLOCK_SIZE);
+      compatibility(memberships, start, end, degrees);
+      for (int r = start; r < end; r++) {
+        classDegrees[classes[r]] += degrees[r - start] * weights[r];
+      }
+    }
+    int clas = -1;
+    double max = 0.0;
+    for (int l = 0; l < nClasses; l++) {
+      if (classDegrees[l] > max) {
+        max = classDegrees[l];
+        clas = l;
+      }
+    }
+    return clas;
+  }
+
+  /**
+   * Fuzzy Reasoning Method over a batch of examples. Every block of rules is applied to all the examples
+   * before moving to the next one, each example sees the rules in the same order as {@link #FRM(double[])}
+   *
+   * @return the predicted class of each example, -1 if no rule fires
+   */
+  int[] FRM(double[][] examples) {
+    int n = examples.length;
+    double[][][] memberships = new double[n][][];
+    for (int e = 0; e < n; e++) {
+      memberships[e] = fuzzify(examples[e]);
+    }
+    double[] degrees = new double[Math.min(BLOCK_SIZE, nRules)];
+    int[] clas = new int[n];
+    Arrays.fill(clas, -1);
+
+    if (inferenceType == BuildModel.WINNING_RULE) {
+      double[] max = new double[n];
+      for (int start = 0; start < nRules; start += BLOCK_SIZE) {
+        int end = Math.min(nRules, start + BLOCK_SIZE);
+        for (int e = 0; e < n; e++) {
+          compatibility(memberships[e], start, end, degrees);
+          for (int r = start; r < end; r++) {
+            double produc = degrees[r - start] * weights[r];
+            if (produc > max[e]) {
+              max[e] = produc;
+              clas[e] = classes[r];
+            }
+          }
+        }
+      }
+      return clas;
+    }
+
+    double[][] classDegrees = new double[n][nClasses];
+    for (int start = 0; start < nRules; start += BLOCK_SIZE) {
+      int end = Math.min(nRules, start + BLOCK_SIZE);
+      for (int e = 0; e < n; e++) {
+        compatibility(memberships[e], start, end, degrees);
+        for (int r = start; r < end; r++) {
+          classDegrees[e][classes[r]] += degrees[r - start] * weights[r];
+        }
+      }
+    }
+    for (int e = 0; e < n; e++) {
+      double max = 0.0;
+      for (int l = 0; l < nClasses; l++) {
+        if (classDegrees[e][l] > max) {
+          max = classDegrees[e][l];
+          clas[e] = l;
+        }
+      }
+    }
+    return clas;
+  }
+
+  /**
+   * Membership degree of the example to every fuzzy set used by the rules, [variable][label]
+   */
+  private double[][] fuzzify(double[] example) {
+    double[][] memberships = new double[nVariables][];
+    for (int i = 0; i < nVariables; i++) {
+      Fuzzy[] sets = fuzzySets[i];
+      memberships[i] = new double[sets.length];
+      for (int j = 0; j < sets.length; j++) {
+        if (sets[j] != null) {
+          memberships[i][j] = sets[j].Fuzzify(example[i]);
+        }
+      }
+    }
+    return memberships;
+  }
+
+  /**
+   * Compatibility degrees of the rules [start, end), variables in the order of {@link Rule#compatibility}
+   */
+  private void compatibility(double[][] memberships, int start, int end, double[] degrees) {
+    int n = end - start;
+    for (int r = 0; r < n; r++) {
+      degrees[r] = 1.0;
+    }
+    if (compatibilityType == BuildModel.MINIMUM) {
+      for (int i = 0; i < nVariables; i++) {
+        double[] membership = memberships[i];
+        int[] label = labels[i];
+        for (int r = 0; r < n; r++) {
+          degrees[r] = Math.min(membership[label[start + r]], degrees[r]);
+        }
+      }
+    } else {
+      for (int i = 0; i < nVariables; i++) {
+        double[] membership = memberships[i];
+        int[] label = labels[i];
+        for (int r = 0; r < n; r++) {
+          degrees[r] = degrees[r] * membership[label[start + r]];
+        }
+      }
+    }
+  }
+}
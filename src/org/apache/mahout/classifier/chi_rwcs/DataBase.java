@@ -91,6 +91,21 @@ public class DataBase implements Writable{
         return n_labels;
     }
 
+    /**
+     * It checks if the fuzzy partitions cover the given ranges, that is, if every value in the ranges has a
+     * membership degree greater than 0 for at least one fuzzy label
+     * @param rangos double[][] Range of each variable (minimum and maximum values)
+     * @return boolean true if all the ranges are covered, false in other case
+     */
+    public boolean covers(double[][] rangos) {
+        for (int i = 0; i < n_variables; i++) {
+            if ((rangos[i][0] <= dataBase[i][0].x0) || (rangos[i][1] >= dataBase[i][n_labels - 1].x3)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * It computes the membership degree for a input value
      * @param i int the input variable id
@@ -117,19 +132,19 @@ public class DataBase implements Writable{
      * @return String the data base
      */
     public String printString() {
-        String cadena = new String(
+        StringBuilder cadena = new StringBuilder(
                 "@Using Triangular Membership Functions as antecedent fuzzy sets\n");
-        cadena += "@Number of Labels per variable: " + n_labels + "\n";
+        cadena.append("@Number of Labels per variable: ").append(n_labels).append("\n");
         for (int i = 0; i < n_variables; i++) {
             //cadena += "\nVariable " + (i + 1) + ":\n";
-            cadena += "\n" + names[i] + ":\n";
+            cadena.append("\n").append(names[i]).append(":\n");
             for (int j = 0; j < n_labels; j++) {
-                cadena += " L_" + (j + 1) + ": (" + dataBase[i][j].x0 +
-                        "," + dataBase[i][j].x1 + "," + dataBase[i][j].x3 +
-                        ")\n";
+                cadena.append(" L_").append(j + 1).append(": (").append(dataBase[i][j].x0)
+                        .append(",").append(dataBase[i][j].x1).append(",").append(dataBase[i][j].x3)
+                        .append(")\n");
             }
         }
-        return cadena;
+        return cadena.toString();
     }
 
    
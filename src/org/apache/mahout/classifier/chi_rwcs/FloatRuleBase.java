@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs;
+
+import java.util.Arrays;
+
+import org.apache.mahout.classifier.chi_rwcs.mapreduce.BuildModel;
+
+/**
+ * Single precision version of {@link CompactRuleBase}: the breakpoints of the fuzzy sets, the rule weights, the
+ * examples and the membership degrees are floats, which halves the size of the layout. The degrees of the rules
+ * and of the classes are accumulated in double precision: with the product t-norm the degree of a rule over a few
+ * hundred variables falls below the smallest float (1e-45) long before it is negligible, so a float product would
+ * underflow to 0, and the rules would lose their order or no rule would fire at all.<br>
+ * A float keeps 24 bits of mantissa, so every membership degree has a relative error below 2^-24 (6e-8) and the
+ * degree of a rule over n variables, weight included, a relative error below about (n + 2) * 2^-24; with the
+ * additive combination the error of a class degree also grows with the number of rules summed. The prediction
+ * differs from the double precision one only when the two best rules, or classes, are closer than this error.
+ */
+final class FloatRuleBase {
+
+  /** rules whose compatibility is computed at once */
+  private static final int BLOCK_SIZE = 256;
+
+  private final int nRules;
+  private final int nVariables;
+  private final int inferenceType;
+  private final int compatibilityType;
+
+  /** breakpoints of the fuzzy sets used by the rules, [variable][label], NaN if the set is not used */
+  private final float[][] x0;
+  private final float[][] x1;
+  private final float[][] x3;
+  private final float[][] y;
+
+  /** labels of the rules, [variable][rule] */
+  private final int[][] labels;
+
+  private final float[] weights;
+  private final int[] classes;
+  private final int nClasses;
+
+  FloatRuleBase(int inferenceType, int compatibilityType, Fuzzy[][] fuzzySets, int[][] labels, double[] weights,
+                int[] classes, int nClasses) {
+    this.nRules = weights.length;
+    this.nVariables = labels.length;
+    this.inferenceType = inferenceType;
+    this.compatibilityType = compatibilityType;
+    this.labels = labels;
+    this.classes = classes;
+    this.nClasses = nClasses;
+
+    x0 = new float[nVariables][];
+    x1 = new float[nVariables][];
+    x3 = new float[nVariables][];
+    y = new float[nVariables][];
+    for (int i = 0; i < nVariables; i++) {
+      Fuzzy[] sets = fuzzySets[i];
+      x0[i] = new float[sets.length];
+      x1[i] = new float[sets.length];
+      x3[i] = new float[sets.length];
+      y[i] = new float[sets.length];
+      for (int j = 0; j < sets.length; j++) {
+        if (sets[j] == null) {
+          x0[i][j] = Float.NaN;
+        } else {
+          x0[i][j] = (float) sets[j].x0;
+          x1[i][j] = (float) sets[j].x1;
+          x3[i][j] = (float) sets[j].x3;
+          y[i][j] = (float) sets[j].y;
+        }
+      }
+    }
+
+    this.weights = new float[nRules];
+    for (int r = 0; r < nRules; r++) {
+      this.weights[r] = (float) weights[r];
+    }
+  }
+
+  int size() {
+    return nRules;
+  }
+
+  /**
+   * Fuzzy Reasoning Method in single precision
+   *
+   * @return the predicted class, -1 if no rule fires
+   */
+  int FRM(double[] example) {
+    float[][] memberships = fuzzify(example);
+    double[] degrees = new double[Math.min(BLOCK_SIZE, nRules)];
+
+    if (inferenceType == BuildModel.WINNING_RULE) {
+      int clas = -1;
+      double max = 0.0;
+      for (int start = 0; start < nRules; start += BLOCK_SIZE) {
+        int end = Math.min(nRules, start + BLOCK_SIZE);
+        compatibility(memberships, start, end, degrees);
+        for (int r = start; r < end; r++) {
+          double produc = degrees[r - start] * weights[r];
+          if (produc > max) {
+            max = produc;
+            clas = classes[r];
+          }
+        }
+      }
+      return clas;
+    }
+
+    double[] classDegrees = new double[nClasses];
+    for (int start = 0; start < nRules; start += BLOCK_SIZE) {
+      int end = Math.min(nRules, start + BLOCK_SIZE);
+      compatibility(memberships, start, end, degrees);
+      for (int r = start; r < end; r++) {
+        classDegrees[classes[r]] += degrees[r - start] * weights[r];
+      }
+    }
+    return argmax(classDegrees);
+  }
+
+  /**
+   * Fuzzy Reasoning Method over a batch of examples, in single precision
+   *
+   * @return the predicted class of each example, -1 if no rule fires
+   */
+  int[] FRM(double[][] examples) {
+    int n = examples.length;
+    float[][][] memberships = new float[n][][];
+    for (int e = 0; e < n; e++) {
+      memberships[e] = fuzzify(examples[e]);
+    }
+    double[] degrees = new double[Math.min(BLOCK_SIZE, nRules)];
+    int[] clas = new int[n];
+    Arrays.fill(clas, -1);
+
+    if (inferenceType == BuildModel.WINNING_RULE) {
+      double[] max = new double[n];
+      for (int start = 0; start < nRules; start += BLOCK_SIZE) {
+        int end = Math.min(nRules, start + BLOCK_SIZE);
+        for (int e = 0; e < n; e++) {
+          compatibility(memberships[e], start, end, degrees);
+          for (int r = start; r < end; r++) {
+            double produc = degrees[r - start] * weights[r];
+            if (produc > max[e]) {
+              max[e] = produc;
+              clas[e] = classes[r];
+            }
+          }
+        }
+      }
+      return clas;
+    }
+
+    double[][] classDegrees = new double[n][nClasses];
+    for (int start = 0; start < nRules; start += BLOCK_SIZE) {
+      int end = Math.min(nRules, start + BLOCK_SIZE);
+      for (int e = 0; e < n; e++) {
+        compatibility(memberships[e], start, end, degrees);
+        for (int r = start; r < end; r++) {
+          classDegrees[e][classes[r]] += degrees[r - start] * weights[r];
+        }
+      }
+    }
+    for (int e = 0; e < n; e++) {
+      clas[e] = argmax(classDegrees[e]);
+    }
+    return clas;
+  }
+
+  private static int argmax(double[] classDegrees) {
+    int clas = -1;
+    double max = 0.0;
+    for (int l = 0; l < classDegrees.length; l++) {
+      if (classDegrees[l] > max) {
+        max = classDegrees[l];
+        clas = l;
+      }
+    }
+    return clas;
+  }
+
+  /**
+   * Membership degree of the example to every fuzzy set used by the rules, [variable][label], as
+   * {@link Fuzzy#Fuzzify} does
+   */
+  private float[][] fuzzify(double[] example) {
+    float[][] memberships = new float[nVariables][];
+    for (int i = 0; i < nVariables; i++) {
+      float x = (float) example[i];
+      int nSets = x0[i].length;
+      memberships[i] = new float[nSets];
+      for (int j = 0; j < nSets; j++) {
+        float a = x0[i][j];
+        float b = x1[i][j];
+        float c = x3[i][j];
+        if (Float.isNaN(a) || x <= a || x >= c) {
+          continue;
+        }
+        if (x < b) {
+          memberships[i][j] = (x - a) * (y[i][j] / (b - a));
+        } else if (x > b) {
+          memberships[i][j] = (c - x) * (y[i][j] / (c - b));
+        } else {
+          memberships[i][j] = y[i][j];
+        }
+      }
+    }
+    return memberships;
+  }
+
+  /**
+   * Compatibility degrees of the rules [start, end), variables in the order of {@link Rule#compatibility}, in
+   * double precision so that the product of many memberships does not underflow
+   */
+  private void compatibility(float[][] memberships, int start, int end, double[] degrees) {
+    int n = end - start;
+    for (int r = 0; r < n; r++) {
+      degrees[r] = 1.0;
+    }
+    if (compatibilityType == BuildModel.MINIMUM) {
+      for (int i = 0; i < nVariables; i++) {
+        float[] membership = memberships[i];
+        int[] label = labels[i];
+        for (int r = 0; r < n; r++) {
+          degrees[r] = Math.min(membership[label[start + r]], degrees[r]);
+        }
+      }
+    } else {
+      for (int i = 0; i < nVariables; i++) {
+        float[] membership = memberships[i];
+        int[] label = labels[i];
+        for (int r = 0; r < n; r++) {
+          degrees[r] = degrees[r] * membership[label[start + r]];
+        }
+      }
+    }
+  }
+}
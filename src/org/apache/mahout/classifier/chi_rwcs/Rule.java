@@ -56,6 +56,43 @@ public class Rule implements Writable{
 	      this.clas = clas;
 	  }
 
+	  /**
+	   * @return int the class of the rule
+	   */
+	  public int getClas() {
+	      return clas;
+	  }
+
+	  /**
+	   * @return double the rule weight
+	   */
+	  public double getWeight() {
+	      return weight;
+	  }
+
+	  /**
+	   * @return int the number of variables of the antecedent
+	   */
+	  public int size() {
+	      return antecedent.length;
+	  }
+
+	  /**
+	   * @param i int the variable
+	   * @return int the label of the fuzzy set of the variable in the antecedent
+	   */
+	  public int getLabel(int i) {
+	      return antecedent[i].label;
+	  }
+
+	  /**
+	   * @param i int the variable
+	   * @return String the name of the fuzzy set of the variable in the antecedent
+	   */
+	  public String getLabelName(int i) {
+	      return antecedent[i].name;
+	  }
+
 	  /**
 	   * It assigns the rule weight to the rule
 	   * @param train myDataset the training set
@@ -18,8 +18,10 @@ package org.apache.mahout.classifier.chi_rwcs;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -31,6 +33,9 @@ import org.apache.mahout.classifier.chi_rwcs.data.Data;
 import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
 import org.apache.mahout.classifier.chi_rwcs.data.Instance;
 import org.apache.mahout.classifier.chi_rwcs.mapreduce.*;
+import org.apache.mahout.common.Pair;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterable;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterator;
 
 import com.google.common.io.Closeables;
 
@@ -46,6 +51,13 @@ public class RuleBase implements Writable{
     double negative_class_cost;
     double positive_class_cost;    
     
+    // inference layout, built by compact()
+    private CompactRuleBase compactRuleBase;
+    private FloatRuleBase floatRuleBase;
+    
+    /** first bytes of a SequenceFile */
+    private static final byte[] SEQUENCE_FILE_MAGIC = {'S', 'E', 'Q'};
+    
     public RuleBase(){
       ruleBase = new ArrayList<Rule>();	
     }
@@ -117,6 +129,35 @@ public class RuleBase implements Writable{
   
     public void add(Rule r){
       ruleBase.add(r);	
+      compactRuleBase = null;
+      floatRuleBase = null;
+    }
+    
+    /**
+     * Builds the structure of arrays layout used by {@link #FRM} to classify the examples. It is dropped as
+     * soon as the rule base changes
+     * @return true if the rule base can use the layout
+     */
+    public boolean compact() {
+      return compact(false);
+    }
+    
+    /**
+     * Builds the structure of arrays layout used by {@link #FRM} to classify the examples, in double or single
+     * precision. In single precision the predictions may differ from the double precision ones when the best
+     * two rules, or classes, are within a relative error of about (n_variables + 2) * 2^-24, see
+     * {@link FloatRuleBase}
+     * @return true if the rule base can use the layout
+     */
+    public boolean compact(boolean floatPrecision) {
+      compactRuleBase = CompactRuleBase.build(this);
+      floatRuleBase = floatPrecision && compactRuleBase != null ? compactRuleBase.toFloatPrecision() : null;
+      if (floatRuleBase != null) {
+        // only the single precision layout is kept
+        compactRuleBase = null;
+        return true;
+      }
+      return compactRuleBase != null;
     }
   
     public Rule get(int i){
@@ -197,6 +238,12 @@ public class RuleBase implements Writable{
      * @return int the predicted class label (id)
      */
     public int FRM(double[] example) {
+        if (floatRuleBase != null && floatRuleBase.size() == ruleBase.size()) {
+            return floatRuleBase.FRM(example);
+        }
+        if (compactRuleBase != null && compactRuleBase.size() == ruleBase.size()) {
+            return compactRuleBase.FRM(example);
+        }
         if (this.inferenceType == BuildModel.WINNING_RULE) {
             return FRM_WR(example);
         } else {
@@ -204,6 +251,68 @@ public class RuleBase implements Writable{
         }
     }
 
+    /**
+     * Fuzzy Reasoning Method over a batch of examples
+     * @param examples double[][] the input examples
+     * @return int[] the predicted class label (id) of each example
+     */
+    public int[] FRM(double[][] examples) {
+        if (floatRuleBase != null && floatRuleBase.size() == ruleBase.size()) {
+            return floatRuleBase.FRM(examples);
+        }
+        if (compactRuleBase != null && compactRuleBase.size() == ruleBase.size()) {
+            return compactRuleBase.FRM(examples);
+        }
+        int[] clas = new int[examples.length];
+        for (int i = 0; i < examples.length; i++) {
+            clas[i] = FRM(examples[i]);
+        }
+        return clas;
+    }
+
+    /**
+     * Fuzzy Reasoning Method that also records how the rules cover the example: the rule with the highest
+     * membership degree is counted as winner, every rule with a positive degree as contributor
+     * @param example double[] the input example
+     * @param winners long[] examples won by each rule
+     * @param contributors long[] examples each rule contributes to
+     * @return int the predicted class label (id), the same as {@link #FRM(double[])}
+     */
+    public int coverage(double[] example, long[] winners, long[] contributors) {
+        int winner = -1;
+        double max = 0.0;
+        double[] class_degrees = new double[classes.length];
+        for (int i = 0; i < ruleBase.size(); i++) {
+            Rule r = ruleBase.get(i);
+            double produc = r.compatibility(example);
+            produc *= r.weight;
+            if (produc > 0) {
+                contributors[i]++;
+            }
+            if (produc > max) {
+                max = produc;
+                winner = i;
+            }
+            class_degrees[r.clas] += produc;
+        }
+        if (winner >= 0) {
+            winners[winner]++;
+        }
+
+        if (this.inferenceType == BuildModel.WINNING_RULE) {
+            return winner >= 0 ? ruleBase.get(winner).clas : -1;
+        }
+        int clas = -1;
+        max = 0.0;
+        for (int l = 0; l < class_degrees.length; l++) {
+            if (class_degrees[l] > max) {
+                max = class_degrees[l];
+                clas = l;
+            }
+        }
+        return clas;
+    }
+
     /**
      * Winning Rule FRM
      * @param example double[] the input example
@@ -265,20 +374,20 @@ public class RuleBase implements Writable{
      */
     public String printString() {
         int i, j;
-        String cadena = "";
+        StringBuilder cadena = new StringBuilder();
 
-        cadena += "@Number of rules: " + ruleBase.size() + "\n\n";
+        cadena.append("@Number of rules: ").append(ruleBase.size()).append("\n\n");
         for (i = 0; i < ruleBase.size(); i++) {
             Rule r = ruleBase.get(i);
-            cadena += (i + 1) + ": ";
+            cadena.append(i + 1).append(": ");
             for (j = 0; j < n_variables - 1; j++) {
-                cadena += names[j] + " IS " + r.antecedent[j].name + " AND ";
+                cadena.append(names[j]).append(" IS ").append(r.antecedent[j].name).append(" AND ");
             }
-            cadena += names[j] + " IS " + r.antecedent[j].name + ": " +
-                    classes[r.clas] + " with Rule Weight: " + r.weight + "\n";
+            cadena.append(names[j]).append(" IS ").append(r.antecedent[j].name).append(": ")
+                    .append(classes[r.clas]).append(" with Rule Weight: ").append(r.weight).append("\n");
         }
 
-        return (cadena);
+        return cadena.toString();
     }
     
     /**
@@ -296,6 +405,20 @@ public class RuleBase implements Writable{
 
       RuleBase rb = null;
       for (Path path : files) {
+        if (isSequenceFile(fs, path)) {
+          // output of the builder, the reducer may have written the rule base in several chunks
+          for (Pair<Writable,RuleBase> record : new SequenceFileIterable<Writable,RuleBase>(path, conf)) {
+            if (rb == null) {
+              rb = record.getSecond();
+            } else {
+              RuleBase chunk = record.getSecond();
+              for (int i = 0 ; i < chunk.size() ; i++) {
+                rb.add(chunk.get(i));
+              }
+            }
+          }
+          continue;
+        }
         FSDataInputStream dataInput = new FSDataInputStream(fs.open(path));
         try {
           if (rb == null) {
@@ -310,6 +433,55 @@ public class RuleBase implements Writable{
       return rb;      
     }
     
+    /**
+     * Load the parameters and the data base of a stored rule base, without its rules. When the rule base is
+     * stored in a directory of files, the first file is read
+     * @throws java.io.IOException
+     */
+    public static RuleBase loadHeader(Configuration conf, Path fuzzy_ChiCSPath) throws IOException {
+      FileSystem fs = fuzzy_ChiCSPath.getFileSystem(conf);
+      Path path = fuzzy_ChiCSPath;
+      if (fs.getFileStatus(fuzzy_ChiCSPath).isDir()) {
+        path = Chi_RWCSUtils.listOutputFiles(fs, fuzzy_ChiCSPath)[0];
+      }
+
+      if (isSequenceFile(fs, path)) {
+        SequenceFileIterator<Writable,RuleBase> records = new SequenceFileIterator<Writable,RuleBase>(path, true, conf);
+        try {
+          RuleBase rb = records.next().getSecond();
+          rb.ruleBase.clear();
+          return rb;
+        } finally {
+          Closeables.closeQuietly(records);
+        }
+      }
+
+      FSDataInputStream dataInput = new FSDataInputStream(fs.open(path));
+      try {
+        RuleBase rb = new RuleBase();
+        rb.readHeader(dataInput);
+        return rb;
+      } finally {
+        Closeables.closeQuietly(dataInput);
+      }
+    }
+
+    /**
+     * True if the file is a SequenceFile, as written by the builder, instead of a single stored rule base
+     */
+    static boolean isSequenceFile(FileSystem fs, Path path) throws IOException {
+      FSDataInputStream dataInput = fs.open(path);
+      try {
+        byte[] header = new byte[SEQUENCE_FILE_MAGIC.length];
+        dataInput.readFully(header);
+        return Arrays.equals(header, SEQUENCE_FILE_MAGIC);
+      } catch (EOFException e) {
+        return false;
+      } finally {
+        Closeables.closeQuietly(dataInput);
+      }
+    }
+
     private static RuleBase read(DataInput dataInput) throws IOException {
       RuleBase rb = new RuleBase();
       rb.readFields(dataInput);
@@ -345,7 +517,23 @@ public class RuleBase implements Writable{
     
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		// TODO Auto-generated method stub
+		readHeader(in);
+		compactRuleBase = null;
+		floatRuleBase = null;
+		
+		int ruleBase_size = in.readInt();
+		ruleBase = new ArrayList<Rule>();
+		for (int i = 0 ; i < ruleBase_size ; i++){
+			Rule element = new Rule();
+			element.readFields(in);
+			ruleBase.add(i, element);
+		}			
+	}
+	
+	/**
+	 * Reads everything but the rules
+	 */
+	void readHeader(DataInput in) throws IOException {
 		n_variables = in.readInt();
 		n_labels = in.readInt();
 		ruleWeight = in.readInt();
@@ -370,14 +558,6 @@ public class RuleBase implements Writable{
 		
 		dataBase = new DataBase();
 		dataBase.readFields(in);
-		
-		int ruleBase_size = in.readInt();
-		ruleBase = new ArrayList<Rule>();
-		for (int i = 0 ; i < ruleBase_size ; i++){
-			Rule element = new Rule();
-			element.readFields(in);
-			ruleBase.add(i, element);
-		}			
 	}
 	
 	@Override
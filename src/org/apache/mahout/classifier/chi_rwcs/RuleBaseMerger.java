@@ -0,0 +1,505 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory-budgeted merge of several rule bases. Rules are buffered until the buffer reaches its budget, then
+ * sorted by antecedent and spilled as a run to local disk. The duplicates are resolved by a k-way merge of
+ * the runs, so the merged rule base is never fully materialized in memory.<br>
+ * Every rule carries its arrival number through the runs. Rules with the same antecedent are resolved in
+ * arrival order with {@link Rule#comparison(Rule)}, and the resolved rules are sorted back by arrival, with
+ * a second external sort when they do not fit in memory. The result is the same rule base, in the same order,
+ * as adding the rules one by one with {@link RuleBase#duplicated(Rule)}, so the ties of the winning rule and
+ * the order of the additive sums are those of the sequential merge.<br>
+ * All the merged rule bases must share the same {@link DataBase}: the runs only store the labels of the
+ * antecedents, the fuzzy sets are rebuilt from the data base when the runs are read back.
+ */
+public class RuleBaseMerger implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(RuleBaseMerger.class);
+
+  /** maximum number of runs merged at once */
+  private static final int MERGE_FACTOR = 100;
+
+  /** heap of an {@link Entry} besides its rule: object header, long and reference */
+  private static final long ENTRY_SIZE = 32L;
+
+  private static final Comparator<Entry> ARRIVAL_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+    }
+  };
+
+  /** by antecedent, then by arrival, so the duplicates come in arrival order */
+  private static final Comparator<Entry> ANTECEDENT_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      int cmp = compareAntecedents(e1.rule, e2.rule);
+      return cmp != 0 ? cmp : ARRIVAL_ORDER.compare(e1, e2);
+    }
+  };
+
+  private final long bufferSize;
+  private final File tmpDir;
+
+  private RuleBase header;
+  private int maxBufferedRules;
+  private List<Entry> buffer = Lists.newArrayList();
+  private final List<Run> runs = Lists.newArrayList();
+  private long numRules;
+  private int numSpills;
+
+  /**
+   * @param bufferSize
+   *          memory budget, in bytes, for the rules kept in memory
+   * @param tmpDir
+   *          local directory where the sorted runs are spilled
+   */
+  public RuleBaseMerger(long bufferSize, File tmpDir) {
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+    this.bufferSize = bufferSize;
+    this.tmpDir = tmpDir;
+  }
+
+  /**
+   * Estimates the heap used by one rule, its antecedent and its fuzzy sets. The names of the fuzzy sets are
+   * shared with the data base and are not counted
+   *
+   * @param n_variables int the number of input variables
+   * @return long the estimated number of bytes
+   */
+  public static long estimatedRuleSize(int n_variables) {
+    // object header + fields, Fuzzy[] header + references, one Fuzzy (header + 4 doubles + reference + int) per variable
+    return 40L + (16L + 8L * n_variables) + 64L * n_variables;
+  }
+
+  /**
+   * @return RuleBase a new empty rule base with the parameters of the merged rule bases, null if nothing was
+   *         added
+   */
+  public RuleBase newRuleBase() {
+    if (header == null) {
+      return null;
+    }
+    return new RuleBase(header.dataBase, header.inferenceType, header.compatibilityType, header.ruleWeight,
+        header.names, header.classes, header.positive_class, header.positive_class_cost,
+        header.negative_class_cost);
+  }
+
+  /**
+   * @return int the number of rules that fit in the memory budget
+   */
+  public int maxBufferedRules() {
+    return maxBufferedRules;
+  }
+
+  /**
+   * @return long the number of rules added so far, duplicates included
+   */
+  public long numRules() {
+    return numRules;
+  }
+
+  /**
+   * @return int the number of runs spilled to disk so far
+   */
+  public int numSpills() {
+    return numSpills;
+  }
+
+  /**
+   * Adds all the rules of a rule base, spilling the buffer to disk when it gets full
+   */
+  public void add(RuleBase ruleBase) throws IOException {
+    if (ruleBase.size() == 0) {
+      return;
+    }
+    setHeader(ruleBase);
+    for (int i = 0; i < ruleBase.size(); i++) {
+      add(ruleBase.get(i));
+    }
+  }
+
+  /**
+   * Takes the parameters of the merged rule bases from the given rule base, unless they are already set.
+   * Its rules are not added
+   */
+  public void setHeader(RuleBase ruleBase) {
+    if (header != null) {
+      return;
+    }
+    header = new RuleBase(ruleBase.getDataBase(),
+        ruleBase.getInferenceType(),
+        ruleBase.getCompatibilityType(),
+        ruleBase.getRuleWeight(),
+        ruleBase.getNames(),
+        ruleBase.getClasses(),
+        ruleBase.getPositive_class(),
+        ruleBase.getPositive_class_cost(),
+        ruleBase.getNegative_class_cost());
+    maxBufferedRules = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8,
+        bufferSize / (estimatedRuleSize(header.n_variables) + ENTRY_SIZE)));
+    log.info("Merge buffer holds up to {} rules", maxBufferedRules);
+  }
+
+  /**
+   * Adds a rule, spilling the buffer to disk when it gets full. The parameters must have been set, by
+   * {@link #setHeader} or by adding a rule base
+   */
+  public void add(Rule rule) throws IOException {
+    Preconditions.checkState(header != null, "The parameters of the rule base are not set");
+    buffer.add(new Entry(numRules, rule));
+    numRules++;
+    if (buffer.size() >= maxBufferedRules) {
+      runs.add(spill(buffer, ANTECEDENT_ORDER));
+      buffer = Lists.newArrayList();
+    }
+  }
+
+  /**
+   * Returns the merged rules, in the order of the first rule added with each antecedent. Must be called once,
+   * after all the rule bases have been added
+   */
+  public Iterator<Rule> merge() throws IOException {
+    if (runs.isEmpty()) {
+      // everything fits in memory
+      List<Entry> entries = sortAndResolve(buffer);
+      buffer = Lists.newArrayList();
+      Collections.sort(entries, ARRIVAL_ORDER);
+      return rules(entries.iterator());
+    }
+
+    if (!buffer.isEmpty()) {
+      runs.add(spill(buffer, ANTECEDENT_ORDER));
+      buffer = Lists.newArrayList();
+    }
+    mergeDown(ANTECEDENT_ORDER);
+    MergeIterator resolved = new MergeIterator(Lists.newArrayList(runs), ANTECEDENT_ORDER, true);
+    runs.clear();
+
+    // sorts the resolved rules back by arrival
+    List<Entry> sorted = Lists.newArrayList();
+    try {
+      while (resolved.hasNext()) {
+        sorted.add(resolved.next());
+        if (sorted.size() >= maxBufferedRules) {
+          runs.add(spill(sorted, ARRIVAL_ORDER));
+          sorted = Lists.newArrayList();
+        }
+      }
+    } finally {
+      resolved.close();
+    }
+    if (runs.isEmpty()) {
+      Collections.sort(sorted, ARRIVAL_ORDER);
+      return rules(sorted.iterator());
+    }
+    if (!sorted.isEmpty()) {
+      runs.add(spill(sorted, ARRIVAL_ORDER));
+    }
+    mergeDown(ARRIVAL_ORDER);
+    return rules(new MergeIterator(runs, ARRIVAL_ORDER, false));
+  }
+
+  private static Iterator<Rule> rules(Iterator<Entry> entries) {
+    return Iterators.transform(entries, new Function<Entry, Rule>() {
+      @Override
+      public Rule apply(Entry entry) {
+        return entry.rule;
+      }
+    });
+  }
+
+  /**
+   * Sorts the entries and writes them as a new run
+   */
+  private Run spill(List<Entry> entries, Comparator<Entry> order) throws IOException {
+    Collections.sort(entries, order);
+    Run run = newRun();
+    DataOutputStream out = run.openForWrite();
+    try {
+      for (Entry entry : entries) {
+        writeEntry(out, entry);
+      }
+    } finally {
+      Closeables.closeQuietly(out);
+    }
+    run.size = entries.size();
+    numSpills++;
+    log.info("Spilled run {} : {} rules", numSpills, run.size);
+    return run;
+  }
+
+  /**
+   * Merges groups of consecutive runs until at most {@link #MERGE_FACTOR} runs remain
+   */
+  private void mergeDown(Comparator<Entry> order) throws IOException {
+    while (runs.size() > MERGE_FACTOR) {
+      List<Run> merged = Lists.newArrayList();
+      for (int start = 0; start < runs.size(); start += MERGE_FACTOR) {
+        List<Run> group = Lists.newArrayList(runs.subList(start, Math.min(start + MERGE_FACTOR, runs.size())));
+        if (group.size() == 1) {
+          merged.add(group.get(0));
+          continue;
+        }
+        Run run = newRun();
+        DataOutputStream out = run.openForWrite();
+        MergeIterator it = new MergeIterator(group, order, false);
+        try {
+          while (it.hasNext()) {
+            writeEntry(out, it.next());
+            run.size++;
+          }
+        } finally {
+          Closeables.closeQuietly(out);
+          it.close();
+        }
+        merged.add(run);
+      }
+      runs.clear();
+      runs.addAll(merged);
+    }
+  }
+
+  private Run newRun() throws IOException {
+    return new Run(File.createTempFile("rules", ".run", tmpDir));
+  }
+
+  /**
+   * Sorts the entries by antecedent, then resolves the rules sharing the same antecedent into the first one
+   */
+  private static List<Entry> sortAndResolve(List<Entry> entries) {
+    Collections.sort(entries, ANTECEDENT_ORDER);
+    List<Entry> resolved = Lists.newArrayListWithCapacity(entries.size());
+    Entry last = null;
+    for (Entry entry : entries) {
+      if (last != null && compareAntecedents(last.rule, entry.rule) == 0) {
+        last.rule.comparison(entry.rule);
+      } else {
+        resolved.add(entry);
+        last = entry;
+      }
+    }
+    return resolved;
+  }
+
+  static int compareAntecedents(Rule r1, Rule r2) {
+    for (int j = 0; j < r1.antecedent.length; j++) {
+      int l1 = r1.antecedent[j].label;
+      int l2 = r2.antecedent[j].label;
+      if (l1 != l2) {
+        return l1 < l2 ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+
+  private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+    out.writeLong(entry.seq);
+    out.writeInt(entry.rule.clas);
+    out.writeDouble(entry.rule.weight);
+    for (int j = 0; j < entry.rule.antecedent.length; j++) {
+      out.writeInt(entry.rule.antecedent[j].label);
+    }
+  }
+
+  private Entry readEntry(DataInputStream in) throws IOException {
+    long seq = in.readLong();
+    Rule rule = new Rule(header.n_variables, header.compatibilityType);
+    rule.clas = in.readInt();
+    rule.weight = in.readDouble();
+    for (int j = 0; j < header.n_variables; j++) {
+      rule.antecedent[j] = header.dataBase.clone(j, in.readInt());
+    }
+    return new Entry(seq, rule);
+  }
+
+  /**
+   * Deletes all the runs still on disk
+   */
+  @Override
+  public void close() {
+    for (Run run : runs) {
+      run.delete();
+    }
+    runs.clear();
+    buffer.clear();
+  }
+
+  /**
+   * A rule and its arrival number
+   */
+  private static final class Entry {
+    private final long seq;
+    private final Rule rule;
+
+    Entry(long seq, Rule rule) {
+      this.seq = seq;
+      this.rule = rule;
+    }
+  }
+
+  /**
+   * A sorted run of rules spilled to disk
+   */
+  private static final class Run {
+    private final File file;
+    private int size;
+
+    Run(File file) {
+      this.file = file;
+    }
+
+    DataOutputStream openForWrite() throws IOException {
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    }
+
+    DataInputStream openForRead() throws IOException {
+      return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    }
+
+    void delete() {
+      if (file.exists() && !file.delete()) {
+        log.warn("Could not delete {}", file);
+      }
+    }
+  }
+
+  /**
+   * Head of a run during the k-way merge
+   */
+  private final class RunCursor {
+    private final Run run;
+    private final DataInputStream in;
+    private int remaining;
+    private Entry current;
+
+    RunCursor(Run run) throws IOException {
+      this.run = run;
+      in = run.openForRead();
+      remaining = run.size;
+    }
+
+    boolean advance() throws IOException {
+      if (remaining == 0) {
+        current = null;
+        return false;
+      }
+      try {
+        current = readEntry(in);
+      } catch (EOFException e) {
+        throw new IOException("Truncated run: " + run.file, e);
+      }
+      remaining--;
+      return true;
+    }
+
+    void close() {
+      Closeables.closeQuietly(in);
+      run.delete();
+    }
+  }
+
+  /**
+   * k-way merge of sorted runs. With the antecedent order, the rules sharing the same antecedent come in arrival
+   * order and may be resolved into the first one
+   */
+  private final class MergeIterator extends AbstractIterator<Entry> implements Closeable {
+
+    private final PriorityQueue<RunCursor> queue;
+    private final List<RunCursor> cursors = Lists.newArrayList();
+    private final boolean resolve;
+
+    MergeIterator(List<Run> runs, final Comparator<Entry> order, boolean resolve) throws IOException {
+      this.resolve = resolve;
+      queue = new PriorityQueue<RunCursor>(Math.max(1, runs.size()), new Comparator<RunCursor>() {
+        @Override
+        public int compare(RunCursor c1, RunCursor c2) {
+          return order.compare(c1.current, c2.current);
+        }
+      });
+      for (Run run : runs) {
+        RunCursor cursor = new RunCursor(run);
+        cursors.add(cursor);
+        if (cursor.advance()) {
+          queue.add(cursor);
+        }
+      }
+    }
+
+    @Override
+    protected Entry computeNext() {
+      if (queue.isEmpty()) {
+        close();
+        return endOfData();
+      }
+      try {
+        RunCursor head = queue.poll();
+        Entry entry = head.current;
+        if (head.advance()) {
+          queue.add(head);
+        }
+        while (resolve && !queue.isEmpty() && compareAntecedents(entry.rule, queue.peek().current.rule) == 0) {
+          RunCursor next = queue.poll();
+          entry.rule.comparison(next.current.rule);
+          if (next.advance()) {
+            queue.add(next);
+          }
+        }
+        return entry;
+      } catch (IOException e) {
+        close();
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      for (RunCursor cursor : cursors) {
+        cursor.close();
+      }
+      cursors.clear();
+      queue.clear();
+    }
+  }
+}
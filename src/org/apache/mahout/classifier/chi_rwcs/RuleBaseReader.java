@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.Closeables;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterator;
+
+/**
+ * Iterates over the rules of a stored rule base without loading it whole. A single stored rule base is read
+ * one rule at a time, the output of the builder one chunk at a time.
+ */
+public class RuleBaseReader extends AbstractIterator<Rule> implements Closeable {
+
+  private final Configuration conf;
+  private final FileSystem fs;
+  private final Path[] files;
+  private int nextFile;
+
+  private final RuleBase header;
+
+  /** stored rule base being read, and the number of its rules not yet read */
+  private FSDataInputStream input;
+  private int remaining;
+
+  /** builder output being read */
+  private SequenceFileIterator<Writable,RuleBase> records;
+  private RuleBase chunk;
+  private int position;
+
+  public RuleBaseReader(Configuration conf, Path path) throws IOException {
+    this.conf = conf;
+    fs = path.getFileSystem(conf);
+    if (fs.getFileStatus(path).isDir()) {
+      files = Chi_RWCSUtils.listOutputFiles(fs, path);
+    } else {
+      files = new Path[]{path};
+    }
+    if (files.length == 0) {
+      throw new IOException("No model found in " + path);
+    }
+    header = RuleBase.loadHeader(conf, files[0]);
+  }
+
+  /**
+   * @return the parameters and the data base of the rule base, without its rules
+   */
+  public RuleBase getHeader() {
+    return header;
+  }
+
+  @Override
+  protected Rule computeNext() {
+    try {
+      while (true) {
+        if (input != null && remaining > 0) {
+          Rule rule = new Rule();
+          rule.readFields(input);
+          remaining--;
+          return rule;
+        }
+        if (chunk != null && position < chunk.size()) {
+          return chunk.get(position++);
+        }
+        if (records != null && records.hasNext()) {
+          chunk = records.next().getSecond();
+          position = 0;
+          continue;
+        }
+        closeCurrent();
+        if (nextFile == files.length) {
+          return endOfData();
+        }
+        open(files[nextFile++]);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void open(Path file) throws IOException {
+    if (RuleBase.isSequenceFile(fs, file)) {
+      records = new SequenceFileIterator<Writable,RuleBase>(file, false, conf);
+    } else {
+      input = fs.open(file);
+      new RuleBase().readHeader(input);
+      remaining = input.readInt();
+    }
+  }
+
+  private void closeCurrent() {
+    Closeables.closeQuietly(input);
+    Closeables.closeQuietly(records);
+    input = null;
+    records = null;
+    chunk = null;
+    remaining = 0;
+  }
+
+  @Override
+  public void close() {
+    closeCurrent();
+    nextFile = files.length;
+  }
+}
@@ -30,11 +30,17 @@ public class Fuzzy_ChiCSBuilder {
   int nClasses, nLabels, combinationType, inferenceType, ruleWeight;
   DataBase dataBase;
   RuleBase ruleBase;
+  // true when the fuzzy partitions are given, instead of computed from the ranges of the data
+  boolean fixedDataBase;
   
   public void setNLabels(int nLabels) {
     this.nLabels = nLabels;
   }
 
+  public int getNLabels() {
+    return nLabels;
+  }
+
   public void setCombinationType(int combinationType) {
     this.combinationType = combinationType;
   }	
@@ -47,6 +53,16 @@ public class Fuzzy_ChiCSBuilder {
     this.ruleWeight = ruleWeight;
   }	
   
+  /**
+   * Uses the given fuzzy partitions instead of computing them from the ranges of the data, so that the rules
+   * built can be merged with the rules of a previous model
+   * @param dataBase DataBase the data base of the previous model
+   */
+  public void setDataBase(DataBase dataBase) {
+    this.dataBase = dataBase;
+    this.fixedDataBase = dataBase != null;
+  }
+  
   public DataBase getDataBase() {
     return this.dataBase;
   }	
@@ -68,15 +84,16 @@ public class Fuzzy_ChiCSBuilder {
 	//It returns the class labels
 	String clases[] = dataset.labels();
 	
-	dataBase = new DataBase(nInputs, nLabels, data.getDataset().getRanges(), data.getNames());
-	
-	System.out.println(dataBase.printString());
+	if (!fixedDataBase) {
+	  dataBase = new DataBase(nInputs, nLabels, data.getDataset().getRanges(), data.getNames());
+	}
 	
 	ruleBase = new RuleBase(dataBase, inferenceType, combinationType, ruleWeight, data.getNames(), clases, positive_class, positive_class_cost, negative_class_cost);	
 	
 	ruleBase.Generation(data, context);
 	
-	System.out.println(ruleBase.printString());
+	// the rules are not printed by the tasks, the stored model can be inspected with InspectModel
+	log.debug("{} rules generated from {} instances", ruleBase.size(), data.size());
   }
 
 
@@ -24,7 +24,7 @@ import org.apache.mahout.math.DenseVector;
 import java.util.regex.Pattern;
 
 /**
- * Converts String to Instance using a Dataset
+ * Converts String to Instance using a Dataset, in double or single precision
  */
 public class DataConverter {
 
@@ -32,8 +32,15 @@ public class DataConverter {
 
   private final Dataset dataset;
 
+  private final boolean floatPrecision;
+
   public DataConverter(Dataset dataset) {
+    this(dataset, false);
+  }
+
+  public DataConverter(Dataset dataset, boolean floatPrecision) {
     this.dataset = dataset;
+    this.floatPrecision = floatPrecision;
   }
 
   public Instance convert(CharSequence string) {
@@ -45,7 +52,7 @@ public class DataConverter {
         "Wrong number of attributes in the string");
 
     int nbattrs = dataset.nbAttributes();
-    DenseVector vector = new DenseVector(nbattrs);
+    double[] vector = new double[nbattrs];
 
     int aId = 0;
     for (int attr = 0; attr < nball; attr++) {
@@ -61,13 +68,20 @@ public class DataConverter {
       }
 
       if (dataset.isNumerical(aId)) {
-        vector.set(aId++, Double.parseDouble(token));
+        vector[aId++] = Double.parseDouble(token);
       } else { // CATEGORICAL
-        vector.set(aId, dataset.valueOf(aId, token));
+        vector[aId] = dataset.valueOf(aId, token);
         aId++;
       }
     }
 
-    return new Instance(vector);
+    if (floatPrecision) {
+      float[] values = new float[nbattrs];
+      for (int i = 0; i < nbattrs; i++) {
+        values[i] = (float) vector[i];
+      }
+      return new Instance(values);
+    }
+    return new Instance(new DenseVector(vector, true));
   }
 }
@@ -117,12 +117,20 @@ public final class DataLoader {
    */
   
   public static Data loadData(Dataset dataset, FileSystem fs, Path fpath) throws IOException {
+    return loadData(dataset, fs, fpath, false);
+  }
+  
+  /**
+   * Loads the data from a file, in single precision if floatPrecision is true
+   */
+  public static Data loadData(Dataset dataset, FileSystem fs, Path fpath, boolean floatPrecision)
+    throws IOException {
     FSDataInputStream input = fs.open(fpath);
     Scanner scanner = new Scanner(input, "UTF-8");
     
     List<Instance> instances = Lists.newArrayList();
     
-    DataConverter converter = new DataConverter(dataset);
+    DataConverter converter = new DataConverter(dataset, floatPrecision);
     
     while (scanner.hasNextLine()) {
       String line = scanner.nextLine();
@@ -17,18 +17,34 @@
 
 package org.apache.mahout.classifier.chi_rwcs.data;
 
+import java.util.Arrays;
+
 import org.apache.mahout.math.Vector;
 
 /**
- * Represents one data instance.
+ * Represents one data instance. The attributes are stored in a Vector, or in single precision when the
+ * instance is created from a float array.
  */
 public class Instance {
   
   /** attributes, except LABEL and IGNORED */
   private final Vector attrs;
   
+  /** attributes in single precision, used instead of attrs */
+  private final float[] values;
+  
   public Instance(Vector attrs) {
     this.attrs = attrs;
+    this.values = null;
+  }
+  
+  public Instance(float[] values) {
+    this.attrs = null;
+    this.values = values;
+  }
+  
+  private int size() {
+    return values != null ? values.length : attrs.size();
   }
   
   /**
@@ -39,14 +55,14 @@ public class Instance {
    * @return value of the attribute
    */
   public double get(int index) {
-    return attrs.getQuick(index);
+    return values != null ? values[index] : attrs.getQuick(index);
   }
   
   public double[] get() {
 	int index;  
-	double[] example = new double[attrs.size()-1];
-	for(index = 0; index < attrs.size()-1 ; index++){
-	  	example[index] = attrs.getQuick(index);
+	double[] example = new double[size()-1];
+	for(index = 0; index < size()-1 ; index++){
+	  	example[index] = get(index);
 	}
 	return example;
   }
@@ -58,7 +74,11 @@ public class Instance {
    *          a double value to set
    */
   public void set(int index, double value) {
-    attrs.set(index, value);
+    if (values != null) {
+      values[index] = (float) value;
+    } else {
+      attrs.set(index, value);
+    }
   }
   
   @Override
@@ -72,12 +92,17 @@ public class Instance {
     
     Instance instance = (Instance) obj;
     
+    if (values != null || instance.values != null) {
+      // instances of different precisions are never equal
+      return Arrays.equals(values, instance.values);
+    }
+    
     return /*id == instance.id &&*/ attrs.equals(instance.attrs);
     
   }
   
   @Override
   public int hashCode() {
-    return /*id +*/ attrs.hashCode();
+    return /*id +*/ values != null ? Arrays.hashCode(values) : attrs.hashCode();
   }
 }
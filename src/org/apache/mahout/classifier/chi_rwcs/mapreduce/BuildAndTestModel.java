@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs.mapreduce;
+
+import java.io.IOException;
+
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.classifier.ResultAnalyzer;
+import org.apache.mahout.classifier.chi_rwcs.Chi_RWCSUtils;
+import org.apache.mahout.classifier.chi_rwcs.builder.Fuzzy_ChiCSBuilder;
+import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
+import org.apache.mahout.classifier.chi_rwcs.mapreduce.partial.PartialBuilder;
+import org.apache.mahout.common.CommandLineUtil;
+import org.apache.mahout.common.HadoopUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tool that builds a model and classifies the test data with it in one run. The model is not read into the
+ * driver: the output of the builder's reducer becomes the model file given to the {@link Chi_RWCSClassifier},
+ * and the Dataset is parsed once to check the inputs and to analyze the predictions.
+ */
+public class BuildAndTestModel extends Configured implements Tool {
+
+  private static final Logger log = LoggerFactory.getLogger(BuildAndTestModel.class);
+
+  private Path dataPath;
+
+  private Path testPath;
+
+  private Path datasetPath;
+
+  private Path outputPath;
+
+  private int nLabels;
+
+  private int combinationType;
+
+  private int ruleWeight;
+
+  private int inferenceType;
+
+  @Override
+  public int run(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option dataOpt = obuilder.withLongName("data").withShortName("d").withRequired(true)
+        .withArgument(abuilder.withName("path").withMinimum(1).withMaximum(1).create())
+        .withDescription("Data path").create();
+
+    Option testOpt = obuilder.withLongName("test").withShortName("te").withRequired(true)
+        .withArgument(abuilder.withName("path").withMinimum(1).withMaximum(1).create())
+        .withDescription("Test data path").create();
+
+    Option datasetOpt = obuilder.withLongName("dataset").withShortName("ds").withRequired(true)
+        .withArgument(abuilder.withName("dataset").withMinimum(1).withMaximum(1).create())
+        .withDescription("The path of the file descriptor of the dataset").create();
+
+    Option outputOpt = obuilder.withLongName("output").withShortName("o").withRequired(true)
+        .withArgument(abuilder.withName("path").withMinimum(1).withMaximum(1).create())
+        .withDescription("Output path, will contain the model, the predictions and the confusion matrix").create();
+
+    Option labelsOpt = obuilder.withLongName("labels").withShortName("l").withRequired(true)
+        .withArgument(abuilder.withName("labels").withMinimum(1).withMaximum(1).create())
+        .withDescription("Number of Labels").create();
+
+    Option combinationTypeOpt = obuilder.withLongName("combinationType").withShortName("t").withRequired(true)
+        .withArgument(abuilder.withName("combinationType").withMinimum(1).withMaximum(1).create())
+        .withDescription("T-norm for the computation of the compatibility degree").create();
+
+    Option rule_weightOpt = obuilder.withLongName("rule_weight").withShortName("r").withRequired(true)
+        .withArgument(abuilder.withName("rule_weight").withMinimum(1).withMaximum(1).create())
+        .withDescription("Rule Weight").create();
+
+    Option fuzzy_r_mOpt = obuilder.withLongName("fuzzy_r_m").withShortName("f").withRequired(true)
+        .withArgument(abuilder.withName("fuzzy_r_m").withMinimum(1).withMaximum(1).create())
+        .withDescription("Fuzzy Reasoning Method").create();
+
+    Option helpOpt = obuilder.withLongName("help").withShortName("h")
+        .withDescription("Print out help").create();
+
+    Group group = gbuilder.withName("Options").withOption(dataOpt).withOption(testOpt).withOption(datasetOpt)
+        .withOption(outputOpt).withOption(labelsOpt).withOption(combinationTypeOpt).withOption(rule_weightOpt)
+        .withOption(fuzzy_r_mOpt).withOption(helpOpt).create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption("help")) {
+        CommandLineUtil.printHelp(group);
+        return -1;
+      }
+
+      dataPath = new Path(cmdLine.getValue(dataOpt).toString());
+      testPath = new Path(cmdLine.getValue(testOpt).toString());
+      datasetPath = new Path(cmdLine.getValue(datasetOpt).toString());
+      outputPath = new Path(cmdLine.getValue(outputOpt).toString());
+      nLabels = Integer.parseInt(cmdLine.getValue(labelsOpt).toString());
+      String combinationType_aux = cmdLine.getValue(combinationTypeOpt).toString();
+      String ruleWeight_aux = cmdLine.getValue(rule_weightOpt).toString();
+      String inferenceType_aux = cmdLine.getValue(fuzzy_r_mOpt).toString();
+
+      if (log.isDebugEnabled()) {
+        log.debug("data : {}", dataPath);
+        log.debug("test : {}", testPath);
+        log.debug("dataset : {}", datasetPath);
+        log.debug("output : {}", outputPath);
+        log.debug("labels : {}", nLabels);
+        log.debug("t_norm : {}", combinationType_aux);
+        log.debug("rule_weight : {}", ruleWeight_aux);
+        log.debug("fuzzy_r_m : {}", inferenceType_aux);
+      }
+
+      combinationType = BuildModel.PRODUCT;
+      if (combinationType_aux.compareToIgnoreCase("minimum") == 0) {
+        combinationType = BuildModel.MINIMUM;
+      }
+
+      ruleWeight = BuildModel.PCF_IV;
+      if (ruleWeight_aux.compareToIgnoreCase("Certainty_Factor") == 0) {
+        ruleWeight = BuildModel.CF;
+      } else if (ruleWeight_aux.compareToIgnoreCase("Average_Penalized_Certainty_Factor") == 0) {
+        ruleWeight = BuildModel.PCF_II;
+      } else if (ruleWeight_aux.compareToIgnoreCase("No_Weights") == 0) {
+        ruleWeight = BuildModel.NO_RW;
+      }
+
+      inferenceType = BuildModel.WINNING_RULE;
+      if (inferenceType_aux.compareToIgnoreCase("Additive_Combination") == 0) {
+        inferenceType = BuildModel.ADDITIVE_COMBINATION;
+      }
+
+    } catch (OptionException e) {
+      log.error("Exception", e);
+      CommandLineUtil.printHelp(group);
+      return -1;
+    }
+
+    return buildAndTestModel() ? 0 : -1;
+  }
+
+  private boolean buildAndTestModel() throws IOException, ClassNotFoundException, InterruptedException {
+    // make sure the output path does not exist
+    FileSystem ofs = outputPath.getFileSystem(getConf());
+    if (ofs.exists(outputPath)) {
+      log.error("Output path already exists");
+      return false;
+    }
+
+    // make sure the test data exists
+    FileSystem tfs = testPath.getFileSystem(getConf());
+    if (!tfs.exists(testPath)) {
+      log.error("The Test data path does not exist");
+      return false;
+    }
+
+    Dataset dataset = Dataset.load(getConf(), datasetPath);
+
+    Fuzzy_ChiCSBuilder fuzzy_ChiCSBuilder = new Fuzzy_ChiCSBuilder();
+    fuzzy_ChiCSBuilder.setCombinationType(combinationType);
+    fuzzy_ChiCSBuilder.setInferenceType(inferenceType);
+    fuzzy_ChiCSBuilder.setNLabels(nLabels);
+    fuzzy_ChiCSBuilder.setRuleWeight(ruleWeight);
+
+    Builder modelBuilder = new PartialBuilder(fuzzy_ChiCSBuilder, dataPath, datasetPath, getConf());
+    Path buildPath = new Path(outputPath, "build");
+    modelBuilder.setOutputDirName(ofs.makeQualified(buildPath).toString());
+
+    log.info("ChiCS: Building the model...");
+    long buildTime = System.currentTimeMillis();
+    Path buildOutputPath = modelBuilder.buildInPlace();
+    buildTime = System.currentTimeMillis() - buildTime;
+    if (buildOutputPath == null) {
+      return false;
+    }
+    log.info("ChiCS: Build Time: {}", Chi_RWCSUtils.elapsedTime(buildTime));
+
+    // the single reducer output is the model, move it instead of reading and storing it again
+    Path[] outfiles = Chi_RWCSUtils.listOutputFiles(ofs, buildOutputPath);
+    Path modelPath = new Path(outputPath, "model.seq");
+    if (outfiles.length != 1 || !ofs.rename(outfiles[0], modelPath)) {
+      log.error("ChiCS: Cannot move the model from {}", buildOutputPath);
+      return false;
+    }
+    HadoopUtil.delete(getConf(), buildOutputPath);
+    log.info("ChiCS: Model stored in: {}", modelPath);
+
+    log.info("ChiCS: Classifying the test data...");
+    long classifyTime = System.currentTimeMillis();
+    Chi_RWCSClassifier classifier = new Chi_RWCSClassifier(modelPath, testPath, datasetPath,
+        new Path(outputPath, "predictions"), new Configuration(getConf()));
+    classifier.run();
+    classifyTime = System.currentTimeMillis() - classifyTime;
+    log.info("ChiCS: Classify Time: {}", Chi_RWCSUtils.elapsedTime(classifyTime));
+
+    ResultAnalyzer analyzer = TestModel.analyze(dataset, classifier.getResults());
+    TestModel.writeConfusionMatrix(getConf(), new Path(outputPath, "confusion_matrix.txt"), analyzer);
+    int[][] matrix = analyzer.getConfusionMatrix().getConfusionMatrix();
+    log.info("ChiCS: AUC {}, GM {}", TestModel.computeAuc(matrix), TestModel.computeGM(matrix));
+    return true;
+  }
+
+  public static void main(String[] args) throws Exception {
+    ToolRunner.run(new Configuration(), new BuildAndTestModel(), args);
+  }
+}
@@ -18,6 +18,9 @@ package org.apache.mahout.classifier.chi_rwcs.mapreduce;
 
 
 import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Arrays;
 
 import org.apache.commons.cli2.CommandLine;
 import org.apache.commons.cli2.Group;
@@ -60,6 +63,12 @@ public class BuildModel extends Configured implements Tool {
   
   private Path timePath;
   
+  private Path baseModelPath; // previous model, extended by an incremental build
+  
+  private double samplingRate = 1.0; // rate at which the instances of the non positive classes are kept
+  
+  private Path comparePath; // test data used to compare the subsampled model with the full data model
+  
   private String dataName;
   
   private String timeName;
@@ -125,12 +134,24 @@ public class BuildModel extends Configured implements Tool {
             .withArgument(abuilder.withName("fuzzy_r_m").withMinimum(1).withMaximum(1).create())
             .withDescription("Fuzzy Reasoning Method").create();
     
+    Option modelOpt = obuilder.withLongName("model").withShortName("m").withRequired(false)
+            .withArgument(abuilder.withName("path").withMinimum(1).withMaximum(1).create())
+            .withDescription("Path to a previous model, extended with the rules learned from the data (incremental build)").create();
+    
+    Option samplingRateOpt = obuilder.withLongName("sampling_rate").withShortName("sr").withRequired(false)
+            .withArgument(abuilder.withName("rate").withMinimum(1).withMaximum(1).create())
+            .withDescription("Rate at which the instances of the non positive classes are kept, in (0, 1]").create();
+    
+    Option compareOpt = obuilder.withLongName("compare").withShortName("c").withRequired(false)
+            .withArgument(abuilder.withName("path").withMinimum(1).withMaximum(1).create())
+            .withDescription("Test data used to compare the subsampled model with the full data model").create();
+    
     Option helpOpt = obuilder.withLongName("help").withShortName("h")
         .withDescription("Print out help").create();
     
     Group group = gbuilder.withName("Options").withOption(dataOpt).withOption(datasetOpt).withOption(timeOpt)
     		.withOption(outputOpt).withOption(labelsOpt).withOption(combinationTypeOpt).withOption(rule_weightOpt).withOption(fuzzy_r_mOpt)
-    		.withOption(helpOpt).create();
+    		.withOption(modelOpt).withOption(samplingRateOpt).withOption(compareOpt).withOption(helpOpt).create();
     
     try {
       Parser parser = new Parser();
@@ -154,6 +175,22 @@ public class BuildModel extends Configured implements Tool {
       	buildTimeIsStored = true;  
         timeName = cmdLine.getValue(timeOpt).toString();
       } 
+      
+      if (cmdLine.hasOption(modelOpt)) {
+        baseModelPath = new Path(cmdLine.getValue(modelOpt).toString());
+      }
+      
+      if (cmdLine.hasOption(samplingRateOpt)) {
+        samplingRate = Double.parseDouble(cmdLine.getValue(samplingRateOpt).toString());
+        if (samplingRate <= 0 || samplingRate > 1) {
+          log.error("The sampling rate must be in (0, 1]");
+          return -1;
+        }
+      }
+      
+      if (cmdLine.hasOption(compareOpt)) {
+        comparePath = new Path(cmdLine.getValue(compareOpt).toString());
+      }
 
       if (log.isDebugEnabled()) {
         log.debug("data : {}", dataName);
@@ -164,6 +201,9 @@ public class BuildModel extends Configured implements Tool {
         log.debug("rule_weight : {}", ruleWeight_aux);
         log.debug("fuzzy_r_m : {}", inferenceType_aux);
         log.debug("time : {}", timeName);
+        log.debug("model : {}", baseModelPath);
+        log.debug("sampling_rate : {}", samplingRate);
+        log.debug("compare : {}", comparePath);
       }
 
       dataPath = new Path(dataName);
@@ -199,17 +239,18 @@ public class BuildModel extends Configured implements Tool {
       return -1;
     }
     
-    buildModel();
-    
-    return 0;
+    return buildModel() ? 0 : -1;
   }
   
-  private void buildModel() throws IOException, ClassNotFoundException, InterruptedException {
+  /**
+   * @return false if the model could not be built
+   */
+  private boolean buildModel() throws IOException, ClassNotFoundException, InterruptedException {
     // make sure the output path does not exist
     FileSystem ofs = outputPath.getFileSystem(getConf());
     if (ofs.exists(outputPath)) {
       log.error("Output path already exists");
-      return;
+      return false;
     }
 
     Fuzzy_ChiCSBuilder fuzzy_ChiCSBuilder = new Fuzzy_ChiCSBuilder();
@@ -221,6 +262,16 @@ public class BuildModel extends Configured implements Tool {
     fuzzy_ChiCSBuilder.setNLabels(nLabels);
     
     fuzzy_ChiCSBuilder.setRuleWeight(ruleWeight);
+    
+    if (baseModelPath != null) {
+      // the new rules must use the fuzzy partitions of the previous model
+      RuleBase baseModel = RuleBase.loadHeader(getConf(), baseModelPath);
+      if (!isCompatible(baseModel)) {
+        return false;
+      }
+      fuzzy_ChiCSBuilder.setDataBase(baseModel.getDataBase());
+      log.info("ChiCS: Incremental build of the model: {}", baseModelPath);
+    }
         
     Builder modelBuilder;
 
@@ -230,6 +281,10 @@ public class BuildModel extends Configured implements Tool {
         
     modelBuilder.setOutputDirName(outputPath.getName());
     
+    modelBuilder.setBaseModelPath(baseModelPath);
+    
+    modelBuilder.setSamplingRate(samplingRate);
+    
     log.info("ChiCS: Building the model...");
     
     time = System.currentTimeMillis();
@@ -247,6 +302,82 @@ public class BuildModel extends Configured implements Tool {
     Path modelPath = new Path(outputPath, "model.seq");
     log.info("ChiCS: Storing the model in: {}", modelPath);
     Chi_RWCSUtils.storeWritable(getConf(), modelPath, ruleBase);
+    
+    if (comparePath != null) {
+      compareWithFullModel(fuzzy_ChiCSBuilder, modelPath);
+    }
+    return true;
+  }
+  
+  /**
+   * Builds the model on the full data, then classifies the comparison data with both models and reports the
+   * speedup of the subsampled build and its AUC/GM delta
+   */
+  private void compareWithFullModel(Fuzzy_ChiCSBuilder fuzzy_ChiCSBuilder, Path sampledModelPath)
+    throws IOException, ClassNotFoundException, InterruptedException {
+    Builder fullBuilder = new PartialBuilder(fuzzy_ChiCSBuilder, dataPath, datasetPath, getConf());
+    fullBuilder.setOutputDirName(outputPath.getName() + "_full");
+    fullBuilder.setBaseModelPath(baseModelPath);
+    
+    log.info("ChiCS: Building the full data model...");
+    long fullTime = System.currentTimeMillis();
+    RuleBase fullModel = fullBuilder.build();
+    fullTime = System.currentTimeMillis() - fullTime;
+    log.info("ChiCS: Full data Build Time: {}", Chi_RWCSUtils.elapsedTime(fullTime));
+    
+    Path fullModelPath = new Path(new Path(outputPath, "full"), "model.seq");
+    Chi_RWCSUtils.storeWritable(getConf(), fullModelPath, fullModel);
+    
+    Dataset dataset = Dataset.load(getConf(), datasetPath);
+    int[][] sampledMatrix = evaluate(sampledModelPath, new Path(outputPath, "compare_sampled"), dataset);
+    int[][] fullMatrix = evaluate(fullModelPath, new Path(outputPath, "compare_full"), dataset);
+    
+    double speedup = (double) fullTime / Math.max(1, time);
+    double aucDelta = TestModel.computeAuc(sampledMatrix) - TestModel.computeAuc(fullMatrix);
+    double gmDelta = TestModel.computeGM(sampledMatrix) - TestModel.computeGM(fullMatrix);
+    log.info("ChiCS: Sampling rate {}: speedup {}, AUC delta {}, GM delta {}",
+        new Object[] {samplingRate, speedup, aucDelta, gmDelta});
+    
+    writeToFileSamplingReport(fullTime, speedup, aucDelta, gmDelta);
+  }
+  
+  private int[][] evaluate(Path modelPath, Path predictionsPath, Dataset dataset)
+    throws IOException, ClassNotFoundException, InterruptedException {
+    Chi_RWCSClassifier classifier = new Chi_RWCSClassifier(modelPath, comparePath, datasetPath, predictionsPath,
+        new Configuration(getConf()));
+    classifier.run();
+    return TestModel.analyze(dataset, classifier.getResults()).getConfusionMatrix().getConfusionMatrix();
+  }
+  
+  /**
+   * Checks that the rules built from the data can be merged into the previous model
+   */
+  private boolean isCompatible(RuleBase baseModel) throws IOException {
+    if (baseModel.getDataBase().numLabels() != nLabels
+        || baseModel.getCompatibilityType() != combinationType
+        || baseModel.getRuleWeight() != ruleWeight
+        || baseModel.getInferenceType() != inferenceType) {
+      log.error("The parameters of the model {} do not match the parameters of the build", baseModelPath);
+      return false;
+    }
+    
+    Dataset dataset = Dataset.load(getConf(), datasetPath);
+    if (dataset.nbAttributes() - 1 != baseModel.getDataBase().numVariables()
+        || baseModel.getNames().length != dataset.nbAttributes() - 1) {
+      log.error("The dataset does not have the variables of the model {}", baseModelPath);
+      return false;
+    }
+    // the consequents of the rules are indexes into the classes
+    if (!Arrays.equals(baseModel.getClasses(), dataset.labels())) {
+      log.error("The classes of the dataset {} do not match the classes of the model {}",
+          Arrays.toString(dataset.labels()), Arrays.toString(baseModel.getClasses()));
+      return false;
+    }
+    if (!baseModel.getDataBase().covers(dataset.getRanges())) {
+      log.error("The data is out of the fuzzy partitions of the model {}, the full model must be rebuilt", baseModelPath);
+      return false;
+    }
+    return true;
   }
   
   protected static Data loadData(Configuration conf, Path dataPath, Dataset dataset) throws IOException {
@@ -286,6 +417,39 @@ public class BuildModel extends Configured implements Tool {
 	  }
   }
   
+  private void writeToFileSamplingReport(long fullTime, double speedup, double aucDelta, double gmDelta)
+    throws IOException {
+    FileSystem outFS = outputPath.getFileSystem(getConf());
+    FSDataOutputStream ofile = null;
+    Path filenamePath = new Path(outputPath, dataName + "_sampling_report").suffix(".txt");
+    try
+    {
+      ofile = outFS.create(filenamePath);
+      NumberFormat decimalFormatter = new DecimalFormat("0.########");
+      StringBuilder returnString = new StringBuilder(400);
+      returnString.append("=======================================================").append('\n');
+      returnString.append("Sampling Rate\n");
+      returnString.append(StringUtils.rightPad(decimalFormatter.format(samplingRate), 5)).append('\n');
+      returnString.append("-------------------------------------------------------").append('\n');
+      returnString.append("Build Time (sampled / full data)\n");
+      returnString.append(Chi_RWCSUtils.elapsedTime(time)).append(" / ").append(Chi_RWCSUtils.elapsedTime(fullTime)).append('\n');
+      returnString.append("Speedup\n");
+      returnString.append(StringUtils.rightPad(decimalFormatter.format(speedup), 5)).append('\n');
+      returnString.append("-------------------------------------------------------").append('\n');
+      returnString.append("AUC delta (sampled - full data)\n");
+      returnString.append(StringUtils.rightPad(decimalFormatter.format(aucDelta), 5)).append('\n');
+      returnString.append("GM delta (sampled - full data)\n");
+      returnString.append(StringUtils.rightPad(decimalFormatter.format(gmDelta), 5)).append('\n');
+      returnString.append("-------------------------------------------------------").append('\n');
+      ofile.writeUTF(returnString.toString());
+      ofile.close();
+    }
+    finally
+    {
+      Closeables.closeQuietly(ofile);
+    }
+  }
+  
   public static void main(String[] args) throws Exception {
     ToolRunner.run(new Configuration(), new BuildModel(), args);
   }
@@ -16,6 +16,7 @@
  */
 package org.apache.mahout.classifier.chi_rwcs.mapreduce;
 
+import com.google.common.base.Preconditions;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FileSystem;
@@ -44,6 +45,8 @@ public abstract class Builder {
   private final Path datasetPath;
   private final Configuration conf;
   private String outputDirName = "output";
+  private Path baseModelPath;
+  private double samplingRate = 1.0;
   
   protected Builder(Fuzzy_ChiCSBuilder fuzzy_ChiCSBuilder, Path dataPath, Path datasetPath, Configuration conf) {
 	this.fuzzy_ChiCSBuilder = fuzzy_ChiCSBuilder;  
@@ -87,6 +90,87 @@ public abstract class Builder {
     return conf.getInt("mapred.map.tasks", -1);
   }
 
+  /**
+   * Return the memory budget, in bytes, of the reducer's rule base merge ("mahout.fc.merge.buffer.mb",
+   * in megabytes). Beyond it the rules are spilled to the local disk. By default a quarter of the
+   * maximum heap of the task, which leaves room for the merged rule base and the framework.
+   *
+   * @param conf
+   *          configuration
+   * @return memory budget in bytes
+   */
+  public static long getMergeBufferSize(Configuration conf) {
+    long megabytes = conf.getLong("mahout.fc.merge.buffer.mb", -1);
+    if (megabytes > 0) {
+      return megabytes * 1024L * 1024L;
+    }
+    return Runtime.getRuntime().maxMemory() / 4;
+  }
+
+  /**
+   * Return the path of the model extended by an incremental build ("mahout.fc.base.model").
+   *
+   * @param conf
+   *          configuration
+   * @return null if the build is not incremental
+   */
+  public static Path getBaseModelPath(Configuration conf) {
+    String path = conf.get("mahout.fc.base.model");
+    if (path == null) {
+      return null;
+    }
+
+    return new Path(path);
+  }
+
+  /**
+   * Return the rate at which the mappers keep the instances of the non positive classes
+   * ("mahout.fc.sampling.rate").
+   *
+   * @param conf
+   *          configuration
+   * @return sampling rate, 1.0 if all the instances are kept
+   */
+  public static double getSamplingRate(Configuration conf) {
+    return conf.getFloat("mahout.fc.sampling.rate", 1.0f);
+  }
+
+  /**
+   * Return true if the splits of the partial builder are sized from the heap of the map tasks
+   * ("mahout.fc.plan.splits").
+   *
+   * @param conf
+   *          configuration
+   * @return true if the splits are planned, false to use the default HDFS splits
+   */
+  public static boolean isSplitPlanning(Configuration conf) {
+    return conf.getBoolean("mahout.fc.plan.splits", false);
+  }
+
+  /**
+   * Return the number of rows the mappers read and convert ahead on a background thread
+   * ("mahout.fc.prefetch.rows").
+   *
+   * @param conf
+   *          configuration
+   * @return number of rows, 0 (the default) to read the records on the task thread
+   */
+  public static int getPrefetchRows(Configuration conf) {
+    return conf.getInt("mahout.fc.prefetch.rows", 0);
+  }
+
+  /**
+   * Return true if the mappers store the data and classify in single precision ("mahout.fc.float"). The
+   * predictions may differ from the double precision ones, see {@link RuleBase#compact(boolean)}
+   *
+   * @param conf
+   *          configuration
+   * @return true for single precision, false for double precision
+   */
+  public static boolean isFloatPrecision(Configuration conf) {
+    return conf.getBoolean("mahout.fc.float", false);
+  }
+
   /**
    * Used only for DEBUG purposes. if false, the mappers doesn't output anything, so the builder has nothing
    * to process
@@ -122,6 +206,29 @@ public abstract class Builder {
     outputDirName = name;
   }
   
+  /**
+   * Sets the model extended by the build. The rules built from the data are merged into the rules of this
+   * model, which are considered as already present in the rule base
+   * 
+   * @param baseModelPath
+   *          path of the previous model
+   */
+  public void setBaseModelPath(Path baseModelPath) {
+    this.baseModelPath = baseModelPath;
+  }
+  
+  /**
+   * Sets the rate at which the mappers keep the instances of the non positive classes. All the instances of
+   * the positive class are kept
+   * 
+   * @param samplingRate
+   *          sampling rate in (0, 1]
+   */
+  public void setSamplingRate(double samplingRate) {
+    Preconditions.checkArgument(samplingRate > 0 && samplingRate <= 1, "samplingRate must be in (0, 1]");
+    this.samplingRate = samplingRate;
+  }
+  
   /**
    * Output Directory name
    * 
@@ -210,6 +317,38 @@ public abstract class Builder {
   
   public RuleBase build() throws IOException, ClassNotFoundException, InterruptedException {
     
+    Job job = runBuild();
+    if (job == null) {
+      return null;
+    }
+    
+    if (isOutput(conf)) {
+      log.debug("Parsing the output...");
+      RuleBase ruleBase = parseOutput(job);
+      HadoopUtil.delete(conf, getOutputPath(conf));
+      return ruleBase;
+    }
+    
+    return null;
+  }
+  
+  /**
+   * Runs the job but does not read the model into the driver. The model stays in the output of the job,
+   * from where it can be loaded with {@link RuleBase#load}
+   * 
+   * @return output dir. path, null if the job failed
+   */
+  public Path buildInPlace() throws IOException, ClassNotFoundException, InterruptedException {
+    Job job = runBuild();
+    if (job == null) {
+      return null;
+    }
+    
+    return getOutputPath(conf);
+  }
+  
+  private Job runBuild() throws IOException, ClassNotFoundException, InterruptedException {
+    
     Path outputPath = getOutputPath(conf);
     FileSystem fs = outputPath.getFileSystem(conf);
     
@@ -220,6 +359,14 @@ public abstract class Builder {
 
     setFuzzy_ChiCSBuilder(conf, fuzzy_ChiCSBuilder);
     
+    if (baseModelPath != null) {
+      conf.set("mahout.fc.base.model", baseModelPath.toString());
+    }
+    
+    if (samplingRate < 1.0) {
+      conf.setFloat("mahout.fc.sampling.rate", (float) samplingRate);
+    }
+    
     // put the dataset into the DistributedCache
     DistributedCache.addCacheFile(datasetPath.toUri(), conf);
     
@@ -234,14 +381,7 @@ public abstract class Builder {
       return null;
     }
     
-    if (isOutput(conf)) {
-      log.debug("Parsing the output...");
-      RuleBase ruleBase = parseOutput(job);
-      HadoopUtil.delete(conf, outputPath);
-      return ruleBase;
-    }
-    
-    return null;
+    return job;
   }
   
   /**
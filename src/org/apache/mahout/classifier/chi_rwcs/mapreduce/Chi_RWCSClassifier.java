@@ -57,6 +57,10 @@ import java.util.Random;
 public class Chi_RWCSClassifier {
 	
   private static final Logger log = LoggerFactory.getLogger(Chi_RWCSClassifier.class);
+
+  public static final String COUNTER_GROUP = "ChiCS Classifier";
+  public static final String CLASSIFY_TIME = "Classify time (us)";
+
   private final Path modelPath;
   private final Path inputPath;
   private final Path datasetPath;
@@ -64,11 +68,19 @@ public class Chi_RWCSClassifier {
   private final Path outputPath; // path that will containt the final output of the classifier
   private final Path mappersOutputPath; // mappers will output here
   private double[][] results;
+  private long classifyTime;
 	  
   public double[][] getResults() {
     return results;
   }
   
+  /**
+   * @return time spent by the mappers in the fuzzy reasoning method, in microseconds
+   */
+  public long getClassifyTime() {
+    return classifyTime;
+  }
+  
   public Chi_RWCSClassifier(Path modelPath, Path inputPath, Path datasetPath, Path outputPath, Configuration conf) {
     this.modelPath = modelPath;
     this.inputPath = inputPath;
@@ -120,6 +132,7 @@ public class Chi_RWCSClassifier {
 	}
 
 	parseOutput(job);
+	classifyTime = job.getCounters().findCounter(COUNTER_GROUP, CLASSIFY_TIME).getValue();
 
 	HadoopUtil.delete(conf, mappersOutputPath);
   }
@@ -183,6 +196,7 @@ public class Chi_RWCSClassifier {
     private Dataset dataset;
     private final DoubleWritable lkey = new DoubleWritable();
     private RuleBase ruleBase;
+    private long classifyNanos;
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -198,36 +212,85 @@ public class Chi_RWCSClassifier {
       
       dataset = Dataset.load(conf, new Path(files[0].getPath()));
 
-      converter = new DataConverter(dataset);
+      boolean floatPrecision = Builder.isFloatPrecision(conf);
+      converter = new DataConverter(dataset, floatPrecision);
 
       ruleBase = RuleBase.load(conf, new Path(files[1].getPath()));  
       
       if (ruleBase == null) {
         throw new InterruptedException("Model not found!");
       }
+      
+      if (!ruleBase.compact(floatPrecision)) {
+        log.warn("The rules do not share their fuzzy sets, classifying with the rule objects");
+      }
+    }
+
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+      int prefetchRows = Builder.getPrefetchRows(context.getConfiguration());
+      if (prefetchRows <= 0) {
+        super.run(context);
+        return;
+      }
+
+      setup(context);
+      PrefetchingReader reader = new PrefetchingReader(context, converter, prefetchRows);
+      try {
+        PrefetchingReader.Row row = reader.next();
+        if (reader.getFirstKey() >= 0) {
+          writeMarker(reader.getFirstKey(), context);
+        }
+        while (row != null) {
+          classify(row.getInstance(), context);
+          row = reader.next();
+        }
+      } finally {
+        reader.close(context);
+      }
+      cleanup(context);
     }
 
     @Override
     protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
       if (first) {
-        FileSplit split = (FileSplit) context.getInputSplit();
-        Path path = split.getPath(); // current split path
-        lvalue.set(path.getName());
-        lkey.set(key.get());
-        context.write(lkey, lvalue);
-
-        first = false;
+        writeMarker(key.get(), context);
       }
 
       String line = value.toString();
       if (!line.isEmpty()) {
-        Instance instance = converter.convert(line);
-        double prediction = ruleBase.classify(instance);
-        lkey.set(dataset.getLabel(instance));
-        lvalue.set(Double.toString(prediction));
-        context.write(lkey, lvalue);
+        classify(converter.convert(line), context);
       }
     }
+
+    /**
+     * Writes the name of the input file of the split, keyed by the offset of its first record, empty or not,
+     * before any prediction
+     */
+    private void writeMarker(long key, Context context) throws IOException, InterruptedException {
+      FileSplit split = (FileSplit) context.getInputSplit();
+      Path path = split.getPath(); // current split path
+      lvalue.set(path.getName());
+      lkey.set(key);
+      context.write(lkey, lvalue);
+
+      first = false;
+    }
+
+    private void classify(Instance instance, Context context) throws IOException, InterruptedException {
+      long start = System.nanoTime();
+      double prediction = ruleBase.classify(instance);
+      classifyNanos += System.nanoTime() - start;
+      lkey.set(dataset.getLabel(instance));
+      lvalue.set(Double.toString(prediction));
+      context.write(lkey, lvalue);
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      context.getCounter(COUNTER_GROUP, CLASSIFY_TIME).increment(classifyNanos / 1000L);
+      super.cleanup(context);
+    }
   }
 
 }
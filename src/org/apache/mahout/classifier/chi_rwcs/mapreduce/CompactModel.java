@@ -0,0 +1,475 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs.mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+import com.google.common.io.Closeables;
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.classifier.ResultAnalyzer;
+import org.apache.mahout.classifier.chi_rwcs.Chi_RWCSUtils;
+import org.apache.mahout.classifier.chi_rwcs.RuleBase;
+import org.apache.mahout.classifier.chi_rwcs.data.DataConverter;
+import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
+import org.apache.mahout.classifier.chi_rwcs.data.Instance;
+import org.apache.mahout.common.CommandLineUtil;
+import org.apache.mahout.common.HadoopUtil;
+import org.apache.mahout.common.Pair;
+import org.apache.mahout.common.commandline.DefaultOptionCreator;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tool that removes from a model the rules that are seldom used on a validation set. A first job runs the model
+ * over the validation data and counts, for each rule, the examples it wins and the examples it contributes to.
+ * The rules used by fewer examples than the threshold are dropped, the winners count with the winning rule FRM
+ * and the contributors with the additive combination.<br>
+ * The compacted model is accepted only if its AUC and GM on the validation data, computed as in
+ * {@link TestModel}, do not drop more than the allowed amount. Otherwise the threshold is halved and the model
+ * compacted again; a threshold of 1 only removes rules that never fire, which leaves the predictions on the
+ * validation data unchanged.
+ */
+public class CompactModel extends Configured implements Tool {
+
+  private static final Logger log = LoggerFactory.getLogger(CompactModel.class);
+
+  private Path dataPath; // validation data path
+  private Path datasetPath;
+  private Path modelPath;
+  private Path outputPath;
+  private long threshold = 1;
+  private double maxDrop;
+
+  @Override
+  public int run(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option inputOpt = DefaultOptionCreator.inputOption().create();
+
+    Option datasetOpt = obuilder.withLongName("dataset").withShortName("ds").withRequired(true).withArgument(
+        abuilder.withName("dataset").withMinimum(1).withMaximum(1).create()).withDescription("Dataset path")
+        .create();
+
+    Option modelOpt = obuilder.withLongName("model").withShortName("m").withRequired(true).withArgument(
+        abuilder.withName("path").withMinimum(1).withMaximum(1).create()).withDescription("Path to the Model")
+        .create();
+
+    Option outputOpt = DefaultOptionCreator.outputOption().create();
+
+    Option thresholdOpt = obuilder.withLongName("threshold").withShortName("th").withRequired(false).withArgument(
+        abuilder.withName("threshold").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Minimum number of validation examples a rule must be used by to be kept (default 1)").create();
+
+    Option maxDropOpt = obuilder.withLongName("max_drop").withShortName("md").withRequired(false).withArgument(
+        abuilder.withName("max_drop").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Maximum drop of the AUC and the GM on the validation data (default 0)").create();
+
+    Option helpOpt = DefaultOptionCreator.helpOption();
+
+    Group group = gbuilder.withName("Options").withOption(inputOpt).withOption(datasetOpt).withOption(modelOpt)
+        .withOption(outputOpt).withOption(thresholdOpt).withOption(maxDropOpt).withOption(helpOpt).create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption("help")) {
+        CommandLineUtil.printHelp(group);
+        return -1;
+      }
+
+      dataPath = new Path(cmdLine.getValue(inputOpt).toString());
+      datasetPath = new Path(cmdLine.getValue(datasetOpt).toString());
+      modelPath = new Path(cmdLine.getValue(modelOpt).toString());
+      outputPath = new Path(cmdLine.getValue(outputOpt).toString());
+      if (cmdLine.hasOption(thresholdOpt)) {
+        threshold = Long.parseLong(cmdLine.getValue(thresholdOpt).toString());
+      }
+      if (cmdLine.hasOption(maxDropOpt)) {
+        maxDrop = Double.parseDouble(cmdLine.getValue(maxDropOpt).toString());
+      }
+
+      if (log.isDebugEnabled()) {
+        log.debug("input     : {}", dataPath);
+        log.debug("dataset   : {}", datasetPath);
+        log.debug("model     : {}", modelPath);
+        log.debug("output    : {}", outputPath);
+        log.debug("threshold : {}", threshold);
+        log.debug("max drop  : {}", maxDrop);
+      }
+    } catch (OptionException e) {
+      log.warn(e.toString(), e);
+      CommandLineUtil.printHelp(group);
+      return -1;
+    }
+
+    return compactModel() ? 0 : -1;
+  }
+
+  private boolean compactModel() throws IOException, ClassNotFoundException, InterruptedException {
+    Configuration conf = getConf();
+
+    // make sure the output path does not exist
+    FileSystem ofs = outputPath.getFileSystem(conf);
+    if (ofs.exists(outputPath)) {
+      log.error("Output path already exists");
+      return false;
+    }
+
+    // make sure the validation data exists
+    FileSystem dfs = dataPath.getFileSystem(conf);
+    if (!dfs.exists(dataPath)) {
+      log.error("The validation data path does not exist");
+      return false;
+    }
+
+    Dataset dataset = Dataset.load(conf, datasetPath);
+    RuleBase ruleBase = RuleBase.load(conf, modelPath);
+    if (ruleBase == null) {
+      log.error("Model not found");
+      return false;
+    }
+
+    log.info("ChiCS: Computing the coverage of {} rules...", ruleBase.size());
+    long[] winners = new long[ruleBase.size()];
+    long[] contributors = new long[ruleBase.size()];
+    computeCoverage(new Path(outputPath, "coverage"), winners, contributors);
+    boolean byWinners = ruleBase.getInferenceType() == BuildModel.WINNING_RULE;
+    long[] counts = byWinners ? winners : contributors;
+
+    log.info("ChiCS: Classifying the validation data with the original model...");
+    Evaluation original = evaluate(dataset, modelPath, new Path(outputPath, "original"));
+
+    Path compactedPath = new Path(outputPath, "model.bin");
+    Evaluation compacted = null;
+    long applied = threshold;
+    while (applied >= 1) {
+      RuleBase candidate = compact(ruleBase, counts, applied);
+      log.info("ChiCS: Threshold {} keeps {} of {} rules", new Object[] {applied, candidate.size(), ruleBase.size()});
+      if (candidate.size() == ruleBase.size()) {
+        break;
+      }
+      HadoopUtil.delete(conf, compactedPath);
+      Chi_RWCSUtils.storeWritable(conf, compactedPath, candidate);
+
+      Evaluation evaluation = evaluate(dataset, compactedPath, new Path(outputPath, "compacted-" + applied));
+      if (original.auc - evaluation.auc <= maxDrop && original.gm - evaluation.gm <= maxDrop) {
+        compacted = evaluation;
+        compacted.rules = candidate.size();
+        break;
+      }
+      log.info("ChiCS: Threshold {} drops the AUC to {} and the GM to {}",
+          new Object[] {applied, evaluation.auc, evaluation.gm});
+      applied /= 2;
+    }
+
+    if (compacted == null) {
+      // no rule can be dropped, the compacted model is the original one
+      HadoopUtil.delete(conf, compactedPath);
+      Chi_RWCSUtils.storeWritable(conf, compactedPath, ruleBase);
+      compacted = original;
+      applied = 0;
+    }
+    original.rules = ruleBase.size();
+
+    writeReport(new Path(outputPath, "compaction_report.txt"), byWinners, winners, contributors, applied,
+        original, compacted);
+    log.info("ChiCS: Compacted model stored in: {}", compactedPath);
+    return true;
+  }
+
+  /**
+   * Runs the coverage job and sums its output into the arrays
+   */
+  private void computeCoverage(Path coveragePath, long[] winners, long[] contributors)
+    throws IOException, ClassNotFoundException, InterruptedException {
+    Configuration conf = new Configuration(getConf());
+    conf.set("mahout.fc.dataset", datasetPath.toString());
+    conf.set("mahout.fc.model", modelPath.toString());
+
+    Job job = new Job(conf, "Chi_RWCS rule coverage");
+    job.setJarByClass(CompactModel.class);
+
+    FileInputFormat.setInputPaths(job, dataPath);
+    FileOutputFormat.setOutputPath(job, coveragePath);
+
+    job.setOutputKeyClass(IntWritable.class);
+    job.setOutputValueClass(Coverage.class);
+
+    job.setMapperClass(CoverageMapper.class);
+    job.setCombinerClass(CoverageReducer.class);
+    job.setReducerClass(CoverageReducer.class);
+    job.setNumReduceTasks(1);
+
+    job.setInputFormatClass(TextInputFormat.class);
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+    if (!job.waitForCompletion(true)) {
+      throw new IllegalStateException("ChiCS: Job failed!");
+    }
+
+    FileSystem fs = coveragePath.getFileSystem(conf);
+    for (Path path : Chi_RWCSUtils.listOutputFiles(fs, coveragePath)) {
+      for (Pair<IntWritable,Coverage> record : new SequenceFileIterable<IntWritable,Coverage>(path, true, conf)) {
+        int rule = record.getFirst().get();
+        winners[rule] += record.getSecond().winners;
+        contributors[rule] += record.getSecond().contributors;
+      }
+    }
+    HadoopUtil.delete(conf, coveragePath);
+  }
+
+  /**
+   * @return the rules of the rule base used by at least threshold examples, in the same order
+   */
+  static RuleBase compact(RuleBase ruleBase, long[] counts, long threshold) {
+    RuleBase compacted = new RuleBase(ruleBase.getDataBase(),
+        ruleBase.getInferenceType(),
+        ruleBase.getCompatibilityType(),
+        ruleBase.getRuleWeight(),
+        ruleBase.getNames(),
+        ruleBase.getClasses(),
+        ruleBase.getPositive_class(),
+        ruleBase.getPositive_class_cost(),
+        ruleBase.getNegative_class_cost());
+    for (int i = 0; i < ruleBase.size(); i++) {
+      if (counts[i] >= threshold) {
+        compacted.add(ruleBase.get(i));
+      }
+    }
+    return compacted;
+  }
+
+  private Evaluation evaluate(Dataset dataset, Path model, Path predictionsPath)
+    throws IOException, ClassNotFoundException, InterruptedException {
+    Chi_RWCSClassifier classifier = new Chi_RWCSClassifier(model, dataPath, datasetPath, predictionsPath,
+        new Configuration(getConf()));
+    classifier.run();
+    HadoopUtil.delete(getConf(), predictionsPath);
+
+    double[][] results = classifier.getResults();
+    ResultAnalyzer analyzer = TestModel.analyze(dataset, results);
+    int[][] matrix = analyzer.getConfusionMatrix().getConfusionMatrix();
+
+    Evaluation evaluation = new Evaluation();
+    evaluation.auc = TestModel.computeAuc(matrix);
+    evaluation.gm = TestModel.computeGM(matrix);
+    evaluation.examples = results.length;
+    evaluation.classifyTime = classifier.getClassifyTime();
+    evaluation.modelBytes = model.getFileSystem(getConf()).getContentSummary(model).getLength();
+    return evaluation;
+  }
+
+  private void writeReport(Path reportPath, boolean byWinners, long[] winners, long[] contributors, long applied,
+                           Evaluation original, Evaluation compacted) throws IOException {
+    NumberFormat decimalFormatter = new DecimalFormat("0.########");
+    int neverWon = 0;
+    int neverContributed = 0;
+    for (int i = 0; i < winners.length; i++) {
+      if (winners[i] == 0) {
+        neverWon++;
+      }
+      if (contributors[i] == 0) {
+        neverContributed++;
+      }
+    }
+    double originalTime = (double) original.classifyTime / Math.max(1, original.examples);
+    double compactedTime = (double) compacted.classifyTime / Math.max(1, compacted.examples);
+
+    StringBuilder returnString = new StringBuilder(1000);
+    returnString.append("=======================================================").append('\n');
+    returnString.append("Rule Base Compaction\n");
+    returnString.append("-------------------------------------------------------").append('\n');
+    returnString.append("Validation examples: ").append(original.examples).append('\n');
+    returnString.append("Rules never winning: ").append(neverWon).append('\n');
+    returnString.append("Rules never contributing: ").append(neverContributed).append('\n');
+    returnString.append("Threshold (").append(byWinners ? "winner" : "contributor").append("): requested ")
+        .append(threshold).append(", applied ").append(applied).append('\n');
+    returnString.append("-------------------------------------------------------").append('\n');
+    returnString.append("Rules: ").append(original.rules).append(" -> ").append(compacted.rules)
+        .append(" (-").append(decimalFormatter.format(100.0 * (original.rules - compacted.rules)
+        / Math.max(1, original.rules))).append("%)\n");
+    returnString.append("Model size (bytes): ").append(original.modelBytes).append(" -> ")
+        .append(compacted.modelBytes).append('\n');
+    returnString.append("Classify time per example (us): ").append(decimalFormatter.format(originalTime))
+        .append(" -> ").append(decimalFormatter.format(compactedTime)).append('\n');
+    returnString.append("Speedup: ").append(decimalFormatter.format(compactedTime > 0 ? originalTime / compactedTime
+        : 1.0)).append('\n');
+    returnString.append("-------------------------------------------------------").append('\n');
+    returnString.append("AUC: ").append(decimalFormatter.format(original.auc)).append(" -> ")
+        .append(decimalFormatter.format(compacted.auc)).append(" (delta ")
+        .append(decimalFormatter.format(compacted.auc - original.auc)).append(")\n");
+    returnString.append("GM: ").append(decimalFormatter.format(original.gm)).append(" -> ")
+        .append(decimalFormatter.format(compacted.gm)).append(" (delta ")
+        .append(decimalFormatter.format(compacted.gm - original.gm)).append(")\n");
+    returnString.append("-------------------------------------------------------").append('\n');
+    String output = returnString.toString();
+
+    FileSystem outFS = reportPath.getFileSystem(getConf());
+    FSDataOutputStream ofile = outFS.create(reportPath);
+    try {
+      ofile.writeBytes(output);
+    } finally {
+      Closeables.closeQuietly(ofile);
+    }
+    log.info("ChiCS: Compaction report\n{}", output);
+  }
+
+  /**
+   * Validation results of a model
+   */
+  private static final class Evaluation {
+    private int rules;
+    private double auc;
+    private double gm;
+    private int examples;
+    private long classifyTime;
+    private long modelBytes;
+  }
+
+  /**
+   * Examples won by a rule, and examples it contributes to
+   */
+  public static class Coverage implements Writable {
+
+    private long winners;
+    private long contributors;
+
+    public Coverage() {
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeLong(winners);
+      out.writeLong(contributors);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      winners = in.readLong();
+      contributors = in.readLong();
+    }
+  }
+
+  public static class CoverageMapper extends Mapper<LongWritable, Text, IntWritable, Coverage> {
+
+    /** used to convert input values to data instances */
+    private DataConverter converter;
+    private RuleBase ruleBase;
+    private long[] winners;
+    private long[] contributors;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+      super.setup(context);
+
+      Configuration conf = context.getConfiguration();
+
+      Dataset dataset = Dataset.load(conf, new Path(conf.get("mahout.fc.dataset")));
+      converter = new DataConverter(dataset);
+
+      ruleBase = RuleBase.load(conf, new Path(conf.get("mahout.fc.model")));
+      if (ruleBase == null) {
+        throw new InterruptedException("Model not found!");
+      }
+      winners = new long[ruleBase.size()];
+      contributors = new long[ruleBase.size()];
+    }
+
+    @Override
+    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+      String line = value.toString();
+      if (line.isEmpty()) {
+        return;
+      }
+      Instance instance = converter.convert(line);
+      if (instance != null) {
+        ruleBase.coverage(instance.get(), winners, contributors);
+      }
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      IntWritable lkey = new IntWritable();
+      Coverage lvalue = new Coverage();
+      for (int i = 0; i < winners.length; i++) {
+        if (contributors[i] > 0) {
+          lkey.set(i);
+          lvalue.winners = winners[i];
+          lvalue.contributors = contributors[i];
+          context.write(lkey, lvalue);
+        }
+      }
+      super.cleanup(context);
+    }
+  }
+
+  public static class CoverageReducer extends Reducer<IntWritable, Coverage, IntWritable, Coverage> {
+
+    private final Coverage lvalue = new Coverage();
+
+    @Override
+    protected void reduce(IntWritable key, Iterable<Coverage> values, Context context)
+      throws IOException, InterruptedException {
+      lvalue.winners = 0;
+      lvalue.contributors = 0;
+      for (Coverage value : values) {
+        lvalue.winners += value.winners;
+        lvalue.contributors += value.contributors;
+      }
+      context.write(key, lvalue);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    ToolRunner.run(new Configuration(), new CompactModel(), args);
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs.mapreduce;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.mahout.classifier.chi_rwcs.data.DataConverter;
+import org.apache.mahout.classifier.chi_rwcs.data.Instance;
+
+/**
+ * Converts the records of a map task on a background thread, while the task thread consumes the converted rows.
+ * The task thread reads the records of the context itself, a chunk of lines at a time, and hands the lines to
+ * the background thread, which only parses them: the context, its record reader and its reporter are only used
+ * by the task thread. At most {@link Builder#getPrefetchRows} rows are read ahead. Empty lines are skipped.
+ */
+public class PrefetchingReader {
+
+  public static final String COUNTER_GROUP = "ChiCS Prefetching";
+
+  private static final int CHUNK_SIZE = 128;
+
+  /**
+   * A converted record
+   */
+  public static final class Row {
+    private final long key;
+    private final Instance instance;
+
+    private Row(long key, Instance instance) {
+      this.key = key;
+      this.instance = instance;
+    }
+
+    /**
+     * @return offset of the line in the file
+     */
+    public long getKey() {
+      return key;
+    }
+
+    /**
+     * @return converted line, null if it has missing values
+     */
+    public Instance getInstance() {
+      return instance;
+    }
+  }
+
+  private final MapContext<LongWritable,Text,?,?> context;
+  private final DataConverter converter;
+  private final ExecutorService converterThread;
+  /** chunks handed to the background thread, in the order of the input */
+  private final Queue<Future<Row[]>> pending = Lists.newLinkedList();
+  private final int maxPending;
+  private boolean endOfInput;
+  private long firstKey = -1;
+
+  private Row[] chunk;
+  private int position;
+
+  private long numRows;
+  private long numTakes;
+  private long depthSum;
+  private long consumerStallNanos;
+  private long readNanos;
+
+  public PrefetchingReader(MapContext<LongWritable,Text,?,?> context, DataConverter converter, int prefetchRows) {
+    this.context = context;
+    this.converter = converter;
+    maxPending = Math.max(1, prefetchRows / CHUNK_SIZE);
+    converterThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ChiCS prefetching converter");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * @return the next row, null at the end of the input
+   * @throws IOException
+   *           if the records could not be read, or the background thread failed to convert one
+   */
+  public Row next() throws IOException, InterruptedException {
+    while (chunk == null || position == chunk.length) {
+      fill();
+      if (pending.isEmpty()) {
+        return null;
+      }
+      depthSum += pending.size();
+      numTakes++;
+      long start = System.nanoTime();
+      try {
+        chunk = pending.remove().get();
+      } catch (ExecutionException e) {
+        throw new IOException("Prefetching reader failed to convert a record", e.getCause());
+      }
+      consumerStallNanos += System.nanoTime() - start;
+      position = 0;
+    }
+    numRows++;
+    return chunk[position++];
+  }
+
+  /**
+   * @return the offset of the first record of the split, empty lines included, -1 if the split has no record.
+   *         Known once {@link #next()} has been called
+   */
+  public long getFirstKey() {
+    return firstKey;
+  }
+
+  /**
+   * Reads the records of the context on the calling thread, the task thread, until the background thread has
+   * as many chunks as allowed to convert
+   */
+  private void fill() throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    while (!endOfInput && pending.size() < maxPending) {
+      long[] keys = new long[CHUNK_SIZE];
+      String[] lines = new String[CHUNK_SIZE];
+      int size = 0;
+      while (size < CHUNK_SIZE) {
+        if (!context.nextKeyValue()) {
+          endOfInput = true;
+          break;
+        }
+        long key = context.getCurrentKey().get();
+        if (firstKey < 0) {
+          firstKey = key;
+        }
+        String line = context.getCurrentValue().toString();
+        if (!line.isEmpty()) {
+          keys[size] = key;
+          lines[size++] = line;
+        }
+      }
+      if (size > 0) {
+        pending.add(converterThread.submit(new Converter(keys, lines, size)));
+      }
+    }
+    readNanos += System.nanoTime() - start;
+  }
+
+  /**
+   * Parses a chunk of lines, on the background thread
+   */
+  private final class Converter implements Callable<Row[]> {
+    private final long[] keys;
+    private final String[] lines;
+    private final int size;
+
+    private Converter(long[] keys, String[] lines, int size) {
+      this.keys = keys;
+      this.lines = lines;
+      this.size = size;
+    }
+
+    @Override
+    public Row[] call() {
+      Row[] rows = new Row[size];
+      for (int i = 0; i < size; i++) {
+        rows[i] = new Row(keys[i], converter.convert(lines[i]));
+      }
+      return rows;
+    }
+  }
+
+  /**
+   * Stops the background thread and reports the counters of the prefetching: rows, the sum of the number of
+   * chunks read ahead seen by the chunk takes and the number of takes, the time the task thread waited for
+   * converted rows (conversion bound) and the time it spent reading the records. The counters are summed over
+   * the tasks, so they are raw sums: the mean read ahead of the job is the depth sum divided by the takes
+   */
+  public void close(TaskInputOutputContext<?,?,?,?> context) {
+    converterThread.shutdownNow();
+    context.getCounter(COUNTER_GROUP, "Rows").increment(numRows);
+    context.getCounter(COUNTER_GROUP, "Queue depth sum").increment(depthSum);
+    context.getCounter(COUNTER_GROUP, "Chunk takes").increment(numTakes);
+    context.getCounter(COUNTER_GROUP, "Consumer stall (ms)").increment(consumerStallNanos / 1000000L);
+    context.getCounter(COUNTER_GROUP, "Read (ms)").increment(readNanos / 1000000L);
+  }
+}
@@ -0,0 +1,478 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs.mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.mahout.classifier.chi_rwcs.Chi_RWCSUtils;
+import org.apache.mahout.classifier.chi_rwcs.Rule;
+import org.apache.mahout.classifier.chi_rwcs.RuleBase;
+import org.apache.mahout.classifier.chi_rwcs.RuleBaseReader;
+import org.apache.mahout.classifier.chi_rwcs.data.DataConverter;
+import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
+import org.apache.mahout.classifier.chi_rwcs.data.Instance;
+import org.apache.mahout.common.HadoopUtil;
+import org.apache.mahout.common.Pair;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mapreduce implementation that classifies the input data with a model too big for the heap of the map tasks.
+ * The rule base is partitioned into shards, by class or by antecedent. Every split of the data is read once per
+ * shard, by a mapper that loads only this shard and outputs, for each example, the winning rule or the class
+ * degrees of the shard. The reducer combines them into the decision of {@link RuleBase#FRM}.<br>
+ * With the winning rule FRM the predictions are the same as {@link Chi_RWCSClassifier}, ties included. With
+ * the additive combination the class degrees are summed per shard, so sharding by class keeps them exact, while
+ * sharding by antecedent may change the last bits of the sums.
+ */
+public class ShardedClassifier {
+
+  private static final Logger log = LoggerFactory.getLogger(ShardedClassifier.class);
+
+  /** largest number of rules of a record of a shard */
+  static final int SHARD_CHUNK_SIZE = 10000;
+
+  private final Path modelPath;
+  private final Path inputPath;
+  private final Path datasetPath;
+  private final Configuration conf;
+  private final Path outputPath;
+  private final Path shardsPath;
+  private final Path reducersOutputPath;
+  private final int numShards;
+  private final boolean byClass;
+  private double[][] results;
+
+  public double[][] getResults() {
+    return results;
+  }
+
+  /**
+   * @param numShards
+   *          number of shards of the rule base
+   * @param byClass
+   *          if true the rules of a class are in the same shard, else the rules are spread by antecedent
+   */
+  public ShardedClassifier(Path modelPath, Path inputPath, Path datasetPath, Path outputPath, Configuration conf,
+                           int numShards, boolean byClass) {
+    this.modelPath = modelPath;
+    this.inputPath = inputPath;
+    this.datasetPath = datasetPath;
+    this.outputPath = outputPath;
+    this.conf = conf;
+    this.numShards = numShards;
+    this.byClass = byClass;
+    shardsPath = new Path(outputPath, "shards");
+    reducersOutputPath = new Path(outputPath, "reducers");
+  }
+
+  private void configureJob(Job job) throws IOException {
+    job.setJarByClass(ShardedClassifier.class);
+
+    FileInputFormat.setInputPaths(job, inputPath);
+    FileOutputFormat.setOutputPath(job, reducersOutputPath);
+
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(ShardOutput.class);
+    job.setOutputKeyClass(DoubleWritable.class);
+    job.setOutputValueClass(Text.class);
+
+    job.setMapperClass(ShardMapper.class);
+    job.setReducerClass(ShardReducer.class);
+
+    job.setInputFormatClass(ShardInputFormat.class);
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+  }
+
+  public void run() throws IOException, ClassNotFoundException, InterruptedException {
+    FileSystem fs = FileSystem.get(conf);
+
+    // check the output
+    if (fs.exists(outputPath)) {
+      throw new IOException("Output path already exists : " + outputPath);
+    }
+
+    log.info("ChiCS: Partitioning the model into {} shards", numShards);
+    writeShards(conf, modelPath, shardsPath, numShards, byClass);
+
+    conf.set("mahout.fc.dataset", datasetPath.toString());
+    conf.set("mahout.fc.shards", shardsPath.toString());
+    conf.setInt("mahout.fc.shards.num", numShards);
+
+    Job job = new Job(conf, "Chi_RWCS sharded classifier");
+
+    log.info("ChiCS: Configuring the job...");
+    configureJob(job);
+
+    log.info("ChiCS: Running the job...");
+    if (!job.waitForCompletion(true)) {
+      throw new IllegalStateException("ChiCS: Job failed!");
+    }
+
+    parseOutput(job);
+
+    HadoopUtil.delete(conf, reducersOutputPath);
+    HadoopUtil.delete(conf, shardsPath);
+  }
+
+  /**
+   * Writes the shards of the rule base, reading the rules one at a time: each rule is appended to the chunk of
+   * its shard, and a full chunk is written as a record of the shard's SequenceFile, so at most
+   * {@link #SHARD_CHUNK_SIZE} rules per shard are in memory. Each shard is stored with the index of its rules
+   * in the rule base, which settles the ties between shards as {@link RuleBase#FRM} does
+   */
+  static void writeShards(Configuration conf, Path modelPath, Path shardsPath, int numShards, boolean byClass)
+    throws IOException {
+    FileSystem fs = shardsPath.getFileSystem(conf);
+    RuleBaseReader rules = new RuleBaseReader(conf, modelPath);
+    SequenceFile.Writer[] writers = new SequenceFile.Writer[numShards];
+    FSDataOutputStream[] indexes = new FSDataOutputStream[numShards];
+    RuleBase[] chunks = new RuleBase[numShards];
+    int[] sizes = new int[numShards];
+    LongWritable id = new LongWritable(1);
+    try {
+      RuleBase header = rules.getHeader();
+      for (int s = 0; s < numShards; s++) {
+        writers[s] = SequenceFile.createWriter(fs, conf, shardPath(shardsPath, s), LongWritable.class,
+            RuleBase.class);
+        indexes[s] = fs.create(shardPath(shardsPath, s).suffix(".index"));
+        chunks[s] = newChunk(header);
+      }
+
+      int i = 0;
+      while (rules.hasNext()) {
+        Rule rule = rules.next();
+        int shard = byClass ? rule.getClas() % numShards : (antecedentHash(rule) & Integer.MAX_VALUE) % numShards;
+        chunks[shard].add(rule);
+        indexes[shard].writeInt(i++);
+        sizes[shard]++;
+        if (chunks[shard].size() == SHARD_CHUNK_SIZE) {
+          writers[shard].append(id, chunks[shard]);
+          chunks[shard] = newChunk(header);
+        }
+      }
+
+      for (int s = 0; s < numShards; s++) {
+        // an empty shard still holds the parameters of the rule base
+        if (chunks[s].size() > 0 || sizes[s] == 0) {
+          writers[s].append(id, chunks[s]);
+        }
+        writers[s].close();
+        indexes[s].close();
+        log.info("ChiCS: shard {}: {} rules", s, sizes[s]);
+      }
+    } finally {
+      rules.close();
+      for (int s = 0; s < numShards; s++) {
+        Closeables.closeQuietly(writers[s]);
+        Closeables.closeQuietly(indexes[s]);
+      }
+    }
+  }
+
+  private static RuleBase newChunk(RuleBase header) {
+    return new RuleBase(header.getDataBase(),
+        header.getInferenceType(),
+        header.getCompatibilityType(),
+        header.getRuleWeight(),
+        header.getNames(),
+        header.getClasses(),
+        header.getPositive_class(),
+        header.getPositive_class_cost(),
+        header.getNegative_class_cost());
+  }
+
+  private static int antecedentHash(Rule rule) {
+    int[] labels = new int[rule.size()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = rule.getLabel(i);
+    }
+    return Arrays.hashCode(labels);
+  }
+
+  static Path shardPath(Path shardsPath, int shard) {
+    return new Path(shardsPath, String.format("shard-%05d", shard));
+  }
+
+  /**
+   * Extract the predictions of the reducers
+   */
+  private void parseOutput(JobContext job) throws IOException {
+    Configuration conf = job.getConfiguration();
+    FileSystem fs = reducersOutputPath.getFileSystem(conf);
+
+    Path[] outfiles = Chi_RWCSUtils.listOutputFiles(fs, reducersOutputPath);
+
+    List<double[]> resList = Lists.newArrayList();
+    FSDataOutputStream ofile = fs.create(new Path(outputPath, "predictions").suffix(".out"));
+    try {
+      for (Path path : outfiles) {
+        for (Pair<DoubleWritable,Text> record : new SequenceFileIterable<DoubleWritable,Text>(path, true, conf)) {
+          String value = record.getSecond().toString();
+          ofile.writeChars(value); // write the prediction
+          ofile.writeChar('\n');
+
+          resList.add(new double[]{record.getFirst().get(), Double.valueOf(value)});
+        }
+      }
+    } finally {
+      Closeables.closeQuietly(ofile);
+    }
+    results = new double[resList.size()][2];
+    resList.toArray(results);
+  }
+
+  /**
+   * Split of the input data, scored against one shard of the rule base
+   */
+  public static class ShardSplit extends FileSplit {
+
+    private int shard;
+
+    public ShardSplit() {
+      super(null, 0, 0, null);
+    }
+
+    public ShardSplit(FileSplit split, int shard) throws IOException {
+      super(split.getPath(), split.getStart(), split.getLength(), split.getLocations());
+      this.shard = shard;
+    }
+
+    public int getShard() {
+      return shard;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      super.write(out);
+      out.writeInt(shard);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      super.readFields(in);
+      shard = in.readInt();
+    }
+  }
+
+  /**
+   * TextInputFormat that gives each split of the data once per shard
+   */
+  public static class ShardInputFormat extends TextInputFormat {
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+      int numShards = job.getConfiguration().getInt("mahout.fc.shards.num", 1);
+      List<InputSplit> splits = Lists.newArrayList();
+      for (InputSplit split : super.getSplits(job)) {
+        for (int s = 0; s < numShards; s++) {
+          splits.add(new ShardSplit((FileSplit) split, s));
+        }
+      }
+      return splits;
+    }
+  }
+
+  /**
+   * Best rule or class degrees of an example for one shard
+   */
+  public static class ShardOutput implements Writable {
+
+    private double label;
+    private double degree;
+    private int clas;
+    private int rule;
+    private double[] classDegrees;
+
+    public ShardOutput() {
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeDouble(label);
+      out.writeDouble(degree);
+      out.writeInt(clas);
+      out.writeInt(rule);
+      Chi_RWCSUtils.writeArray(out, classDegrees == null ? new double[0] : classDegrees);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      label = in.readDouble();
+      degree = in.readDouble();
+      clas = in.readInt();
+      rule = in.readInt();
+      classDegrees = Chi_RWCSUtils.readDoubleArray(in);
+    }
+  }
+
+  public static class ShardMapper extends Mapper<LongWritable, Text, Text, ShardOutput> {
+
+    /** used to convert input values to data instances */
+    private DataConverter converter;
+    private Dataset dataset;
+    private RuleBase shard;
+    private int[] index;
+    private String file;
+    private final Text lkey = new Text();
+    private final ShardOutput lvalue = new ShardOutput();
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+      super.setup(context);
+
+      Configuration conf = context.getConfiguration();
+
+      dataset = Dataset.load(conf, new Path(conf.get("mahout.fc.dataset")));
+      converter = new DataConverter(dataset);
+
+      ShardSplit split = (ShardSplit) context.getInputSplit();
+      file = split.getPath().toString();
+      Path shardPath = shardPath(new Path(conf.get("mahout.fc.shards")), split.getShard());
+      shard = RuleBase.load(conf, shardPath);
+      if (shard == null) {
+        throw new InterruptedException("Model not found!");
+      }
+
+      // the index of each rule of the shard, in the order of the rules
+      FileSystem fs = shardPath.getFileSystem(conf);
+      FSDataInputStream in = fs.open(shardPath.suffix(".index"));
+      try {
+        index = new int[shard.size()];
+        for (int i = 0; i < index.length; i++) {
+          index[i] = in.readInt();
+        }
+      } finally {
+        Closeables.closeQuietly(in);
+      }
+    }
+
+    @Override
+    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+      String line = value.toString();
+      if (line.isEmpty()) {
+        return;
+      }
+      Instance instance = converter.convert(line);
+      if (instance == null) {
+        return;
+      }
+
+      double[] example = instance.get();
+      lvalue.label = dataset.getLabel(instance);
+      if (shard.getInferenceType() == BuildModel.WINNING_RULE) {
+        lvalue.degree = 0.0;
+        lvalue.clas = -1;
+        lvalue.rule = -1;
+        lvalue.classDegrees = null;
+        // first rule of the shard with the highest degree, as FRM_WR
+        for (int i = 0; i < shard.size(); i++) {
+          Rule rule = shard.get(i);
+          double produc = rule.compatibility(example) * rule.getWeight();
+          if (produc > lvalue.degree) {
+            lvalue.degree = produc;
+            lvalue.clas = rule.getClas();
+            lvalue.rule = index[i];
+          }
+        }
+      } else {
+        lvalue.classDegrees = new double[dataset.nblabels()];
+        for (int i = 0; i < shard.size(); i++) {
+          Rule rule = shard.get(i);
+          lvalue.classDegrees[rule.getClas()] += rule.compatibility(example) * rule.getWeight();
+        }
+      }
+
+      lkey.set(file + ':' + key.get());
+      context.write(lkey, lvalue);
+    }
+  }
+
+  public static class ShardReducer extends Reducer<Text, ShardOutput, DoubleWritable, Text> {
+
+    private final DoubleWritable lkey = new DoubleWritable();
+    private final Text lvalue = new Text();
+
+    @Override
+    protected void reduce(Text key, Iterable<ShardOutput> values, Context context)
+      throws IOException, InterruptedException {
+      double label = 0.0;
+      double max = 0.0;
+      int clas = -1;
+      int rule = Integer.MAX_VALUE;
+      double[] classDegrees = null;
+
+      for (ShardOutput value : values) {
+        label = value.label;
+        if (value.classDegrees.length == 0) {
+          // winning rule: the highest degree, and the first rule of the rule base on ties
+          if (value.clas >= 0 && (value.degree > max || (value.degree == max && value.rule < rule))) {
+            max = value.degree;
+            clas = value.clas;
+            rule = value.rule;
+          }
+        } else {
+          if (classDegrees == null) {
+            classDegrees = new double[value.classDegrees.length];
+          }
+          for (int l = 0; l < classDegrees.length; l++) {
+            classDegrees[l] += value.classDegrees[l];
+          }
+        }
+      }
+
+      if (classDegrees != null) {
+        for (int l = 0; l < classDegrees.length; l++) {
+          if (classDegrees[l] > max) {
+            max = classDegrees[l];
+            clas = l;
+          }
+        }
+      }
+
+      lkey.set(label);
+      lvalue.set(Double.toString(clas >= 0 ? clas : Double.NaN));
+      context.write(lkey, lvalue);
+    }
+  }
+}
@@ -39,6 +39,7 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.mahout.common.CommandLineUtil;
+import org.apache.mahout.common.HadoopUtil;
 import org.apache.mahout.common.commandline.DefaultOptionCreator;
 import org.apache.mahout.classifier.chi_rwcs.Chi_RWCSUtils;
 import org.apache.mahout.classifier.ResultAnalyzer;
@@ -62,7 +63,16 @@ public class TestModel extends Configured implements Tool{
   private FileSystem outFS;
   private Path outputPath; // path to predictions file, if null do not output the predictions
   private String dataName;
+  private int numShards = 1; // shards of the rule base, 1 to load the whole model in each mapper
+  private boolean shardByClass = true;
+  private boolean floatPrecision; // classify in single precision
+  private boolean checkFloat; // compare the single precision predictions with the double precision ones
   private long time;
+  
+  /**
+   * Largest fraction of the predictions that may change when classifying in single precision
+   */
+  public static final double FLOAT_TOLERANCE = 0.001;
 	  
   @Override
   public int run(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
@@ -83,10 +93,27 @@ public class TestModel extends Configured implements Tool{
 
 	Option outputOpt = DefaultOptionCreator.outputOption().create();
 
+	Option shardsOpt = obuilder.withLongName("shards").withShortName("sh").withRequired(false).withArgument(
+	        abuilder.withName("shards").withMinimum(1).withMaximum(1).create()).
+	        withDescription("Number of shards of the model, for models that do not fit in a mapper").create();
+
+	Option shardByOpt = obuilder.withLongName("shard_by").withShortName("sb").withRequired(false).withArgument(
+	        abuilder.withName("shard_by").withMinimum(1).withMaximum(1).create()).
+	        withDescription("Partition of the rules into shards: class (default) or antecedent").create();
+
+	Option floatOpt = obuilder.withLongName("float").withShortName("fl").withRequired(false).
+	        withDescription("Classify in single precision, not with --shards").create();
+
+	Option checkFloatOpt = obuilder.withLongName("check_float").withShortName("cf").withRequired(false).
+	        withDescription("Classify in single and double precision and compare the AUC, the GM and the predictions,"
+	            + " not with --shards")
+	        .create();
+
 	Option helpOpt = DefaultOptionCreator.helpOption();
 
 	Group group = gbuilder.withName("Options").withOption(inputOpt).withOption(datasetOpt).withOption(modelOpt)
-	        .withOption(outputOpt).withOption(helpOpt).create();
+	        .withOption(outputOpt).withOption(shardsOpt).withOption(shardByOpt).withOption(floatOpt)
+	        .withOption(checkFloatOpt).withOption(helpOpt).create();
 
 	try {
 	  Parser parser = new Parser();
@@ -103,6 +130,15 @@ public class TestModel extends Configured implements Tool{
 	  String modelName = cmdLine.getValue(modelOpt).toString();
 	  String outputName = cmdLine.hasOption(outputOpt) ? cmdLine.getValue(outputOpt).toString() : null;
 	  
+	  if (cmdLine.hasOption(shardsOpt)) {
+	    numShards = Integer.parseInt(cmdLine.getValue(shardsOpt).toString());
+	  }
+	  if (cmdLine.hasOption(shardByOpt)) {
+	    shardByClass = !"antecedent".equalsIgnoreCase(cmdLine.getValue(shardByOpt).toString());
+	  }
+	  checkFloat = cmdLine.hasOption(checkFloatOpt);
+	  floatPrecision = checkFloat || cmdLine.hasOption(floatOpt);
+	  
 	  if (log.isDebugEnabled()) {
 	    log.debug("inout     : {}", dataName);
 	    log.debug("dataset   : {}", datasetName);
@@ -127,16 +163,19 @@ public class TestModel extends Configured implements Tool{
 	    
 	time = System.currentTimeMillis();
 	    
-	testModel();
+	boolean passed = testModel();
 	    
 	time = System.currentTimeMillis() - time;
 	    
 	writeToFileClassifyTime(Chi_RWCSUtils.elapsedTime(time));
 
-    return 0;
+    return passed ? 0 : -1;
   }
   
-  private void testModel() throws IOException, ClassNotFoundException, InterruptedException {
+  /**
+   * @return false if the single precision check failed
+   */
+  private boolean testModel() throws IOException, ClassNotFoundException, InterruptedException {
 	  
 	// make sure the output file does not exist
 	if (outputPath != null) {
@@ -161,29 +200,119 @@ public class TestModel extends Configured implements Tool{
     if (outputPath == null) {
       throw new IllegalArgumentException("You must specify the ouputPath when using the mapreduce implementation");
     }
-        
-    Chi_RWCSClassifier classifier = new Chi_RWCSClassifier(modelPath, dataPath, datasetPath, outputPath, getConf());
-    classifier.run();
     
-    double[][] results = classifier.getResults();
+    // the shard mappers score the rule objects, in double precision only
+    if (numShards > 1 && floatPrecision) {
+      throw new IllegalArgumentException("Single precision (--float, --check_float) is not supported with --shards");
+    }
+        
+    double[][] results;
+    if (numShards > 1) {
+      ShardedClassifier classifier = new ShardedClassifier(modelPath, dataPath, datasetPath, outputPath, getConf(),
+          numShards, shardByClass);
+      classifier.run();
+      results = classifier.getResults();
+    } else {
+      Configuration conf = new Configuration(getConf());
+      conf.setBoolean("mahout.fc.float", floatPrecision);
+      Chi_RWCSClassifier classifier = new Chi_RWCSClassifier(modelPath, dataPath, datasetPath, outputPath, conf);
+      classifier.run();
+      results = classifier.getResults();
+    }
+
+    boolean passed = true;
     if (results != null) {
       writePredictions(results);
       Dataset dataset = Dataset.load(getConf(), datasetPath);      
-      ResultAnalyzer analyzer = new ResultAnalyzer(Arrays.asList(dataset.labels()), "unknown");
-      for (double[] res : results) {
-        analyzer.addInstance(dataset.getLabelString(res[0]), new ClassifierResult(dataset.getLabelString(res[1]), 1.0));
-      }          
+      ResultAnalyzer analyzer = analyze(dataset, results);
       parseOutput(analyzer);
+      if (checkFloat) {
+        passed = checkFloatPrecision(dataset, results, analyzer);
+      }
     } 
+    return passed;
   }
   
-  private void parseOutput(ResultAnalyzer analyzer) throws IOException {
+  /**
+   * Classifies the data again in double precision and writes the comparison of the AUC, the GM and the
+   * predictions with the single precision ones
+   * 
+   * @return true if at most {@link #FLOAT_TOLERANCE} of the predictions changed
+   */
+  private boolean checkFloatPrecision(Dataset dataset, double[][] floatResults, ResultAnalyzer floatAnalyzer)
+    throws IOException, ClassNotFoundException, InterruptedException {
+    Path doublePath = new Path(outputPath, "double");
+    Configuration conf = new Configuration(getConf());
+    conf.setBoolean("mahout.fc.float", false);
+    Chi_RWCSClassifier classifier = new Chi_RWCSClassifier(modelPath, dataPath, datasetPath, doublePath, conf);
+    classifier.run();
+    double[][] doubleResults = classifier.getResults();
+    HadoopUtil.delete(getConf(), doublePath);
+    
+    int changed = 0;
+    for (int i = 0; i < floatResults.length; i++) {
+      if (Double.compare(floatResults[i][1], doubleResults[i][1]) != 0) {
+        changed++;
+      }
+    }
+    double rate = floatResults.length == 0 ? 0.0 : (double) changed / floatResults.length;
+    
+    int[][] floatMatrix = floatAnalyzer.getConfusionMatrix().getConfusionMatrix();
+    int[][] doubleMatrix = analyze(dataset, doubleResults).getConfusionMatrix().getConfusionMatrix();
     NumberFormat decimalFormatter = new DecimalFormat("0.########");
-	outFS = outputPath.getFileSystem(getConf());
-	FSDataOutputStream ofile = null;
+    StringBuilder returnString = new StringBuilder(400);
+    returnString.append("=======================================================").append('\n');
+    returnString.append("Single Precision Check\n");
+    returnString.append("-------------------------------------------------------").append('\n');
+    returnString.append("AUC double / float: ").append(decimalFormatter.format(computeAuc(doubleMatrix)))
+        .append(" / ").append(decimalFormatter.format(computeAuc(floatMatrix))).append('\n');
+    returnString.append("GM double / float: ").append(decimalFormatter.format(computeGM(doubleMatrix)))
+        .append(" / ").append(decimalFormatter.format(computeGM(floatMatrix))).append('\n');
+    returnString.append("Predictions changed: ").append(changed).append(" of ").append(floatResults.length)
+        .append(" (tolerance ").append(decimalFormatter.format(FLOAT_TOLERANCE * 100)).append("%)\n");
+    returnString.append("-------------------------------------------------------").append('\n');
+    String output = returnString.toString();
+    
+    FSDataOutputStream ofile = outFS.create(new Path(outputPath, "precision_check").suffix(".txt"));
+    try {
+      ofile.writeBytes(output);
+    } finally {
+      Closeables.closeQuietly(ofile);
+    }
+    
+    if (rate > FLOAT_TOLERANCE) {
+      log.error("Single precision changed {} of {} predictions\n{}", new Object[] {changed, floatResults.length, output});
+      return false;
+    }
+    log.info("Single precision check\n{}", output);
+    return true;
+  }
+  
+  /**
+   * Builds the confusion matrix of the results returned by {@link Chi_RWCSClassifier#getResults()}
+   */
+  public static ResultAnalyzer analyze(Dataset dataset, double[][] results) {
+    ResultAnalyzer analyzer = new ResultAnalyzer(Arrays.asList(dataset.labels()), "unknown");
+    for (double[] res : results) {
+      analyzer.addInstance(dataset.getLabelString(res[0]), new ClassifierResult(dataset.getLabelString(res[1]), 1.0));
+    }
+    return analyzer;
+  }
+  
+  private void parseOutput(ResultAnalyzer analyzer) throws IOException {
 	int pos=dataName.indexOf('t');
 	String subStr=dataName.substring(0, pos);
 	Path filenamePath = new Path(outputPath, subStr + "_confusion_matrix").suffix(".txt");
+	writeConfusionMatrix(getConf(), filenamePath, analyzer);
+  }
+  
+  /**
+   * Writes the confusion matrix of the analyzer, with its AUC and GM
+   */
+  public static void writeConfusionMatrix(Configuration conf, Path filenamePath, ResultAnalyzer analyzer) throws IOException {
+    NumberFormat decimalFormatter = new DecimalFormat("0.########");
+	FileSystem outFS = filenamePath.getFileSystem(conf);
+	FSDataOutputStream ofile = null;
     try    
     {	        	
       if (ofile == null) {
@@ -219,7 +348,7 @@ public class TestModel extends Configured implements Tool{
     }
   } 
 	 
-  private double computeAuc(int [][] matrix){
+  public static double computeAuc(int [][] matrix){
     int [] classesDistribution = new int [matrix.length-1];  
 	for(int i=0; i< matrix.length-1; i++){
       for(int j=0; j< matrix[i].length-1; j++){	          	          
@@ -247,7 +376,7 @@ public class TestModel extends Configured implements Tool{
 	return ((1+tp_rate-fp_rate)/2);
   }
 	  
-  private double computeGM(int [][] matrix){
+  public static double computeGM(int [][] matrix){
     int [] classesDistribution = new int [matrix.length-1];  
 	for(int i=0; i< matrix.length-1; i++){
 	  for(int j=0; j< matrix[i].length-1; j++){	          	          
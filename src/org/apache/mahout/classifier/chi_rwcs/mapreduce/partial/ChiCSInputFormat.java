@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs.mapreduce.partial;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.mahout.classifier.chi_rwcs.DataBase;
+import org.apache.mahout.classifier.chi_rwcs.RuleBaseMerger;
+import org.apache.mahout.classifier.chi_rwcs.builder.Fuzzy_ChiCSBuilder;
+import org.apache.mahout.classifier.chi_rwcs.data.Data;
+import org.apache.mahout.classifier.chi_rwcs.data.DataConverter;
+import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
+import org.apache.mahout.classifier.chi_rwcs.data.Instance;
+import org.apache.mahout.classifier.chi_rwcs.mapreduce.Builder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TextInputFormat that sizes the splits of the {@link PartialBuilder} so that each {@link ChiCSMapper} fills,
+ * without overflowing, the heap of its task. A sample of the data gives the average size of a line and the
+ * ratio of distinct antecedents per instance; the heap used per instance and per rule is estimated from the
+ * number of attributes and labels. The splits are also small enough to give work to all the map slots, and
+ * are returned largest first.
+ */
+public class ChiCSInputFormat extends TextInputFormat {
+
+  private static final Logger log = LoggerFactory.getLogger(ChiCSInputFormat.class);
+
+  private static final Pattern XMX = Pattern.compile("-Xmx(\\d+)([kKmMgG]?)");
+
+  /** fraction of the heap that the instances and rules of a split may use */
+  private static final double HEAP_FRACTION = 0.6;
+
+  /** FileInputFormat lets the last split of a file grow up to this factor */
+  private static final double SPLIT_SLOP = 1.1;
+
+  private static final int SAMPLE_SIZE = 1000;
+
+  private long plannedSplitSize;
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    Configuration conf = job.getConfiguration();
+    List<FileStatus> files = listStatus(job);
+
+    long totalSize = 0;
+    for (FileStatus file : files) {
+      totalSize += file.getLen();
+    }
+
+    plannedSplitSize = planSplitSize(conf, files, totalSize);
+
+    List<InputSplit> splits = super.getSplits(job);
+    InputSplit[] sorted = splits.toArray(new InputSplit[splits.size()]);
+    Builder.sortSplits(sorted);
+    log.info("{} splits of {} bytes", sorted.length, plannedSplitSize);
+    return Lists.newArrayList(Arrays.asList(sorted));
+  }
+
+  @Override
+  protected long computeSplitSize(long blockSize, long minSize, long maxSize) {
+    return plannedSplitSize;
+  }
+
+  private static long planSplitSize(Configuration conf, List<FileStatus> files, long totalSize) throws IOException {
+    Dataset dataset = Builder.loadDataset(conf);
+    Fuzzy_ChiCSBuilder fuzzy_ChiCSBuilder = Builder.getFuzzy_ChiCSBuilder(conf);
+    int nInputs = dataset.nbAttributes() - 1;
+
+    DataBase dataBase = fuzzy_ChiCSBuilder.getDataBase();
+    if (dataBase == null) {
+      dataBase = new DataBase(nInputs, fuzzy_ChiCSBuilder.getNLabels(), dataset.getRanges(),
+          new Data(dataset).getNames());
+    }
+
+    // sample the beginning of the first file
+    DataConverter converter = new DataConverter(dataset);
+    Set<List<Integer>> antecedents = Sets.newHashSet();
+    long sampledBytes = 0;
+    int sampled = 0;
+    Path path = files.get(0).getPath();
+    FileSystem fs = path.getFileSystem(conf);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), Charsets.UTF_8));
+    try {
+      String line;
+      while (sampled < SAMPLE_SIZE && (line = reader.readLine()) != null) {
+        sampledBytes += line.length() + 1;
+        Instance instance = line.isEmpty() ? null : converter.convert(line);
+        if (instance != null) {
+          antecedents.add(bestAntecedent(dataBase, instance.get()));
+          sampled++;
+        }
+      }
+    } finally {
+      Closeables.closeQuietly(reader);
+    }
+    if (sampled == 0) {
+      return Math.max(1, totalSize);
+    }
+
+    double bytesPerInstance = (double) sampledBytes / sampled;
+    double rulesPerInstance = (double) antecedents.size() / sampled;
+    long instanceSize = estimatedInstanceSize(dataset.nbAttributes());
+    long ruleSize = RuleBaseMerger.estimatedRuleSize(nInputs);
+
+    // every mapper also loads the whole training data to compute the class costs
+    long budget = (long) (getMapHeapSize(conf) * HEAP_FRACTION) - (long) dataset.nbInstances() * instanceSize;
+    if (budget <= 0) {
+      log.warn("The training data does not fit in the heap of the mappers");
+      budget = instanceSize + ruleSize;
+    }
+    double instancesPerSplit = budget / (instanceSize + rulesPerInstance * ruleSize);
+    long heapSplitSize = (long) (instancesPerSplit * bytesPerInstance / SPLIT_SLOP);
+
+    // give work to every map slot, in full waves
+    int slots = getMapSlots(conf);
+    long numSplits = Math.max(slots, (totalSize + heapSplitSize - 1) / Math.max(1, heapSplitSize));
+    numSplits = ((numSplits + slots - 1) / slots) * slots;
+    long splitSize = Math.max(1, (totalSize + numSplits - 1) / numSplits);
+
+    log.info("bytes/instance: {}, rules/instance: {}, instance size: {}, rule size: {}",
+        new Object[] {bytesPerInstance, rulesPerInstance, instanceSize, ruleSize});
+    log.info("heap split size: {}, map slots: {}, split size: {}", new Object[] {heapSplitSize, slots, splitSize});
+    return splitSize;
+  }
+
+  /**
+   * Labels of the antecedent of the rule generated by an example, as done by the rule base
+   */
+  private static List<Integer> bestAntecedent(DataBase dataBase, double[] example) {
+    List<Integer> labels = Lists.newArrayListWithCapacity(dataBase.numVariables());
+    for (int i = 0; i < dataBase.numVariables(); i++) {
+      double max = 0.0;
+      int etq = -1;
+      for (int j = 0; j < dataBase.numLabels(); j++) {
+        double per = dataBase.membershipFunction(i, j, example[i]);
+        if (per > max) {
+          max = per;
+          etq = j;
+        }
+      }
+      labels.add(etq);
+    }
+    return labels;
+  }
+
+  /**
+   * Estimates the heap used by one instance of the training data
+   *
+   * @param nbAttributes
+   *          number of attributes, label included
+   * @return estimated number of bytes
+   */
+  public static long estimatedInstanceSize(int nbAttributes) {
+    // list reference, Instance, DenseVector and its double[]
+    return 8L + 16L + 32L + (16L + 8L * nbAttributes);
+  }
+
+  /**
+   * Return the heap of the map tasks, "mahout.fc.map.heap.mb" if set, else the -Xmx of the map child JVM
+   */
+  static long getMapHeapSize(Configuration conf) {
+    long heapMb = conf.getLong("mahout.fc.map.heap.mb", -1);
+    if (heapMb > 0) {
+      return heapMb * 1024L * 1024L;
+    }
+
+    String opts = conf.get("mapred.map.child.java.opts", conf.get("mapred.child.java.opts", "-Xmx200m"));
+    Matcher matcher = XMX.matcher(opts);
+    long heap = 200L * 1024L * 1024L;
+    if (matcher.find()) {
+      heap = Long.parseLong(matcher.group(1));
+      String unit = matcher.group(2).toLowerCase();
+      if ("k".equals(unit)) {
+        heap *= 1024L;
+      } else if ("m".equals(unit)) {
+        heap *= 1024L * 1024L;
+      } else if ("g".equals(unit)) {
+        heap *= 1024L * 1024L * 1024L;
+      }
+    }
+    return heap;
+  }
+
+  /**
+   * Return the number of map tasks that can run at once ("mahout.fc.map.slots"), by default the number of maps
+   * requested for the job
+   */
+  static int getMapSlots(Configuration conf) {
+    return Math.max(1, conf.getInt("mahout.fc.map.slots", Builder.getNumMaps(conf)));
+  }
+}
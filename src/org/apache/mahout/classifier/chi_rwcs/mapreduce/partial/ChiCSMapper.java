@@ -27,22 +27,28 @@ import org.apache.mahout.classifier.chi_rwcs.RuleBase;
 import org.apache.mahout.classifier.chi_rwcs.mapreduce.MapredOutput;
 import org.apache.mahout.classifier.chi_rwcs.mapreduce.Builder;
 import org.apache.mahout.classifier.chi_rwcs.mapreduce.MapredMapper;
+import org.apache.mahout.classifier.chi_rwcs.mapreduce.PrefetchingReader;
 import org.apache.mahout.classifier.chi_rwcs.data.Data;
 import org.apache.mahout.classifier.chi_rwcs.data.DataConverter;
 import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
 import org.apache.mahout.classifier.chi_rwcs.data.Instance;
 import org.apache.mahout.classifier.chi_rwcs.data.DataLoader;
+import org.apache.mahout.common.RandomUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 
 public class ChiCSMapper extends MapredMapper<LongWritable,Text,LongWritable,MapredOutput> {
   
   private static final Logger log = LoggerFactory.getLogger(ChiCSMapper.class);
   
+  /** seed of the sampling when no random seed is given in the job */
+  private static final long DEFAULT_SEED = 1L;
+  
   /** used to convert input values to data instances */
   private DataConverter converter;
   
@@ -60,6 +66,15 @@ public class ChiCSMapper extends MapredMapper<LongWritable,Text,LongWritable,Map
   double negative_class_cost = 1.0;
   double positive_class_cost;    
   
+  /** rate at which the instances of the non positive classes are kept */
+  private double samplingRate = 1.0;
+  
+  /** used to subsample the non positive classes, null if all the instances are kept */
+  private Random rng;
+  
+  /** number of instances discarded by the subsampling */
+  private long numDiscarded;
+  
   public int getFirstTreeId() {
     return firstId;
   }
@@ -70,7 +85,7 @@ public class ChiCSMapper extends MapredMapper<LongWritable,Text,LongWritable,Map
   private static Data loadData(Configuration conf, Dataset dataset) throws IOException {
     Path dataPath = Builder.getDistributedCacheFile(conf, 1);
     FileSystem fs = FileSystem.get(dataPath.toUri(), conf);
-    return DataLoader.loadData(dataset, fs, dataPath);
+    return DataLoader.loadData(dataset, fs, dataPath, Builder.isFloatPrecision(conf));
   }
   
   @Override
@@ -82,7 +97,30 @@ public class ChiCSMapper extends MapredMapper<LongWritable,Text,LongWritable,Map
     Data data = loadData(conf, getDataset());
     log.info("Data loaded : {} instances", data.size());
     
-    configure(conf.getInt("mapred.task.partition", -1), Builder.getNumMaps(conf), data);
+    configure(conf.getInt("mapred.task.partition", -1), Builder.getNumMaps(conf), data,
+        Builder.isFloatPrecision(conf));
+    
+    Long seed = Builder.getRandomSeed(conf);
+    configureSampling(Builder.getSamplingRate(conf), seed == null ? DEFAULT_SEED : seed);
+  }
+  
+  /**
+   * Keeps all the instances of the positive class and only a fraction of the other instances. The cost of the
+   * negative classes is scaled so that the rule weights stay consistent with the costs of the full data
+   * 
+   * @param samplingRate
+   *          rate at which the instances of the non positive classes are kept
+   * @param seed
+   *          seed of the sampling, combined with the partition
+   */
+  protected void configureSampling(double samplingRate, long seed) {
+    this.samplingRate = samplingRate;
+    if (samplingRate < 1.0) {
+      // each instance kept stands for 1/samplingRate instances of the full data
+      negative_class_cost = 1.0 / samplingRate;
+      rng = RandomUtils.getRandom(seed + partition);
+      log.info("Sampling rate : {}, negative class cost : {}", samplingRate, negative_class_cost);
+    }
   }
   
   /**
@@ -96,7 +134,15 @@ public class ChiCSMapper extends MapredMapper<LongWritable,Text,LongWritable,Map
    *          total number of trees in the forest
    */
   protected void configure(int partition, int numMapTasks, Data data) {
-    converter = new DataConverter(getDataset());
+    configure(partition, numMapTasks, data, false);
+  }
+  
+  /**
+   * @param floatPrecision
+   *          whether the records are converted to single precision instances
+   */
+  protected void configure(int partition, int numMapTasks, Data data, boolean floatPrecision) {
+    converter = new DataConverter(getDataset(), floatPrecision);
 
     // mapper's partition
     Preconditions.checkArgument(partition >= 0, "Wrong partition ID");
@@ -114,10 +160,41 @@ public class ChiCSMapper extends MapredMapper<LongWritable,Text,LongWritable,Map
     log.debug("partition : {}", partition);
   }
   
+  @Override
+  public void run(Context context) throws IOException, InterruptedException {
+    int prefetchRows = Builder.getPrefetchRows(context.getConfiguration());
+    if (prefetchRows <= 0) {
+      super.run(context);
+      return;
+    }
+    
+    setup(context);
+    PrefetchingReader reader = new PrefetchingReader(context, converter, prefetchRows);
+    try {
+      PrefetchingReader.Row row;
+      while ((row = reader.next()) != null) {
+        add(row.getInstance());
+      }
+    } finally {
+      reader.close(context);
+    }
+    cleanup(context);
+  }
+  
   @Override
   protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
 	  
-    instances.add(converter.convert(value.toString()));
+    add(converter.convert(value.toString()));
+  }
+  
+  private void add(Instance instance) {
+    if (rng != null && instance != null
+        && (int) getDataset().getLabel(instance) != positive_class && rng.nextDouble() >= samplingRate) {
+      numDiscarded++;
+      return;
+    }
+    
+    instances.add(instance);
    
   }
   
@@ -125,6 +202,9 @@ public class ChiCSMapper extends MapredMapper<LongWritable,Text,LongWritable,Map
   protected void cleanup(Context context) throws IOException, InterruptedException {
     // prepare the data
     log.debug("partition: {} numInstances: {}", partition, instances.size());
+    if (rng != null) {
+      log.info("partition: {} instances discarded by the sampling: {}", partition, numDiscarded);
+    }
     
     Data data = new Data(getDataset(), instances);
         
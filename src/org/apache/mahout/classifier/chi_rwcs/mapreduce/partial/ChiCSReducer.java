@@ -16,44 +16,85 @@
  */
 package org.apache.mahout.classifier.chi_rwcs.mapreduce.partial;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.classifier.chi_rwcs.Rule;
 import org.apache.mahout.classifier.chi_rwcs.RuleBase;
+import org.apache.mahout.classifier.chi_rwcs.RuleBaseMerger;
+import org.apache.mahout.classifier.chi_rwcs.RuleBaseReader;
+import org.apache.mahout.classifier.chi_rwcs.mapreduce.Builder;
 import org.apache.mahout.classifier.chi_rwcs.mapreduce.MapredOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Merges the rule bases of all the mappers. In an incremental build, the rules of the base model are added first,
+ * so they behave as the rules already present in the rule base. The merge is done by a {@link RuleBaseMerger} that spills to the
+ * local disk when the rules do not fit in the memory budget given by {@link Builder#getMergeBufferSize}. The
+ * final rule base is written in consecutive chunks that share the same parameters, each one holding at most
+ * the number of rules that fit in that budget.
+ */
 public class ChiCSReducer extends Reducer<LongWritable, MapredOutput, LongWritable, RuleBase>{
 	
 	private static final Logger log = LoggerFactory.getLogger(ChiCSReducer.class);
 	
 	public void reduce(LongWritable key, Iterable<MapredOutput> values, Context context) throws IOException, InterruptedException {
 	  LongWritable id = new LongWritable(1);
-      RuleBase actualRuleBase;
-      RuleBase finalRuleBase = new RuleBase();
-    
-      for (MapredOutput value : values){  
-        actualRuleBase = value.getRuleBase();
-	    for(int i = 0 ; i < actualRuleBase.size() ; i++){    	  
-    	  if (finalRuleBase.size() == 0){
-    	    finalRuleBase = new RuleBase(actualRuleBase.getDataBase(), 
-    			  actualRuleBase.getInferenceType(), 
-    			  actualRuleBase.getCompatibilityType(), 
-    			  actualRuleBase.getRuleWeight(), 
-    			  actualRuleBase.getNames(), 
-    			  actualRuleBase.getClasses(),
-    			  actualRuleBase.getPositive_class(),
-    			  actualRuleBase.getPositive_class_cost(),
-    			  actualRuleBase.getNegative_class_cost());
-    	    finalRuleBase.add(actualRuleBase.get(i));      	  
-    	  }else if(!finalRuleBase.duplicated(actualRuleBase.get(i))){
-            finalRuleBase.add(actualRuleBase.get(i));
-          } 
+      RuleBaseMerger merger = new RuleBaseMerger(Builder.getMergeBufferSize(context.getConfiguration()),
+          new File(System.getProperty("java.io.tmpdir")));
+      try {
+        Path baseModelPath = Builder.getBaseModelPath(context.getConfiguration());
+        if (baseModelPath != null) {
+          // one rule at a time, so the base model is held within the merge budget
+          RuleBaseReader baseModel = new RuleBaseReader(context.getConfiguration(), baseModelPath);
+          try {
+            merger.setHeader(baseModel.getHeader());
+            while (baseModel.hasNext()) {
+              merger.add(baseModel.next());
+              if (merger.numRules() % 10000 == 0) {
+                context.progress();
+              }
+            }
+          } finally {
+            baseModel.close();
+          }
+          log.info("Base model added : {} rules", merger.numRules());
+        }
+
+        for (MapredOutput value : values){
+          merger.add(value.getRuleBase());
+          context.progress();
+        }
+
+        RuleBase finalRuleBase = merger.newRuleBase();
+        if (finalRuleBase == null) {
+          log.warn("No rules to merge");
+          return;
+        }
+        log.info("Merging {} rules, {} runs spilled", merger.numRules(), merger.numSpills());
+
+        int maxChunkSize = merger.maxBufferedRules();
+        long numRules = 0;
+        Iterator<Rule> rules = merger.merge();
+        while (rules.hasNext()) {
+          finalRuleBase.add(rules.next());
+          numRules++;
+          if (finalRuleBase.size() >= maxChunkSize && rules.hasNext()) {
+            context.write(id, finalRuleBase);
+            finalRuleBase = merger.newRuleBase();
+            context.progress();
+          }
         }
-  	  }
-    context.write(id, finalRuleBase);
+        context.write(id, finalRuleBase);
+        log.info("Final rule base : {} rules", numRules);
+      } finally {
+        merger.close();
+      }
   }
 
 }
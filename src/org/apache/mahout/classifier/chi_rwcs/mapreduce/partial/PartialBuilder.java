@@ -16,10 +16,8 @@
  */
 package org.apache.mahout.classifier.chi_rwcs.mapreduce.partial;
 
-import com.google.common.base.Preconditions;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.filecache.DistributedCache;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapreduce.Job;
@@ -31,11 +29,8 @@ import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.mahout.classifier.chi_rwcs.*;
 import org.apache.mahout.classifier.chi_rwcs.builder.Fuzzy_ChiCSBuilder;
 import org.apache.mahout.classifier.chi_rwcs.mapreduce.*;
-import org.apache.mahout.common.Pair;
-import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterable;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 /**
  * Builds a model using partial data. Each mapper uses only the data given by its InputSplit
@@ -76,7 +71,11 @@ public class PartialBuilder extends Builder {
     
     job.setNumReduceTasks(1);
     
-    job.setInputFormatClass(TextInputFormat.class);
+    if (isSplitPlanning(conf)) {
+      job.setInputFormatClass(ChiCSInputFormat.class);
+    } else {
+      job.setInputFormatClass(TextInputFormat.class);
+    }
     job.setOutputFormatClass(SequenceFileOutputFormat.class);
   }
   
@@ -90,25 +89,8 @@ public class PartialBuilder extends Builder {
   }
   
   protected RuleBase processOutput(JobContext job, Path outputPath) throws IOException {
-	  
-    Configuration conf = job.getConfiguration();
-
-    FileSystem fs = outputPath.getFileSystem(conf);
-
-    Path[] outfiles = Chi_RWCSUtils.listOutputFiles(fs, outputPath);
-    
-    RuleBase ruleBase = null;
-    
-    // read all the outputs
-    for (Path path : outfiles) {
-      for (Pair<LongWritable,RuleBase> record : new SequenceFileIterable<LongWritable, RuleBase>(path, conf)) {
-    	if(ruleBase == null){
-          ruleBase = record.getSecond();
-    	}
-      }
-    }
-    
-    return ruleBase;
+    // the reducer may have written the rule base in several chunks, load concatenates them
+    return RuleBase.load(job.getConfiguration(), outputPath);
   }
 }
 
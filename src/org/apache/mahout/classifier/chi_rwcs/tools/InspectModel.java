@@ -0,0 +1,341 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs.tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.mahout.classifier.chi_rwcs.Rule;
+import org.apache.mahout.classifier.chi_rwcs.RuleBase;
+import org.apache.mahout.classifier.chi_rwcs.RuleBaseMerger;
+import org.apache.mahout.classifier.chi_rwcs.RuleBaseReader;
+import org.apache.mahout.common.CommandLineUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the rules of a stored model to text, CSV or JSON, optionally filtered by class and weight, and
+ * reports summary statistics of the selected rules: rules per class, weight histogram, label usage per
+ * variable and memory footprint. The model is read with a {@link RuleBaseReader}, so it is never loaded whole.
+ */
+public final class InspectModel {
+
+  private static final Logger log = LoggerFactory.getLogger(InspectModel.class);
+
+  private static final int WEIGHT_BINS = 10;
+
+  private InspectModel() {
+  }
+
+  public static void main(String[] args) throws IOException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option modelOpt = obuilder.withLongName("model").withShortName("m").withRequired(true).withArgument(
+        abuilder.withName("path").withMinimum(1).withMaximum(1).create()).withDescription("Path to the Model")
+        .create();
+
+    Option formatOpt = obuilder.withLongName("format").withShortName("f").withRequired(false).withArgument(
+        abuilder.withName("format").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Format of the rules: text (default), csv, json or none").create();
+
+    Option outputOpt = obuilder.withLongName("output").withShortName("o").withRequired(false).withArgument(
+        abuilder.withName("path").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Output file, the standard output by default").create();
+
+    Option classOpt = obuilder.withLongName("class").withShortName("c").withRequired(false).withArgument(
+        abuilder.withName("class").withMinimum(1).create()).withDescription("Keep only the rules of these classes")
+        .create();
+
+    Option minWeightOpt = obuilder.withLongName("min_weight").withShortName("mw").withRequired(false)
+        .withArgument(abuilder.withName("weight").withMinimum(1).withMaximum(1).create())
+        .withDescription("Keep only the rules with at least this weight").create();
+
+    Option statsOpt = obuilder.withLongName("stats").withShortName("s").withDescription(
+        "Report the statistics of the selected rules").create();
+
+    Option helpOpt = obuilder.withLongName("help").withDescription("Print out help").withShortName("h")
+        .create();
+
+    Group group = gbuilder.withName("Options").withOption(modelOpt).withOption(formatOpt).withOption(outputOpt)
+        .withOption(classOpt).withOption(minWeightOpt).withOption(statsOpt).withOption(helpOpt).create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption(helpOpt)) {
+        CommandLineUtil.printHelp(group);
+        return;
+      }
+
+      Path modelPath = new Path(cmdLine.getValue(modelOpt).toString());
+      String format = cmdLine.hasOption(formatOpt) ? cmdLine.getValue(formatOpt).toString() : "text";
+      Set<String> classes = null;
+      if (cmdLine.hasOption(classOpt)) {
+        classes = Sets.newHashSet();
+        for (Object value : (List<?>) cmdLine.getValues(classOpt)) {
+          classes.add(value.toString());
+        }
+      }
+      double minWeight = cmdLine.hasOption(minWeightOpt)
+          ? Double.parseDouble(cmdLine.getValue(minWeightOpt).toString()) : Double.NEGATIVE_INFINITY;
+      Path outputPath = cmdLine.hasOption(outputOpt) ? new Path(cmdLine.getValue(outputOpt).toString()) : null;
+
+      if (!"text".equals(format) && !"csv".equals(format) && !"json".equals(format) && !"none".equals(format)) {
+        log.error("Unknown format: {}", format);
+        CommandLineUtil.printHelp(group);
+        return;
+      }
+
+      Configuration conf = new Configuration();
+      Writer writer;
+      if (outputPath == null) {
+        writer = new BufferedWriter(new OutputStreamWriter(System.out, Charsets.UTF_8));
+      } else {
+        FileSystem fs = outputPath.getFileSystem(conf);
+        writer = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath), Charsets.UTF_8));
+      }
+      try {
+        inspect(conf, modelPath, format, classes, minWeight, cmdLine.hasOption(statsOpt), writer);
+      } finally {
+        if (outputPath == null) {
+          writer.flush();
+        } else {
+          Closeables.closeQuietly(writer);
+        }
+      }
+    } catch (OptionException e) {
+      log.warn(e.toString(), e);
+      CommandLineUtil.printHelp(group);
+    }
+  }
+
+  /**
+   * Streams the selected rules of the model to the writer, followed by their statistics if requested
+   *
+   * @param classes
+   *          names of the classes kept, null to keep all
+   */
+  public static void inspect(Configuration conf, Path modelPath, String format, Set<String> classes,
+                             double minWeight, boolean stats, Writer writer) throws IOException {
+    RuleBaseReader reader = new RuleBaseReader(conf, modelPath);
+    try {
+      RuleBase header = reader.getHeader();
+      String[] names = header.getNames();
+      String[] classNames = header.getClasses();
+      int nVariables = header.getDataBase().numVariables();
+      Statistics statistics = new Statistics(nVariables, header.getDataBase().numLabels(), classNames.length);
+
+      if ("csv".equals(format)) {
+        writer.write("rule");
+        for (int i = 0; i < nVariables; i++) {
+          writer.write(',');
+          writer.write(names[i]);
+        }
+        writer.write(",class,weight\n");
+      } else if ("json".equals(format)) {
+        writer.write("{\"rules\":[");
+      }
+
+      int id = 0;
+      int selected = 0;
+      while (reader.hasNext()) {
+        Rule rule = reader.next();
+        id++;
+        if ((classes != null && !classes.contains(classNames[rule.getClas()])) || rule.getWeight() < minWeight) {
+          continue;
+        }
+        selected++;
+        statistics.add(rule);
+
+        if ("text".equals(format)) {
+          writer.write(id + ": ");
+          for (int i = 0; i < nVariables; i++) {
+            writer.write(names[i] + " IS " + rule.getLabelName(i) + (i < nVariables - 1 ? " AND " : ": "));
+          }
+          writer.write(classNames[rule.getClas()] + " with Rule Weight: " + rule.getWeight() + '\n');
+        } else if ("csv".equals(format)) {
+          writer.write(Integer.toString(id));
+          for (int i = 0; i < nVariables; i++) {
+            writer.write(',');
+            writer.write(rule.getLabelName(i));
+          }
+          writer.write(',' + classNames[rule.getClas()] + ',' + rule.getWeight() + '\n');
+        } else if ("json".equals(format)) {
+          writer.write(selected > 1 ? ",\n" : "\n");
+          writer.write("{\"rule\":" + id + ",\"antecedent\":{");
+          for (int i = 0; i < nVariables; i++) {
+            writer.write((i > 0 ? "," : "") + quote(names[i]) + ':' + quote(rule.getLabelName(i)));
+          }
+          writer.write("},\"class\":" + quote(classNames[rule.getClas()]) + ",\"weight\":" + rule.getWeight() + '}');
+        }
+      }
+
+      if ("json".equals(format)) {
+        writer.write("\n]");
+        if (stats) {
+          writer.write(",\"stats\":");
+          statistics.writeJson(writer, names, classNames, id);
+        }
+        writer.write("}\n");
+      } else if (stats) {
+        statistics.writeText(writer, names, classNames, id, "csv".equals(format) ? "# " : "");
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static String quote(String value) {
+    StringBuilder builder = new StringBuilder(value.length() + 2);
+    builder.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        builder.append('\\').append(c);
+      } else if (c < 0x20) {
+        builder.append(String.format("\\u%04x", (int) c));
+      } else {
+        builder.append(c);
+      }
+    }
+    return builder.append('"').toString();
+  }
+
+  /**
+   * Statistics of the selected rules, computed in one pass
+   */
+  private static final class Statistics {
+
+    private final int nVariables;
+    private final int[] rulesPerClass;
+    /** [0] below 0, [1..WEIGHT_BINS] for [0, 1], [WEIGHT_BINS + 1] above 1 */
+    private final int[] weightHistogram = new int[WEIGHT_BINS + 2];
+    private final int[][] labelUsage;
+    private int nRules;
+
+    private Statistics(int nVariables, int nLabels, int nClasses) {
+      this.nVariables = nVariables;
+      rulesPerClass = new int[nClasses];
+      labelUsage = new int[nVariables][nLabels];
+    }
+
+    void add(Rule rule) {
+      nRules++;
+      rulesPerClass[rule.getClas()]++;
+      double weight = rule.getWeight();
+      if (weight < 0) {
+        weightHistogram[0]++;
+      } else if (weight > 1) {
+        weightHistogram[WEIGHT_BINS + 1]++;
+      } else {
+        weightHistogram[1 + Math.min(WEIGHT_BINS - 1, (int) (weight * WEIGHT_BINS))]++;
+      }
+      for (int i = 0; i < nVariables; i++) {
+        labelUsage[i][rule.getLabel(i)]++;
+      }
+    }
+
+    /** heap of the selected rules as Rule objects */
+    long objectsFootprint() {
+      return nRules * RuleBaseMerger.estimatedRuleSize(nVariables);
+    }
+
+    /** heap of the selected rules in the structure of arrays layout used to classify */
+    long compactFootprint() {
+      return nRules * (4L * nVariables + 8L + 4L);
+    }
+
+    private static String binName(int bin) {
+      if (bin == 0) {
+        return "< 0";
+      }
+      if (bin == WEIGHT_BINS + 1) {
+        return "> 1";
+      }
+      return "[" + (double) (bin - 1) / WEIGHT_BINS + ", " + (double) bin / WEIGHT_BINS
+          + (bin == WEIGHT_BINS ? "]" : ")");
+    }
+
+    void writeText(Writer writer, String[] names, String[] classNames, int total, String prefix)
+      throws IOException {
+      writer.write(prefix + "@Number of rules: " + nRules + " selected of " + total + '\n');
+      writer.write(prefix + "@Rules per class\n");
+      for (int c = 0; c < classNames.length; c++) {
+        writer.write(prefix + "  " + classNames[c] + ": " + rulesPerClass[c] + '\n');
+      }
+      writer.write(prefix + "@Weight histogram\n");
+      for (int bin = 0; bin < weightHistogram.length; bin++) {
+        writer.write(prefix + "  " + binName(bin) + ": " + weightHistogram[bin] + '\n');
+      }
+      writer.write(prefix + "@Label usage per variable\n");
+      for (int i = 0; i < nVariables; i++) {
+        writer.write(prefix + "  " + names[i] + ':');
+        for (int j = 0; j < labelUsage[i].length; j++) {
+          writer.write(" L_" + j + '=' + labelUsage[i][j]);
+        }
+        writer.write('\n');
+      }
+      writer.write(prefix + "@Memory footprint (bytes)\n");
+      writer.write(prefix + "  rule objects: " + objectsFootprint() + '\n');
+      writer.write(prefix + "  compact layout: " + compactFootprint() + '\n');
+    }
+
+    void writeJson(Writer writer, String[] names, String[] classNames, int total) throws IOException {
+      writer.write("{\"rules\":" + nRules + ",\"total\":" + total + ",\"rulesPerClass\":{");
+      for (int c = 0; c < classNames.length; c++) {
+        writer.write((c > 0 ? "," : "") + quote(classNames[c]) + ':' + rulesPerClass[c]);
+      }
+      writer.write("},\"weightHistogram\":{");
+      for (int bin = 0; bin < weightHistogram.length; bin++) {
+        writer.write((bin > 0 ? "," : "") + quote(binName(bin)) + ':' + weightHistogram[bin]);
+      }
+      writer.write("},\"labelUsage\":{");
+      for (int i = 0; i < nVariables; i++) {
+        writer.write((i > 0 ? "," : "") + quote(names[i]) + ":[");
+        for (int j = 0; j < labelUsage[i].length; j++) {
+          writer.write((j > 0 ? "," : "") + labelUsage[i][j]);
+        }
+        writer.write(']');
+      }
+      writer.write("},\"memory\":{\"ruleObjects\":" + objectsFootprint() + ",\"compactLayout\":"
+          + compactFootprint() + "}}");
+    }
+  }
+}
@@ -0,0 +1,560 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli2.CommandLine;
+import org.apache.commons.cli2.Group;
+import org.apache.commons.cli2.Option;
+import org.apache.commons.cli2.OptionException;
+import org.apache.commons.cli2.builder.ArgumentBuilder;
+import org.apache.commons.cli2.builder.DefaultOptionBuilder;
+import org.apache.commons.cli2.builder.GroupBuilder;
+import org.apache.commons.cli2.commandline.Parser;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.mahout.classifier.chi_rwcs.RuleBase;
+import org.apache.mahout.classifier.chi_rwcs.data.DataConverter;
+import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
+import org.apache.mahout.classifier.chi_rwcs.data.Instance;
+import org.apache.mahout.common.CommandLineUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scores single events against a stored model, without a cluster. The model and the Dataset are loaded once,
+ * and served on a port of the loopback address, unless another bind address is given. The server has no
+ * authentication, it is meant to sit next to the service that feeds it the events:
+ * <ul>
+ * <li>POST /score with text/csv rows, in the format of the data files (the label may be omitted): one
+ * predicted label per line, "?" when no rule fires</li>
+ * <li>POST /score with application/octet-stream rows of big-endian doubles, one per input variable: one
+ * big-endian int class code per row, -1 when no rule fires</li>
+ * <li>GET /stats: requests, rows, throughput and p50/p99 latency</li>
+ * </ul>
+ * Concurrent requests are grouped in micro-batches, scored with one {@link RuleBase#FRM(double[][])} call.
+ * The model file is polled and a new version replaces the served one atomically, a batch is always scored by
+ * a single version.
+ */
+public final class ScoringServer {
+
+  private static final Logger log = LoggerFactory.getLogger(ScoringServer.class);
+
+  private final Configuration conf;
+  private final Path modelPath;
+  private final Dataset dataset;
+  private final DataConverter converter;
+  private final int nbVariables;
+  private final int rawLabelIndex;
+  private final int maxBatchRows;
+  private final long maxBatchDelayMicros;
+  private final int nbScorers;
+
+  private final AtomicReference<RuleBase> model = new AtomicReference<RuleBase>();
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+  private final LatencyStats stats = new LatencyStats(10000);
+
+  private long modelTimestamp;
+  private HttpServer server;
+  private ExecutorService scorers;
+  private ExecutorService httpThreads;
+  private volatile boolean running;
+
+  public ScoringServer(Configuration conf, Path modelPath, Path datasetPath, int maxBatchRows,
+                       long maxBatchDelayMicros, int nbScorers) throws IOException {
+    this.conf = conf;
+    this.modelPath = modelPath;
+    this.maxBatchRows = maxBatchRows;
+    this.maxBatchDelayMicros = maxBatchDelayMicros;
+    this.nbScorers = nbScorers;
+    dataset = Dataset.load(conf, datasetPath);
+    converter = new DataConverter(dataset);
+    nbVariables = dataset.nbAttributes() - 1;
+    rawLabelIndex = rawLabelIndex(dataset);
+    if (!reloadModel()) {
+      throw new IOException("Model not found: " + modelPath);
+    }
+  }
+
+  /**
+   * Index of the label in a line of the data, ignored attributes included
+   */
+  private static int rawLabelIndex(Dataset dataset) {
+    int aId = 0;
+    for (int attr = 0; ; attr++) {
+      if (ArrayUtils.contains(dataset.getIgnored(), attr)) {
+        continue;
+      }
+      if (aId == dataset.getLabelId()) {
+        return attr;
+      }
+      aId++;
+    }
+  }
+
+  /**
+   * Loads the model if it changed since the last load
+   *
+   * @return true if a new model is served
+   */
+  synchronized boolean reloadModel() throws IOException {
+    FileSystem fs = modelPath.getFileSystem(conf);
+    if (!fs.exists(modelPath)) {
+      return false;
+    }
+    long timestamp = fs.getFileStatus(modelPath).getModificationTime();
+    if (model.get() != null && timestamp == modelTimestamp) {
+      return false;
+    }
+
+    RuleBase ruleBase = RuleBase.load(conf, modelPath);
+    if (ruleBase == null || ruleBase.size() == 0) {
+      log.warn("Empty model in {}, keeping the current one", modelPath);
+      return false;
+    }
+    ruleBase.compact();
+    model.set(ruleBase);
+    modelTimestamp = timestamp;
+    stats.modelLoaded();
+    log.info("Serving the model {} ({} rules)", modelPath, ruleBase.size());
+    return true;
+  }
+
+  /**
+   * Starts the scoring threads and listens on the given port of the loopback address
+   */
+  public void start(int port, long pollSeconds, int nbHttpThreads) throws IOException {
+    start(new InetSocketAddress(InetAddress.getByName(null), port), pollSeconds, nbHttpThreads);
+  }
+
+  public void start(InetSocketAddress address, final long pollSeconds, int nbHttpThreads) throws IOException {
+    running = true;
+
+    scorers = Executors.newFixedThreadPool(nbScorers + 1);
+    for (int i = 0; i < nbScorers; i++) {
+      scorers.execute(new Runnable() {
+        @Override
+        public void run() {
+          score();
+        }
+      });
+    }
+    scorers.execute(new Runnable() {
+      @Override
+      public void run() {
+        while (running) {
+          try {
+            Thread.sleep(pollSeconds * 1000L);
+            reloadModel();
+          } catch (InterruptedException e) {
+            return;
+          } catch (IOException e) {
+            log.warn("Cannot reload the model", e);
+          } catch (RuntimeException e) {
+            log.warn("Cannot reload the model", e);
+          }
+        }
+      }
+    });
+
+    server = HttpServer.create(address, 0);
+    server.createContext("/score", new ScoreHandler());
+    server.createContext("/stats", new StatsHandler());
+    httpThreads = Executors.newFixedThreadPool(nbHttpThreads);
+    server.setExecutor(httpThreads);
+    server.start();
+    log.info("Scoring server listening on {}", address);
+  }
+
+  public void stop() {
+    running = false;
+    if (server != null) {
+      server.stop(0);
+    }
+    if (httpThreads != null) {
+      httpThreads.shutdownNow();
+    }
+    if (scorers != null) {
+      scorers.shutdownNow();
+    }
+  }
+
+  /**
+   * Scorer thread: waits for a request, then groups the requests that arrive within the batch delay, up to
+   * the batch size, and scores them at once
+   */
+  private void score() {
+    List<Request> batch = Lists.newArrayList();
+    while (running) {
+      try {
+        Request first = queue.take();
+        batch.add(first);
+        int rows = first.examples.length;
+        long deadline = System.nanoTime() + maxBatchDelayMicros * 1000L;
+        while (rows < maxBatchRows) {
+          long wait = deadline - System.nanoTime();
+          Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          rows += next.examples.length;
+        }
+
+        double[][] examples = new double[rows][];
+        int pos = 0;
+        for (Request request : batch) {
+          System.arraycopy(request.examples, 0, examples, pos, request.examples.length);
+          pos += request.examples.length;
+        }
+
+        RuleBase ruleBase = model.get();
+        int[] predictions = ruleBase.FRM(examples);
+
+        pos = 0;
+        for (Request request : batch) {
+          request.predictions = Arrays.copyOfRange(predictions, pos, pos + request.examples.length);
+          pos += request.examples.length;
+          request.done.countDown();
+        }
+        stats.batchScored(rows);
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        log.error("Scoring failed", e);
+        for (Request request : batch) {
+          request.done.countDown();
+        }
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  int[] submit(double[][] examples) throws InterruptedException {
+    Request request = new Request(examples);
+    queue.put(request);
+    request.done.await();
+    if (request.predictions == null) {
+      throw new IllegalStateException("Scoring failed");
+    }
+    return request.predictions;
+  }
+
+  double[] parseRow(String line) {
+    String row = line;
+    String[] tokens = line.split("[, ]");
+    if (tokens.length == dataset.nbAttributes() + dataset.getIgnored().length - 1) {
+      // no label, put any valid one in its place
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i <= tokens.length; i++) {
+        if (i > 0) {
+          builder.append(',');
+        }
+        if (i < rawLabelIndex) {
+          builder.append(tokens[i]);
+        } else if (i == rawLabelIndex) {
+          builder.append(dataset.labels()[0]);
+        } else {
+          builder.append(tokens[i - 1]);
+        }
+      }
+      row = builder.toString();
+    }
+    Instance instance = converter.convert(row);
+    if (instance == null) {
+      throw new IllegalArgumentException("Missing value in: " + line);
+    }
+    return instance.get().clone();
+  }
+
+  private static final class Request {
+    private final double[][] examples;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile int[] predictions;
+
+    private Request(double[][] examples) {
+      this.examples = examples;
+    }
+  }
+
+  private class ScoreHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      long start = System.nanoTime();
+      try {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+          respond(exchange, 405, "text/plain", "POST rows to score\n".getBytes(Charsets.UTF_8));
+          return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean binary = contentType != null && contentType.startsWith("application/octet-stream");
+
+        double[][] examples;
+        try {
+          examples = binary ? readBinary(exchange) : readText(exchange);
+        } catch (IllegalArgumentException e) {
+          respond(exchange, 400, "text/plain", (e.getMessage() + '\n').getBytes(Charsets.UTF_8));
+          return;
+        }
+
+        int[] predictions = examples.length == 0 ? new int[0] : submit(examples);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (binary) {
+          DataOutputStream out = new DataOutputStream(body);
+          for (int prediction : predictions) {
+            out.writeInt(prediction);
+          }
+          out.flush();
+          respond(exchange, 200, "application/octet-stream", body.toByteArray());
+        } else {
+          StringBuilder out = new StringBuilder();
+          for (int prediction : predictions) {
+            out.append(prediction < 0 ? "?" : dataset.getLabelString(prediction)).append('\n');
+          }
+          respond(exchange, 200, "text/plain", out.toString().getBytes(Charsets.UTF_8));
+        }
+        stats.requestServed((System.nanoTime() - start) / 1000L);
+      } catch (InterruptedException e) {
+        respond(exchange, 503, "text/plain", "Server stopping\n".getBytes(Charsets.UTF_8));
+      } catch (IllegalStateException e) {
+        respond(exchange, 500, "text/plain", (e.getMessage() + '\n').getBytes(Charsets.UTF_8));
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private double[][] readText(HttpExchange exchange) throws IOException {
+      List<double[]> rows = Lists.newArrayList();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), Charsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty()) {
+          rows.add(parseRow(line));
+        }
+      }
+      return rows.toArray(new double[rows.size()][]);
+    }
+
+    private double[][] readBinary(HttpExchange exchange) throws IOException {
+      List<double[]> rows = Lists.newArrayList();
+      DataInputStream in = new DataInputStream(exchange.getRequestBody());
+      while (true) {
+        double[] row = new double[nbVariables];
+        try {
+          row[0] = in.readDouble();
+        } catch (EOFException e) {
+          break;
+        }
+        try {
+          for (int i = 1; i < nbVariables; i++) {
+            row[i] = in.readDouble();
+          }
+        } catch (EOFException e) {
+          throw new IllegalArgumentException("Truncated row, expected " + nbVariables + " doubles per row");
+        }
+        rows.add(row);
+      }
+      return rows.toArray(new double[rows.size()][]);
+    }
+  }
+
+  private class StatsHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        StringBuilder out = new StringBuilder();
+        out.append("model: ").append(modelPath).append('\n');
+        out.append("rules: ").append(model.get().size()).append('\n');
+        stats.append(out);
+        respond(exchange, 200, "text/plain", out.toString().getBytes(Charsets.UTF_8));
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+    throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.flush();
+  }
+
+  /**
+   * Counters of the server, and the latencies of the last requests
+   */
+  static final class LatencyStats {
+
+    private final long[] latencies;
+    private final long startTime = System.currentTimeMillis();
+    private long nbRequests;
+    private long nbRows;
+    private long nbBatches;
+    private int nbModels;
+
+    LatencyStats(int window) {
+      latencies = new long[window];
+    }
+
+    synchronized void requestServed(long micros) {
+      latencies[(int) (nbRequests % latencies.length)] = micros;
+      nbRequests++;
+    }
+
+    synchronized void batchScored(int rows) {
+      nbBatches++;
+      nbRows += rows;
+    }
+
+    synchronized void modelLoaded() {
+      nbModels++;
+    }
+
+    synchronized void append(StringBuilder out) {
+      double seconds = Math.max(1L, System.currentTimeMillis() - startTime) / 1000.0;
+      out.append("model versions: ").append(nbModels).append('\n');
+      out.append("requests: ").append(nbRequests).append('\n');
+      out.append("rows: ").append(nbRows).append('\n');
+      out.append("batches: ").append(nbBatches).append('\n');
+      out.append("rows/batch: ").append(nbBatches == 0 ? 0 : (double) nbRows / nbBatches).append('\n');
+      out.append("rows/s: ").append(nbRows / seconds).append('\n');
+      out.append("requests/s: ").append(nbRequests / seconds).append('\n');
+
+      int n = (int) Math.min(nbRequests, latencies.length);
+      long[] sorted = Arrays.copyOf(latencies, n);
+      Arrays.sort(sorted);
+      out.append("latency p50 (us): ").append(n == 0 ? 0 : sorted[(n - 1) / 2]).append('\n');
+      out.append("latency p99 (us): ").append(n == 0 ? 0 : sorted[(int) ((n - 1) * 0.99)]).append('\n');
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+
+    DefaultOptionBuilder obuilder = new DefaultOptionBuilder();
+    ArgumentBuilder abuilder = new ArgumentBuilder();
+    GroupBuilder gbuilder = new GroupBuilder();
+
+    Option modelOpt = obuilder.withLongName("model").withShortName("m").withRequired(true).withArgument(
+        abuilder.withName("path").withMinimum(1).withMaximum(1).create()).withDescription("Path to the Model")
+        .create();
+
+    Option datasetOpt = obuilder.withLongName("dataset").withShortName("ds").withRequired(true).withArgument(
+        abuilder.withName("dataset").withMinimum(1).withMaximum(1).create()).withDescription("Dataset path")
+        .create();
+
+    Option portOpt = obuilder.withLongName("port").withShortName("p").withRequired(false).withArgument(
+        abuilder.withName("port").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Port to listen on, default 8090").create();
+
+    Option bindOpt = obuilder.withLongName("bind").withShortName("bd").withRequired(false).withArgument(
+        abuilder.withName("address").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Address to listen on, default the loopback address. The server has no authentication").create();
+
+    Option batchOpt = obuilder.withLongName("batch").withShortName("b").withRequired(false).withArgument(
+        abuilder.withName("rows").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Maximum number of rows scored at once, default 256").create();
+
+    Option delayOpt = obuilder.withLongName("delay").withShortName("dl").withRequired(false).withArgument(
+        abuilder.withName("micros").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Maximum time a request waits for others to fill its batch, in microseconds, default 500").create();
+
+    Option scorersOpt = obuilder.withLongName("scorers").withShortName("s").withRequired(false).withArgument(
+        abuilder.withName("threads").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Number of scoring threads, default 1").create();
+
+    Option pollOpt = obuilder.withLongName("poll").withShortName("pl").withRequired(false).withArgument(
+        abuilder.withName("seconds").withMinimum(1).withMaximum(1).create()).withDescription(
+        "Interval between the checks for a new model version, default 10").create();
+
+    Option helpOpt = obuilder.withLongName("help").withDescription("Print out help").withShortName("h")
+        .create();
+
+    Group group = gbuilder.withName("Options").withOption(modelOpt).withOption(datasetOpt).withOption(portOpt)
+        .withOption(bindOpt).withOption(batchOpt).withOption(delayOpt).withOption(scorersOpt).withOption(pollOpt).withOption(helpOpt)
+        .create();
+
+    try {
+      Parser parser = new Parser();
+      parser.setGroup(group);
+      CommandLine cmdLine = parser.parse(args);
+
+      if (cmdLine.hasOption(helpOpt)) {
+        CommandLineUtil.printHelp(group);
+        return;
+      }
+
+      Path modelPath = new Path(cmdLine.getValue(modelOpt).toString());
+      Path datasetPath = new Path(cmdLine.getValue(datasetOpt).toString());
+      int port = intValue(cmdLine, portOpt, 8090);
+      InetAddress bindAddress = cmdLine.hasOption(bindOpt)
+          ? InetAddress.getByName(cmdLine.getValue(bindOpt).toString())
+          : InetAddress.getByName(null);
+      int batch = intValue(cmdLine, batchOpt, 256);
+      int delay = intValue(cmdLine, delayOpt, 500);
+      int nbScorers = intValue(cmdLine, scorersOpt, 1);
+      int poll = intValue(cmdLine, pollOpt, 10);
+
+      final ScoringServer scoringServer = new ScoringServer(new Configuration(), modelPath, datasetPath, batch,
+          delay, nbScorers);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          scoringServer.stop();
+        }
+      });
+      scoringServer.start(new InetSocketAddress(bindAddress, port), poll, Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    } catch (OptionException e) {
+      log.warn(e.toString(), e);
+      CommandLineUtil.printHelp(group);
+    }
+  }
+
+  private static int intValue(CommandLine cmdLine, Option option, int defaultValue) {
+    return cmdLine.hasOption(option) ? Integer.parseInt(cmdLine.getValue(option).toString()) : defaultValue;
+  }
+}
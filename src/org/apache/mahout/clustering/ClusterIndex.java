@@ -0,0 +1,424 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.clustering;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.common.distance.ChebyshevDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.ManhattanDistanceMeasure;
+import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
+import org.apache.mahout.math.Vector;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Finds the clusters whose center is closer to a point than a radius without computing the distance to every
+ * cluster. Dense points of a few dimensions are looked up in a grid over their first coordinates, which no
+ * coordinate of a point within the radius can be farther than; sparse or high dimensional points are compared
+ * to a few pivot clusters and the triangle inequality skips every cluster whose distance to a pivot differs too
+ * much from the one of the point. The clusters are kept sorted by their distance to the first pivot, so that
+ * a search only looks at the range of them the first pivot allows, and at the few clusters added since they
+ * were last sorted.<br>
+ * The clusters found are exactly the ones a scan of all the clusters would find, in the order they were added:
+ * the bounds are widened by the rounding of the distances and every candidate is checked with the distance
+ * measure. The centers of the clusters must not change while they are indexed.
+ */
+public final class ClusterIndex<C extends Cluster> {
+
+  /** number of coordinates of the grid */
+  private static final int GRID_DIMENSIONS = 3;
+
+  /** largest cardinality of the dense points looked up in the grid */
+  private static final int MAX_GRID_SIZE = 16;
+
+  /** number of pivot clusters */
+  private static final int NUM_PIVOTS = 8;
+
+  /** fewest clusters added since the last sort that are sorted again */
+  private static final int MIN_UNSORTED = 64;
+
+  /** relative slack of the bounds, covers the rounding of the distances */
+  private static final double TOLERANCE = 1.0e-8;
+
+  /** rounding of a squared Euclidean distance, relative to the squared lengths and per dimension */
+  private static final double LENGTH_TOLERANCE = 4 * Math.ulp(1.0);
+
+  private final DistanceMeasure measure;
+  private final boolean squared;
+  private final boolean euclidean;
+  /** radius of the searches, in the units of the measure and as a metric */
+  private final double threshold;
+  private final double radius;
+  private final boolean grid;
+
+  private Cluster[] clusters = new Cluster[16];
+  private Vector[] centers = new Vector[16];
+  private double[] lengthsSquared = new double[16];
+  private int size;
+  private double maxLengthSquared;
+
+  /** clusters of each cell of the grid, by hash of the cell; colliding cells share a list */
+  private final Map<Long, List<Integer>> cells = Maps.newHashMap();
+  /** query in which each cluster was last found, so that colliding cells do not return a cluster twice */
+  private int[] visited = new int[16];
+  private int query;
+
+  /** metric distances between the clusters and the pivots, [cluster * NUM_PIVOTS + pivot] */
+  private double[] pivotDistances = new double[16 * NUM_PIVOTS];
+
+  /**
+   * clusters following the pivots, up to the last sort, in the order of their distance to the first pivot; the
+   * clusters added since are scanned
+   */
+  private int[] sortedClusters = new int[16];
+  private double[] sortedKeys = new double[16];
+  private int numSorted;
+
+  /** result of the last search */
+  private int[] found = new int[16];
+  private double[] foundDistances = new double[16];
+  /** distances of the clusters found, by cluster, while they are sorted */
+  private double[] distancesByCluster = new double[16];
+
+  /**
+   * @param radius
+   *          largest distance of the clusters searched, in the units of the measure
+   * @param dense
+   *          true if the points are dense
+   * @param cardinality
+   *          cardinality of the points
+   */
+  public ClusterIndex(DistanceMeasure measure, double radius, boolean dense, int cardinality) {
+    this.measure = measure;
+    squared = measure.getClass() == SquaredEuclideanDistanceMeasure.class;
+    euclidean = squared || measure.getClass() == EuclideanDistanceMeasure.class;
+    threshold = radius;
+    this.radius = metric(radius);
+    grid = dense && cardinality <= MAX_GRID_SIZE && this.radius > 0 && !Double.isInfinite(this.radius);
+  }
+
+  /**
+   * @return true if the distance measure is, or is the square of, a metric bounding the difference of every
+   *         coordinate
+   */
+  public static boolean supports(DistanceMeasure measure) {
+    Class<?> measureClass = measure.getClass();
+    return measureClass == EuclideanDistanceMeasure.class || measureClass == SquaredEuclideanDistanceMeasure.class
+        || measureClass == ManhattanDistanceMeasure.class || measureClass == ChebyshevDistanceMeasure.class;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void add(C cluster) {
+    if (size == clusters.length) {
+      int capacity = 2 * size;
+      clusters = Arrays.copyOf(clusters, capacity);
+      centers = Arrays.copyOf(centers, capacity);
+      lengthsSquared = Arrays.copyOf(lengthsSquared, capacity);
+      visited = Arrays.copyOf(visited, capacity);
+      distancesByCluster = Arrays.copyOf(distancesByCluster, capacity);
+      pivotDistances = Arrays.copyOf(pivotDistances, capacity * NUM_PIVOTS);
+    }
+    Vector center = cluster.getCenter();
+    clusters[size] = cluster;
+    centers[size] = center;
+    lengthsSquared[size] = center.getLengthSquared();
+    maxLengthSquared = Math.max(maxLengthSquared, lengthsSquared[size]);
+
+    if (grid) {
+      Long key = cellKey(cellsOf(center));
+      List<Integer> cell = cells.get(key);
+      if (cell == null) {
+        cell = Lists.newArrayList();
+        cells.put(key, cell);
+      }
+      cell.add(size);
+    } else {
+      int numPivots = Math.min(size, NUM_PIVOTS);
+      for (int pivot = 0; pivot < numPivots; pivot++) {
+        pivotDistances[size * NUM_PIVOTS + pivot] = metric(distance(pivot, center));
+      }
+      if (size < NUM_PIVOTS) {
+        // the new cluster is a pivot of the older ones
+        for (int c = 0; c < size; c++) {
+          pivotDistances[c * NUM_PIVOTS + size] = metric(distance(size, centers[c]));
+        }
+      }
+    }
+    size++;
+    if (!grid && size - NUM_PIVOTS - numSorted > Math.max(MIN_UNSORTED, Math.sqrt(numSorted))) {
+      sortAdded();
+    }
+  }
+
+  /**
+   * Merges the clusters added since the last sort into the sorted clusters. The clusters left unsorted stay
+   * within the square root of the sorted ones, which keeps both the sorts and the scans of a search sublinear
+   */
+  private void sortAdded() {
+    int first = NUM_PIVOTS + numSorted;
+    int numAdded = size - first;
+    int[] added = new int[numAdded];
+    for (int i = 0; i < numAdded; i++) {
+      int c = first + i;
+      double key = pivotDistances[c * NUM_PIVOTS];
+      int j = i - 1;
+      while (j >= 0 && pivotDistances[added[j] * NUM_PIVOTS] > key) {
+        added[j + 1] = added[j];
+        j--;
+      }
+      added[j + 1] = c;
+    }
+
+    int total = numSorted + numAdded;
+    if (total > sortedClusters.length) {
+      int capacity = Math.max(total, 2 * sortedClusters.length);
+      sortedClusters = Arrays.copyOf(sortedClusters, capacity);
+      sortedKeys = Arrays.copyOf(sortedKeys, capacity);
+    }
+    // merges from the end, in place
+    int i = numSorted - 1;
+    int j = numAdded - 1;
+    for (int k = total - 1; j >= 0; k--) {
+      double key = pivotDistances[added[j] * NUM_PIVOTS];
+      if (i >= 0 && sortedKeys[i] > key) {
+        sortedClusters[k] = sortedClusters[i];
+        sortedKeys[k] = sortedKeys[i];
+        i--;
+      } else {
+        sortedClusters[k] = added[j];
+        sortedKeys[k] = key;
+        j--;
+      }
+    }
+    numSorted = total;
+  }
+
+  /**
+   * Finds the clusters whose distance to the point is below the radius
+   *
+   * @return the number of clusters found, see {@link #getFound} and {@link #getFoundDistance}
+   */
+  public int search(Vector point) {
+    if (size == 0) {
+      return 0;
+    }
+    double slack = slack(point);
+    int numFound = grid ? searchGrid(point, slack) : searchPivots(point, slack);
+    sortFound(numFound);
+    return numFound;
+  }
+
+  /**
+   * @return the i-th cluster found by the last search
+   */
+  @SuppressWarnings("unchecked")
+  public C getFound(int i) {
+    return (C) clusters[found[i]];
+  }
+
+  /**
+   * @return the distance between the point of the last search and the i-th cluster found
+   */
+  public double getFoundDistance(int i) {
+    return foundDistances[i];
+  }
+
+  private int searchGrid(Vector point, double slack) {
+    double reach = radius * (1 + TOLERANCE) + slack;
+    int dimensions = Math.min(GRID_DIMENSIONS, point.size());
+    long[] low = new long[dimensions];
+    long[] high = new long[dimensions];
+    double numCells = 1;
+    for (int i = 0; i < dimensions; i++) {
+      double x = point.getQuick(i);
+      low[i] = cell(x - reach);
+      high[i] = cell(x + reach);
+      numCells *= high[i] - low[i] + 1;
+    }
+    if (numCells > size) {
+      return scanAll(point);
+    }
+
+    query++;
+    int numFound = 0;
+    long[] current = low.clone();
+    while (true) {
+      List<Integer> cell = cells.get(cellKey(current));
+      if (cell != null) {
+        for (int c : cell) {
+          if (visited[c] != query) {
+            visited[c] = query;
+            numFound = check(point, c, numFound);
+          }
+        }
+      }
+      // next cell of the range, last coordinate first
+      int i = dimensions - 1;
+      while (i >= 0 && current[i] == high[i]) {
+        current[i] = low[i];
+        i--;
+      }
+      if (i < 0) {
+        return numFound;
+      }
+      current[i]++;
+    }
+  }
+
+  private int searchPivots(Vector point, double slack) {
+    int numPivots = Math.min(size, NUM_PIVOTS);
+    double[] distances = new double[numPivots];
+    double[] metrics = new double[numPivots];
+    int numFound = 0;
+    for (int pivot = 0; pivot < numPivots; pivot++) {
+      distances[pivot] = distance(pivot, point);
+      metrics[pivot] = metric(distances[pivot]);
+      numFound = found(pivot, distances[pivot], numFound);
+    }
+
+    // the distances to the point, to the pivot and between the pivot and the cluster are all rounded
+    double reach = radius * (1 + TOLERANCE) + 3 * slack;
+    // the distances to the first pivot the candidates can have, widened by the rounding of the bounds
+    double metric = metrics[0];
+    double widening = TOLERANCE * (metric + reach);
+    double low = (metric * (1 - TOLERANCE) - reach) / (1 + TOLERANCE) - widening;
+    double high = (metric * (1 + TOLERANCE) + reach) / (1 - TOLERANCE) + widening;
+    for (int i = firstSorted(low); i < numSorted && sortedKeys[i] <= high; i++) {
+      numFound = checkCandidate(point, sortedClusters[i], metrics, reach, numFound);
+    }
+    for (int c = NUM_PIVOTS + numSorted; c < size; c++) {
+      numFound = checkCandidate(point, c, metrics, reach, numFound);
+    }
+    return numFound;
+  }
+
+  /**
+   * @return the index of the first sorted cluster whose distance to the first pivot is not below the key
+   */
+  private int firstSorted(double key) {
+    int low = 0;
+    int high = numSorted;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (sortedKeys[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Checks the cluster unless the triangle inequality over one of the pivots rules it out
+   */
+  private int checkCandidate(Vector point, int c, double[] metrics, double reach, int numFound) {
+    for (int pivot = 0; pivot < metrics.length; pivot++) {
+      double pivotDistance = pivotDistances[c * NUM_PIVOTS + pivot];
+      double bound = Math.abs(metrics[pivot] - pivotDistance) - TOLERANCE * (metrics[pivot] + pivotDistance);
+      if (bound > reach) {
+        return numFound;
+      }
+    }
+    return check(point, c, numFound);
+  }
+
+  private int scanAll(Vector point) {
+    int numFound = 0;
+    for (int c = 0; c < size; c++) {
+      numFound = check(point, c, numFound);
+    }
+    return numFound;
+  }
+
+  private int check(Vector point, int c, int numFound) {
+    return found(c, distance(c, point), numFound);
+  }
+
+  private int found(int c, double distance, int numFound) {
+    if (!(distance < threshold)) {
+      return numFound;
+    }
+    if (numFound == found.length) {
+      found = Arrays.copyOf(found, 2 * numFound);
+      foundDistances = Arrays.copyOf(foundDistances, 2 * numFound);
+    }
+    found[numFound] = c;
+    foundDistances[numFound] = distance;
+    return numFound + 1;
+  }
+
+  /**
+   * Puts the clusters found in the order they were added, the grid and the pivots find them in another order
+   */
+  private void sortFound(int numFound) {
+    for (int i = 0; i < numFound; i++) {
+      distancesByCluster[found[i]] = foundDistances[i];
+    }
+    Arrays.sort(found, 0, numFound);
+    for (int i = 0; i < numFound; i++) {
+      foundDistances[i] = distancesByCluster[found[i]];
+    }
+  }
+
+  private double distance(int c, Vector point) {
+    return measure.distance(lengthsSquared[c], centers[c], point);
+  }
+
+  private long[] cellsOf(Vector center) {
+    long[] cell = new long[Math.min(GRID_DIMENSIONS, center.size())];
+    for (int i = 0; i < cell.length; i++) {
+      cell[i] = cell(center.get(i));
+    }
+    return cell;
+  }
+
+  private long cell(double x) {
+    return (long) Math.floor(x / radius);
+  }
+
+  private static Long cellKey(long[] cell) {
+    long key = 17;
+    for (long c : cell) {
+      key = 31 * key + c;
+    }
+    return key;
+  }
+
+  /**
+   * @return bound of the rounding error of a metric distance between the point and a center
+   */
+  private double slack(Vector point) {
+    if (!euclidean) {
+      return 0.0;
+    }
+    return Math.sqrt(LENGTH_TOLERANCE * point.size() * 2 * (point.getLengthSquared() + maxLengthSquared));
+  }
+
+  private double metric(double distance) {
+    return squared ? Math.sqrt(Math.max(0.0, distance)) : distance;
+  }
+}
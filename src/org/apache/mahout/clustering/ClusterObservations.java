@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.clustering;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+/**
+ * The observation sums (s0, s1, s2) of an {@link AbstractCluster}, without its parameters. Partial sums are much
+ * smaller to ship than the whole cluster and can be merged in any grouping, in a combiner or a reducer, before they
+ * are added to the cluster.<br>
+ * The vectors are written in their most compact form: dense when most of their elements are set, sequential
+ * sparse, whose indices are delta encoded, otherwise.
+ */
+public class ClusterObservations implements Writable {
+
+  private double s0;
+  private Vector s1;
+  private Vector s2;
+
+  public ClusterObservations() {
+  }
+
+  /**
+   * @param cluster
+   *          the cluster whose observations are taken, they are not copied
+   */
+  public ClusterObservations(AbstractCluster cluster) {
+    s0 = cluster.getS0();
+    s1 = cluster.getS1();
+    s2 = cluster.getS2();
+  }
+
+  public double getS0() {
+    return s0;
+  }
+
+  /**
+   * Adds other observations to these ones
+   */
+  public void merge(ClusterObservations other) {
+    s0 += other.s0;
+    s1 = plus(s1, other.s1);
+    s2 = plus(s2, other.s2);
+  }
+
+  /**
+   * Adds these observations to the ones of the cluster, as {@link AbstractCluster#observe(Model)} does
+   */
+  public void observedBy(AbstractCluster cluster) {
+    cluster.setS0(cluster.getS0() + s0);
+    cluster.setS1(plus(cluster.getS1(), s1));
+    cluster.setS2(plus(cluster.getS2(), s2));
+  }
+
+  private static Vector plus(Vector sum, Vector vector) {
+    if (vector == null) {
+      return sum;
+    }
+    return sum == null ? vector.clone() : sum.plus(vector);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeDouble(s0);
+    writeVector(out, s1);
+    writeVector(out, s2);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    s0 = in.readDouble();
+    s1 = readVector(in);
+    s2 = readVector(in);
+  }
+
+  private static void writeVector(DataOutput out, Vector vector) throws IOException {
+    out.writeBoolean(vector != null);
+    if (vector != null) {
+      VectorWritable.writeVector(out, compact(vector));
+    }
+  }
+
+  private static Vector readVector(DataInput in) throws IOException {
+    return in.readBoolean() ? VectorWritable.readVector(in) : null;
+  }
+
+  /**
+   * @return the vector in the representation with the shortest serialization
+   */
+  private static Vector compact(Vector vector) {
+    if (vector.isDense()) {
+      return vector;
+    }
+    // a sparse element takes its value and one or two bytes of index
+    if (5 * vector.getNumNondefaultElements() > 4 * vector.size()) {
+      return new DenseVector(vector.size()).assign(vector);
+    }
+    return vector.isSequentialAccess() ? vector : new SequentialAccessSparseVector(vector);
+  }
+}
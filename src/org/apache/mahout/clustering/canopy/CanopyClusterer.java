@@ -18,11 +18,12 @@
 package org.apache.mahout.clustering.canopy;
 
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.mahout.clustering.AbstractCluster;
+import org.apache.mahout.clustering.ClusterIndex;
 import org.apache.mahout.common.ClassUtils;
 import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.math.Vector;
@@ -52,6 +53,12 @@ public class CanopyClusterer {
   // the distance measure
   private DistanceMeasure measure;
 
+  // the index of the canopies given to addPointToCanopies, null if the measure is not supported
+  private ClusterIndex<Canopy> index;
+
+  // the canopies of the index
+  private Collection<Canopy> indexedCanopies;
+
   public CanopyClusterer(DistanceMeasure measure, double t1, double t2) {
     this.t1 = t1;
     this.t2 = t2;
@@ -103,6 +110,7 @@ public class CanopyClusterer {
       t4 = Double.parseDouble(d);
     }
     nextCanopyId = 0;
+    index = null;
   }
 
   /**
@@ -111,6 +119,7 @@ public class CanopyClusterer {
   public void useT3T4() {
     t1 = t3;
     t2 = t4;
+    index = null;
   }
 
   /**
@@ -129,6 +138,7 @@ public class CanopyClusterer {
     t2 = aT2;
     t3 = t1;
     t4 = t2;
+    index = null;
   }
 
   /**
@@ -138,6 +148,10 @@ public class CanopyClusterer {
    * the number of points. From this a centroid can be computed.
    * <p/>
    * This method is used by the CanopyMapper, CanopyReducer and CanopyDriver.
+   * <p/>
+   * With a Euclidean, squared Euclidean, Manhattan or Chebyshev measure the canopies are looked up in a
+   * {@link ClusterIndex} kept across the calls with the same collection, which must then only grow through this
+   * method and keep the centers of its canopies until the points are all added.
    * 
    * @param point
    *            the point to be added
@@ -146,24 +160,64 @@ public class CanopyClusterer {
    */
   public void addPointToCanopies(Vector point, Collection<Canopy> canopies) {
     boolean pointStronglyBound = false;
-    for (Canopy canopy : canopies) {
-      double dist = measure.distance(canopy.getCenter().getLengthSquared(), canopy.getCenter(), point);
-      if (dist < t1) {
-        if (log.isDebugEnabled()) {
-          log.debug("Added point: {} to canopy: {}", AbstractCluster.formatVector(point, null), canopy.getIdentifier());
-        }
-        canopy.observe(point);
+    ClusterIndex<Canopy> canopyIndex = getIndex(point, canopies);
+    if (canopyIndex == null) {
+      for (Canopy canopy : canopies) {
+        double dist = measure.distance(canopy.getCenter().getLengthSquared(), canopy.getCenter(), point);
+        pointStronglyBound = addPointToCanopy(point, canopy, dist) || pointStronglyBound;
+      }
+    } else {
+      int numFound = canopyIndex.search(point);
+      for (int i = 0; i < numFound; i++) {
+        pointStronglyBound = addPointToCanopy(point, canopyIndex.getFound(i), canopyIndex.getFoundDistance(i))
+            || pointStronglyBound;
       }
-      pointStronglyBound = pointStronglyBound || dist < t2;
     }
     if (!pointStronglyBound) {
       if (log.isDebugEnabled()) {
         log.debug("Created new Canopy:{} at center:{}", nextCanopyId, AbstractCluster.formatVector(point, null));
       }
-      canopies.add(new Canopy(point, nextCanopyId++, measure));
+      Canopy canopy = new Canopy(point, nextCanopyId++, measure);
+      canopies.add(canopy);
+      if (canopyIndex != null) {
+        canopyIndex.add(canopy);
+      }
     }
   }
 
+  /**
+   * Adds the point to the canopy if it is within T1
+   * 
+   * @return if the point is within T2 of the canopy
+   */
+  private boolean addPointToCanopy(Vector point, Canopy canopy, double dist) {
+    if (dist < t1) {
+      if (log.isDebugEnabled()) {
+        log.debug("Added point: {} to canopy: {}", AbstractCluster.formatVector(point, null), canopy.getIdentifier());
+      }
+      canopy.observe(point);
+    }
+    return dist < t2;
+  }
+
+  /**
+   * @return the index of the canopies, rebuilt if they are not the ones indexed, null if the measure is not
+   *         supported
+   */
+  private ClusterIndex<Canopy> getIndex(Vector point, Collection<Canopy> canopies) {
+    if (!ClusterIndex.supports(measure)) {
+      return null;
+    }
+    if (index == null || indexedCanopies != canopies || index.size() != canopies.size()) {
+      index = new ClusterIndex<Canopy>(measure, Math.max(t1, t2), point.isDense(), point.size());
+      indexedCanopies = canopies;
+      for (Canopy canopy : canopies) {
+        index.add(canopy);
+      }
+    }
+    return index;
+  }
+
   /**
    * Return if the point is covered by the canopy
    * 
@@ -204,13 +258,17 @@ public class CanopyClusterer {
      * within distance threshold T2. Repeat until the list is empty.
      */
     int nextCanopyId = 0;
-    while (!points.isEmpty()) {
-      Iterator<Vector> ptIter = points.iterator();
+    // the remaining points are compacted at the front of the list in each pass instead of being removed one by
+    // one, which would shift the rest of the list every time
+    int remaining = points.size();
+    while (remaining > 0) {
+      ListIterator<Vector> ptIter = points.listIterator();
+      ListIterator<Vector> keptIter = points.listIterator();
       Vector p1 = ptIter.next();
-      ptIter.remove();
       Canopy canopy = new Canopy(p1, nextCanopyId++, measure);
       canopies.add(canopy);
-      while (ptIter.hasNext()) {
+      int kept = 0;
+      for (int i = 1; i < remaining; i++) {
         Vector p2 = ptIter.next();
         double dist = measure.distance(p1, p2);
         // Put all points that are within distance threshold T1 into the
@@ -220,14 +278,17 @@ public class CanopyClusterer {
         }
         // Remove from the list all points that are within distance
         // threshold T2
-        if (dist < t2) {
-          ptIter.remove();
+        if (!(dist < t2)) {
+          keptIter.next();
+          keptIter.set(p2);
+          kept++;
         }
       }
-      for (Canopy c : canopies) {
-        c.computeParameters();
-      }
+      remaining = kept;
+      // the older canopies are already computed
+      canopy.computeParameters();
     }
+    points.clear();
     return canopies;
   }
 
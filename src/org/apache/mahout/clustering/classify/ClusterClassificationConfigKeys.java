@@ -27,6 +27,9 @@ public final class ClusterClassificationConfigKeys {
   public static final String OUTLIER_REMOVAL_THRESHOLD = "pdf_threshold";
   
   public static final String EMIT_MOST_LIKELY = "emit_most_likely";
+  
+  /** number of threads of the sequential classification, 1 by default */
+  public static final String NUM_THREADS = "classification_threads";
 
   private ClusterClassificationConfigKeys() {
   }
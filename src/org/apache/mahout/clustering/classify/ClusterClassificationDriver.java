@@ -21,6 +21,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
@@ -39,6 +47,7 @@ import org.apache.mahout.clustering.Cluster;
 import org.apache.mahout.clustering.iterator.ClusterWritable;
 import org.apache.mahout.clustering.iterator.ClusteringPolicy;
 import org.apache.mahout.common.AbstractJob;
+import org.apache.mahout.common.Pair;
 import org.apache.mahout.common.commandline.DefaultOptionCreator;
 import org.apache.mahout.common.iterator.sequencefile.PathFilters;
 import org.apache.mahout.common.iterator.sequencefile.PathType;
@@ -48,12 +57,21 @@ import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.Vector.Element;
 import org.apache.mahout.math.VectorWritable;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+
 /**
  * Classifies the vectors into different clusters found by the clustering
  * algorithm.
  */
 public final class ClusterClassificationDriver extends AbstractJob {
   
+  private static final String NUM_THREADS_OPTION = "numThreads";
+  
+  /** number of vectors handed at once to a classification thread */
+  private static final int BATCH_SIZE = 1000;
+  
   /**
    * CLI to run Cluster Classification Driver.
    */
@@ -66,6 +84,7 @@ public final class ClusterClassificationDriver extends AbstractJob {
     addOption(DefaultOptionCreator.clustersInOption()
         .withDescription("The input centroids, as Vectors.  Must be a SequenceFile of Writable, Cluster/Canopy.")
         .create());
+    addOption(NUM_THREADS_OPTION, "nt", "Number of threads of the sequential classification", "1");
     
     if (parseArguments(args) == null) {
       return -1;
@@ -86,7 +105,9 @@ public final class ClusterClassificationDriver extends AbstractJob {
       clusterClassificationThreshold = Double.parseDouble(getOption(DefaultOptionCreator.OUTLIER_THRESHOLD));
     }
     
-    run(input, clustersIn, output, clusterClassificationThreshold, true, runSequential);
+    getConf().setInt(ClusterClassificationConfigKeys.NUM_THREADS, Integer.parseInt(getOption(NUM_THREADS_OPTION)));
+    
+    run(getConf(), input, clustersIn, output, clusterClassificationThreshold, true, runSequential);
     
     return 0;
   }
@@ -135,12 +156,122 @@ public final class ClusterClassificationDriver extends AbstractJob {
   }
   
   private static void classifyClusterSeq(Configuration conf, Path input, Path clusters, Path output,
-      Double clusterClassificationThreshold, boolean emitMostLikely) throws IOException {
+      Double clusterClassificationThreshold, boolean emitMostLikely) throws IOException, InterruptedException {
+    int numThreads = conf.getInt(ClusterClassificationConfigKeys.NUM_THREADS, 1);
+    if (numThreads > 1) {
+      classifyClusterSeq(conf, input, clusters, output, clusterClassificationThreshold, emitMostLikely, numThreads);
+      return;
+    }
     List<Cluster> clusterModels = populateClusterModels(clusters, conf);
     ClusteringPolicy policy = ClusterClassifier.readPolicy(finalClustersPath(conf, clusters));
     ClusterClassifier clusterClassifier = new ClusterClassifier(clusterModels, policy);
-    selectCluster(input, clusterModels, clusterClassifier, output, clusterClassificationThreshold, emitMostLikely);
+    selectCluster(conf, input, clusterModels, clusterClassifier, output, clusterClassificationThreshold,
+        emitMostLikely);
+    
+  }
+  
+  /**
+   * Classifies the vectors on several threads. The calling thread reads the vectors, hands them in batches to the
+   * pool and writes the classified batches in the order of the input to a single part file, named as the single
+   * threaded output, so that both outputs are the same record for record. At most two batches per thread are
+   * read ahead. Every batch is classified with one of the copies of the clusters, one per thread, as models such
+   * as the distance measure clusters cache state lazily when they classify.
+   */
+  private static void classifyClusterSeq(Configuration conf, Path input, Path clusters, Path output,
+      Double clusterClassificationThreshold, boolean emitMostLikely, int numThreads)
+    throws IOException, InterruptedException {
+    BlockingQueue<Pair<List<Cluster>, ClusterClassifier>> classifiers =
+        new ArrayBlockingQueue<Pair<List<Cluster>, ClusterClassifier>>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      List<Cluster> clusterModels = populateClusterModels(clusters, conf);
+      ClusteringPolicy policy = ClusterClassifier.readPolicy(finalClustersPath(conf, clusters));
+      classifiers.add(new Pair<List<Cluster>, ClusterClassifier>(clusterModels,
+          new ClusterClassifier(clusterModels, policy)));
+    }
+    
+    Queue<Future<List<Pair<IntWritable, WeightedVectorWritable>>>> pending = Lists.newLinkedList();
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    SequenceFile.Writer writer = new SequenceFile.Writer(input.getFileSystem(conf), conf, new Path(output,
+        "part-m-" + 0), IntWritable.class, WeightedVectorWritable.class);
+    try {
+      List<VectorWritable> batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+      for (VectorWritable vw : new SequenceFileDirValueIterable<VectorWritable>(input, PathType.LIST,
+          PathFilters.logsCRCFilter(), conf)) {
+        batch.add(vw);
+        if (batch.size() == BATCH_SIZE) {
+          if (pending.size() == 2 * numThreads) {
+            write(writer, pending.remove());
+          }
+          pending.add(pool.submit(new BatchClassifier(batch, classifiers, clusterClassificationThreshold,
+              emitMostLikely)));
+          batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+        }
+      }
+      if (!batch.isEmpty()) {
+        pending.add(pool.submit(new BatchClassifier(batch, classifiers, clusterClassificationThreshold,
+            emitMostLikely)));
+      }
+      while (!pending.isEmpty()) {
+        write(writer, pending.remove());
+      }
+      writer.close();
+    } finally {
+      Closeables.closeQuietly(writer);
+      pool.shutdownNow();
+    }
+  }
+  
+  /**
+   * Classifies a batch of vectors with the first free copy of the clusters
+   */
+  private static final class BatchClassifier implements Callable<List<Pair<IntWritable, WeightedVectorWritable>>> {
+    
+    private final List<VectorWritable> batch;
+    private final BlockingQueue<Pair<List<Cluster>, ClusterClassifier>> classifiers;
+    private final Double clusterClassificationThreshold;
+    private final boolean emitMostLikely;
+    
+    private BatchClassifier(List<VectorWritable> batch,
+        BlockingQueue<Pair<List<Cluster>, ClusterClassifier>> classifiers, Double clusterClassificationThreshold,
+        boolean emitMostLikely) {
+      this.batch = batch;
+      this.classifiers = classifiers;
+      this.clusterClassificationThreshold = clusterClassificationThreshold;
+      this.emitMostLikely = emitMostLikely;
+    }
     
+    @Override
+    public List<Pair<IntWritable, WeightedVectorWritable>> call() throws InterruptedException {
+      List<Pair<IntWritable, WeightedVectorWritable>> classified = Lists.newArrayListWithCapacity(batch.size());
+      // there are as many copies as threads, one is always free
+      Pair<List<Cluster>, ClusterClassifier> classifier = classifiers.take();
+      try {
+        for (VectorWritable vw : batch) {
+          selectCluster(vw, classifier.getFirst(), classifier.getSecond(), classified,
+              clusterClassificationThreshold, emitMostLikely);
+        }
+      } finally {
+        classifiers.add(classifier);
+      }
+      return classified;
+    }
+  }
+  
+  /**
+   * Writes a classified batch once its worker is done with it
+   */
+  private static void write(SequenceFile.Writer writer, Future<List<Pair<IntWritable, WeightedVectorWritable>>> batch)
+    throws IOException, InterruptedException {
+    List<Pair<IntWritable, WeightedVectorWritable>> classified;
+    try {
+      classified = batch.get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IllegalStateException(e.getCause());
+    }
+    for (Pair<IntWritable, WeightedVectorWritable> record : classified) {
+      writer.append(record.getFirst(), record.getSecond());
+    }
   }
   
   /**
@@ -189,49 +320,64 @@ public final class ClusterClassificationDriver extends AbstractJob {
    *          TODO
    * @throws IOException
    */
-  private static void selectCluster(Path input, List<Cluster> clusterModels, ClusterClassifier clusterClassifier,
-      Path output, Double clusterClassificationThreshold, boolean emitMostLikely) throws IOException {
-    Configuration conf = new Configuration();
+  private static void selectCluster(Configuration conf, Path input, List<Cluster> clusterModels,
+      ClusterClassifier clusterClassifier, Path output, Double clusterClassificationThreshold, boolean emitMostLikely)
+    throws IOException {
     SequenceFile.Writer writer = new SequenceFile.Writer(input.getFileSystem(conf), conf, new Path(output,
         "part-m-" + 0), IntWritable.class, WeightedVectorWritable.class);
+    List<Pair<IntWritable, WeightedVectorWritable>> classified = Lists.newArrayList();
     for (VectorWritable vw : new SequenceFileDirValueIterable<VectorWritable>(input, PathType.LIST,
         PathFilters.logsCRCFilter(), conf)) {
-      Vector pdfPerCluster = clusterClassifier.classify(vw.get());
-      if (shouldClassify(pdfPerCluster, clusterClassificationThreshold)) {
-        classifyAndWrite(clusterModels, clusterClassificationThreshold, emitMostLikely, writer, vw, pdfPerCluster);
+      selectCluster(vw, clusterModels, clusterClassifier, classified, clusterClassificationThreshold, emitMostLikely);
+      for (Pair<IntWritable, WeightedVectorWritable> record : classified) {
+        writer.append(record.getFirst(), record.getSecond());
       }
+      classified.clear();
     }
     writer.close();
   }
   
+  /**
+   * Classifies one vector and adds its records to the classified records if it is not an outlier
+   */
+  private static void selectCluster(VectorWritable vw, List<Cluster> clusterModels,
+      ClusterClassifier clusterClassifier, List<Pair<IntWritable, WeightedVectorWritable>> classified,
+      Double clusterClassificationThreshold, boolean emitMostLikely) {
+    Vector pdfPerCluster = clusterClassifier.classify(vw.get());
+    if (shouldClassify(pdfPerCluster, clusterClassificationThreshold)) {
+      classifyAndWrite(clusterModels, clusterClassificationThreshold, emitMostLikely, classified, vw, pdfPerCluster);
+    }
+  }
+  
   private static void classifyAndWrite(List<Cluster> clusterModels, Double clusterClassificationThreshold,
-      boolean emitMostLikely, SequenceFile.Writer writer, VectorWritable vw, Vector pdfPerCluster) throws IOException {
+      boolean emitMostLikely, List<Pair<IntWritable, WeightedVectorWritable>> classified, VectorWritable vw,
+      Vector pdfPerCluster) {
     if (emitMostLikely) {
       int maxValueIndex = pdfPerCluster.maxValueIndex();
       WeightedVectorWritable wvw = new WeightedVectorWritable(pdfPerCluster.maxValue(), vw.get());
-      write(clusterModels, writer, wvw, maxValueIndex);
+      write(clusterModels, classified, wvw, maxValueIndex);
     } else {
-      writeAllAboveThreshold(clusterModels, clusterClassificationThreshold, writer, vw, pdfPerCluster);
+      writeAllAboveThreshold(clusterModels, clusterClassificationThreshold, classified, vw, pdfPerCluster);
     }
   }
   
   private static void writeAllAboveThreshold(List<Cluster> clusterModels, Double clusterClassificationThreshold,
-      SequenceFile.Writer writer, VectorWritable vw, Vector pdfPerCluster) throws IOException {
+      List<Pair<IntWritable, WeightedVectorWritable>> classified, VectorWritable vw, Vector pdfPerCluster) {
     Iterator<Element> iterateNonZero = pdfPerCluster.iterateNonZero();
     while (iterateNonZero.hasNext()) {
       Element pdf = iterateNonZero.next();
       if (pdf.get() >= clusterClassificationThreshold) {
         WeightedVectorWritable wvw = new WeightedVectorWritable(pdf.get(), vw.get());
         int clusterIndex = pdf.index();
-        write(clusterModels, writer, wvw, clusterIndex);
+        write(clusterModels, classified, wvw, clusterIndex);
       }
     }
   }
   
-  private static void write(List<Cluster> clusterModels, SequenceFile.Writer writer, WeightedVectorWritable wvw,
-      int maxValueIndex) throws IOException {
+  private static void write(List<Cluster> clusterModels, List<Pair<IntWritable, WeightedVectorWritable>> classified,
+      WeightedVectorWritable wvw, int maxValueIndex) {
     Cluster cluster = clusterModels.get(maxValueIndex);
-    writer.append(new IntWritable(cluster.getId()), wvw);
+    classified.add(new Pair<IntWritable, WeightedVectorWritable>(new IntWritable(cluster.getId()), wvw));
   }
   
   /**
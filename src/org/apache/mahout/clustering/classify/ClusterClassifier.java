@@ -18,8 +18,11 @@ package org.apache.mahout.clustering.classify;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -35,13 +38,15 @@ import org.apache.mahout.clustering.iterator.ClusterWritable;
 import org.apache.mahout.clustering.iterator.ClusteringPolicy;
 import org.apache.mahout.clustering.iterator.ClusteringPolicyWritable;
 import org.apache.mahout.common.ClassUtils;
+import org.apache.mahout.common.Pair;
 import org.apache.mahout.common.iterator.sequencefile.PathFilters;
 import org.apache.mahout.common.iterator.sequencefile.PathType;
-import org.apache.mahout.common.iterator.sequencefile.SequenceFileDirValueIterable;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileDirIterable;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
 
 /**
@@ -202,14 +207,34 @@ public class ClusterClassifier extends AbstractVectorClassifier implements Onlin
     }
   }
   
+  /**
+   * Reads the models and the policy written by {@link #writeToSeqFiles} or by the reducers of the clustering jobs.
+   * Models keyed by their index, which several reducers write in several files, are put back in the order of their
+   * index.
+   */
   public void readFromSeqFiles(Configuration conf, Path path) throws IOException {
     Configuration config = new Configuration();
     List<Cluster> clusters = Lists.newArrayList();
-    for (ClusterWritable cw : new SequenceFileDirValueIterable<ClusterWritable>(path, PathType.LIST,
-        PathFilters.logsCRCFilter(), config)) {
-      Cluster cluster = cw.getValue();
+    final Map<Cluster,Integer> indices = Maps.newIdentityHashMap();
+    boolean indexed = true;
+    for (Pair<Writable,ClusterWritable> record : new SequenceFileDirIterable<Writable,ClusterWritable>(path,
+        PathType.LIST, PathFilters.logsCRCFilter(), config)) {
+      Cluster cluster = record.getSecond().getValue();
       cluster.configure(conf);
       clusters.add(cluster);
+      if (record.getFirst() instanceof IntWritable) {
+        indices.put(cluster, ((IntWritable) record.getFirst()).get());
+      } else {
+        indexed = false;
+      }
+    }
+    if (indexed) {
+      Collections.sort(clusters, new Comparator<Cluster>() {
+        @Override
+        public int compare(Cluster a, Cluster b) {
+          return indices.get(a).compareTo(indices.get(b));
+        }
+      });
     }
     this.models = clusters;
     modelClass = models.get(0).getClass().getName();
@@ -30,12 +30,54 @@ public class FuzzyKMeansClusterer {
   private double m = 2.0; // default value
   
   public Vector computePi(Collection<SoftCluster> clusters, List<Double> clusterDistanceList) {
-    Vector pi = new DenseVector(clusters.size());
-    for (int i = 0; i < clusters.size(); i++) {
-      double probWeight = computeProbWeight(clusterDistanceList.get(i), clusterDistanceList);
-      pi.set(i, probWeight);
+    double[] distances = new double[clusters.size()];
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] = clusterDistanceList.get(i);
+    }
+    return computePi(distances);
+  }
+
+  /**
+   * Computes the probabilities of a point belonging to each cluster, from its distances to the clusters.
+   * The distances array is overwritten.
+   */
+  public Vector computePi(double[] clusterDistances) {
+    computeMemberships(clusterDistances, m);
+    return new DenseVector(clusterDistances, true);
+  }
+
+  /**
+   * Replaces the distances of a point to the clusters by its memberships, in O(k):
+   * {@code 1 / sum_j (d_i / d_j)^(2/(m-1))} is {@code w_i / sum_j w_j} with {@code w_j = (d_min / d_j)^(2/(m-1))},
+   * so only one pow is computed per cluster, and none when m is 2. Scaling by the smallest distance keeps the
+   * weights in (0, 1]. Zero distances count as {@link #MINIMAL_VALUE}, as in {@link #computeProbWeight}.
+   */
+  public static void computeMemberships(double[] distances, double m) {
+    double minDistance = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < distances.length; i++) {
+      if (distances[i] == 0.0) {
+        distances[i] = MINIMAL_VALUE;
+      }
+      minDistance = Math.min(minDistance, distances[i]);
+    }
+    double exponent = 2.0 / (m - 1);
+    double sum = 0.0;
+    for (int i = 0; i < distances.length; i++) {
+      double weight;
+      if (distances[i] == minDistance) {
+        weight = 1.0;
+      } else if (exponent == 2.0) {
+        double ratio = minDistance / distances[i];
+        weight = ratio * ratio;
+      } else {
+        weight = Math.pow(minDistance / distances[i], exponent);
+      }
+      distances[i] = weight;
+      sum += weight;
+    }
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] /= sum;
     }
-    return pi;
   }
   
   /** Computes the probability of a point belonging to a cluster */
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.clustering.iterator;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.clustering.ClusterObservations;
+
+/**
+ * Merges the observations of a cluster, so that a map task, and each merge of the map outputs on the reducers,
+ * ships one record per cluster
+ */
+public class CICombiner extends Reducer<IntWritable,ClusterObservations,IntWritable,ClusterObservations> {
+  
+  @Override
+  protected void reduce(IntWritable key, Iterable<ClusterObservations> values, Context context) throws IOException,
+      InterruptedException {
+    ClusterObservations total = new ClusterObservations();
+    for (ClusterObservations observations : values) {
+      total.merge(observations);
+    }
+    context.write(key, total);
+  }
+  
+}
@@ -1,24 +1,48 @@
 package org.apache.mahout.clustering.iterator;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.mahout.clustering.AbstractCluster;
 import org.apache.mahout.clustering.Cluster;
+import org.apache.mahout.clustering.ClusterObservations;
 import org.apache.mahout.clustering.classify.ClusterClassifier;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.Vector.Element;
 import org.apache.mahout.math.VectorWritable;
 
-public class CIMapper extends Mapper<WritableComparable<?>,VectorWritable,IntWritable,ClusterWritable> {
+import com.google.common.io.Closeables;
+
+public class CIMapper extends Mapper<WritableComparable<?>,VectorWritable,IntWritable,ClusterObservations> {
+  
+  private static final String COUNTER_GROUP = "K-Means Bounds";
   
   private ClusterClassifier classifier;
   private ClusteringPolicy policy;
+  
+  /** k-means assignment with bounds, null for the other policies */
+  private KMeansBounds bounds;
+  private final KMeansBounds.PointBounds pointBounds = new KMeansBounds.PointBounds();
+  
+  /** bounds of the points of the split computed by the previous iteration, and by this one */
+  private FSDataInputStream boundsIn;
+  private FSDataOutputStream boundsOut;
+  /** bounds of the previous iteration not read yet, and number of points of this iteration */
+  private long previousPoints;
+  private long numPoints;
 
   @Override
   protected void setup(Context context) throws IOException, InterruptedException {
@@ -28,12 +52,119 @@ public class CIMapper extends Mapper<WritableComparable<?>,VectorWritable,IntWri
     classifier.readFromSeqFiles(conf, new Path(priorClustersPath));
     policy = classifier.getPolicy();
     policy.update(classifier);
+    if (KMeansBounds.supports(classifier)) {
+      bounds = new KMeansBounds(classifier);
+      if (conf.getBoolean(ClusterIterator.KEEP_BOUNDS_KEY, false) && context.getInputSplit() instanceof FileSplit) {
+        openBounds(conf, context);
+      }
+      bounds.prepare(classifier.getModels());
+    }
     super.setup(context);
   }
+  
+  /**
+   * Opens the bounds of the split left by the previous iteration in its output, if any, and the file of the bounds
+   * of this iteration, a side file of the task committed with its output. The splits of the input are the same at
+   * each iteration, so the bounds are read in the order of the points.<br>
+   * A bounds file is named by the digest of the identity of its split (path, start, length and modification
+   * time of the file), starts with this identity and ends with its number of points. The bounds of a file
+   * whose identity does not match the split, or whose length does not match its number of points, are not used.
+   */
+  private void openBounds(Configuration conf, Context context) throws IOException, InterruptedException {
+    FileSplit split = (FileSplit) context.getInputSplit();
+    long modificationTime = split.getPath().getFileSystem(conf).getFileStatus(split.getPath()).getModificationTime();
+    String identity = split.getPath().toString() + ':' + split.getStart() + '+' + split.getLength() + '@'
+        + modificationTime;
+    String name = MD5Hash.digest(identity).toString();
+    
+    String previousPriorPath = conf.get(ClusterIterator.PREVIOUS_PRIOR_PATH_KEY, "");
+    if (!previousPriorPath.isEmpty()) {
+      // the prior of this iteration is the output of the previous one
+      Path previousFile = new Path(new Path(conf.get(ClusterIterator.PRIOR_PATH_KEY), ClusterIterator.BOUNDS_DIR),
+          name);
+      FileSystem previousFs = previousFile.getFileSystem(conf);
+      if (previousFs.exists(previousFile)) {
+        boundsIn = openPrevious(previousFs, previousFile, identity);
+        if (boundsIn != null) {
+          // the centers the bounds were computed with
+          ClusterClassifier previous = new ClusterClassifier();
+          previous.readFromSeqFiles(conf, new Path(previousPriorPath));
+          bounds.prepare(previous.getModels());
+        } else {
+          context.getCounter(COUNTER_GROUP, "Mismatched bounds files").increment(1);
+        }
+      }
+    }
+    
+    Path boundsFile = new Path(new Path(FileOutputFormat.getWorkOutputPath(context), ClusterIterator.BOUNDS_DIR),
+        name);
+    boundsOut = boundsFile.getFileSystem(conf).create(boundsFile);
+    boundsOut.writeUTF(identity);
+  }
+  
+  /**
+   * @return the bounds of the previous iteration positioned on the first point, null if they are not the
+   *         bounds of the split
+   */
+  private FSDataInputStream openPrevious(FileSystem fs, Path previousFile, String identity) throws IOException {
+    long length = fs.getFileStatus(previousFile).getLen();
+    FSDataInputStream in = fs.open(previousFile);
+    boolean matches = false;
+    try {
+      if (length >= 8) {
+        in.seek(length - 8);
+        previousPoints = in.readLong();
+        in.seek(0);
+        // a file cut short or left by an older format has a length that does not match its count
+        matches = identity.equals(in.readUTF()) && previousPoints >= 0
+            && in.getPos() + previousPoints * KMeansBounds.PointBounds.BYTES + 8 == length;
+      }
+    } catch (IOException e) {
+      // not a bounds file of this format
+      matches = false;
+    }
+    if (!matches) {
+      Closeables.closeQuietly(in);
+      return null;
+    }
+    return in;
+  }
+  
+  private void readBounds() throws IOException {
+    if (boundsIn != null && previousPoints == 0) {
+      // more points than bounds, the remaining points start from scratch
+      Closeables.closeQuietly(boundsIn);
+      boundsIn = null;
+    }
+    if (boundsIn == null) {
+      pointBounds.reset();
+      return;
+    }
+    try {
+      pointBounds.readFields(boundsIn);
+      previousPoints--;
+    } catch (EOFException e) {
+      // more points than bounds, the remaining points start from scratch
+      Closeables.closeQuietly(boundsIn);
+      boundsIn = null;
+      pointBounds.reset();
+    }
+  }
 
   @Override
   protected void map(WritableComparable<?> key, VectorWritable value, Context context) throws IOException,
       InterruptedException {
+    if (bounds != null) {
+      // k-means assignment, skipping the distances the bounds rule out
+      readBounds();
+      int index = bounds.assign(value.get(), pointBounds);
+      if (boundsOut != null) {
+        pointBounds.write(boundsOut);
+        numPoints++;
+      }
+      classifier.train(index, value.get(), 1.0);
+      return;
+    }
     Vector probabilities = classifier.classify(value.get());
     Vector selections = policy.select(probabilities);
     for (Iterator<Element> it = selections.iterateNonZero(); it.hasNext();) {
@@ -44,11 +175,19 @@ public class CIMapper extends Mapper<WritableComparable<?>,VectorWritable,IntWri
 
   @Override
   protected void cleanup(Context context) throws IOException, InterruptedException {
+    // only the observations are shipped, the reducers take the parameters of the clusters from the prior
     List<Cluster> clusters = classifier.getModels();
-    ClusterWritable cw = new ClusterWritable();
     for (int index = 0; index < clusters.size(); index++) {
-      cw.setValue(clusters.get(index));
-      context.write(new IntWritable(index), cw);
+      context.write(new IntWritable(index), new ClusterObservations((AbstractCluster) clusters.get(index)));
+    }
+    if (bounds != null) {
+      context.getCounter(COUNTER_GROUP, "Points").increment(bounds.getNumAssignments());
+      context.getCounter(COUNTER_GROUP, "Distances").increment(bounds.getNumDistances());
+      Closeables.closeQuietly(boundsIn);
+      if (boundsOut != null) {
+        boundsOut.writeLong(numPoints);
+        boundsOut.close();
+      }
     }
     super.cleanup(context);
   }
@@ -19,35 +19,37 @@ package org.apache.mahout.clustering.iterator;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.clustering.AbstractCluster;
 import org.apache.mahout.clustering.Cluster;
+import org.apache.mahout.clustering.ClusterObservations;
 import org.apache.mahout.clustering.classify.ClusterClassifier;
 
-public class CIReducer extends Reducer<IntWritable,ClusterWritable,IntWritable,ClusterWritable> {
+/**
+ * Adds the observations of the mappers to the cluster of the prior with the same index and computes its posterior.
+ * Each reducer gets the clusters of its partition.
+ */
+public class CIReducer extends Reducer<IntWritable,ClusterObservations,IntWritable,ClusterWritable> {
   
   private ClusterClassifier classifier;
   private ClusteringPolicy policy;
   
   @Override
-  protected void reduce(IntWritable key, Iterable<ClusterWritable> values, Context context) throws IOException,
+  protected void reduce(IntWritable key, Iterable<ClusterObservations> values, Context context) throws IOException,
       InterruptedException {
-    Iterator<ClusterWritable> iter = values.iterator();
-    Cluster first = iter.next().getValue(); // there must always be at least one
-    while (iter.hasNext()) {
-      Cluster cluster = iter.next().getValue();
-      first.observe(cluster);
+    Cluster cluster = classifier.getModels().get(key.get());
+    for (ClusterObservations observations : values) {
+      observations.observedBy((AbstractCluster) cluster);
     }
     List<Cluster> models = new ArrayList<Cluster>();
-    models.add(first);
-    classifier = new ClusterClassifier(models, policy);
-    classifier.close();
-    context.write(key, new ClusterWritable(first));
+    models.add(cluster);
+    new ClusterClassifier(models, policy).close();
+    context.write(key, new ClusterWritable(cluster));
   }
 
   @Override
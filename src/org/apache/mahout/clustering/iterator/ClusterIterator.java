@@ -17,12 +17,22 @@
 package org.apache.mahout.clustering.iterator;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
@@ -30,6 +40,7 @@ import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.mahout.clustering.Cluster;
+import org.apache.mahout.clustering.ClusterObservations;
 import org.apache.mahout.clustering.classify.ClusterClassifier;
 import org.apache.mahout.common.iterator.sequencefile.PathFilters;
 import org.apache.mahout.common.iterator.sequencefile.PathType;
@@ -38,7 +49,11 @@ import org.apache.mahout.common.iterator.sequencefile.SequenceFileValueIterator;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.MoreExecutors;
 
 /**
  * This is a clustering iterator which works with a set of Vector data and a prior ClusterClassifier which has been
@@ -49,12 +64,38 @@ import com.google.common.io.Closeables;
 public final class ClusterIterator {
   
   public static final String PRIOR_PATH_KEY = "org.apache.mahout.clustering.prior.path";
+  
+  /**
+   * directory of the output of an iteration where the k-means mappers keep the bounds of their points for the next
+   * iteration, committed with the output of their task
+   */
+  public static final String BOUNDS_DIR = "_bounds";
+  
+  /** true if the k-means mappers keep the bounds of their points */
+  public static final String KEEP_BOUNDS_KEY = "org.apache.mahout.clustering.bounds.keep";
+  
+  /** prior of the previous iteration, the centers the bounds were computed with */
+  public static final String PREVIOUS_PRIOR_PATH_KEY = "org.apache.mahout.clustering.previous.prior.path";
+  
+  /**
+   * maximum number of points whose k-means bounds the sequential iterations keep in memory, the other points are
+   * assigned from scratch at each iteration; by default as many as a quarter of the heap holds
+   */
+  public static final String MAX_BOUNDED_POINTS_KEY = "org.apache.mahout.clustering.bounds.max.points";
+  
+  /** number of threads of the sequential iterations, 1 by default */
+  public static final String NUM_THREADS_KEY = "org.apache.mahout.clustering.sequential.threads";
+  
+  /** number of consecutive vectors trained by one task of the parallel iterations, it fixes the order of the sums */
+  static final int CHUNK_SIZE = 2048;
 
   private ClusterIterator() {
   }
   
   /**
-   * Iterate over data using a prior-trained ClusterClassifier, for a number of iterations
+   * Iterate over data using a prior-trained ClusterClassifier, for a number of iterations. Same as
+   * {@link #iterate(Iterable, ClusterClassifier, int, int)} with 1 thread: the vectors are trained in chunks on the
+   * calling thread, so the posterior is the one of any number of threads
    *
    * @param data
    *          a {@code List<Vector>} of input vectors
@@ -66,6 +107,21 @@ public final class ClusterIterator {
    * @return the posterior ClusterClassifier
    */
   public static ClusterClassifier iterate(Iterable<Vector> data, ClusterClassifier classifier, int numIterations) {
+    try {
+      return iterate(data, classifier, numIterations, 1);
+    } catch (InterruptedException e) {
+      // the chunks are trained on the calling thread, only an interrupted caller gets here
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * Iterates the Dirichlet policy, which samples its mixture for every vector, vector by vector on the calling
+   * thread
+   */
+  private static ClusterClassifier iterateDirichlet(Iterable<Vector> data, ClusterClassifier classifier,
+      int numIterations) {
     ClusteringPolicy policy = classifier.getPolicy();
     for (int iteration = 1; iteration <= numIterations; iteration++) {
       for (Vector vector : data) {
@@ -87,9 +143,209 @@ public final class ClusterIterator {
     return classifier;
   }
   
+  /**
+   * Iterate over data using a prior-trained ClusterClassifier, for a number of iterations, on several threads. The
+   * data is cut in chunks of consecutive vectors, each trained by copies of the models which are then added to the
+   * classifier in the order of the chunks, so the posterior does not depend on the number of threads. The models
+   * must not hold observations yet, as after a close(); the Dirichlet policy, which samples its selections, is
+   * iterated on the calling thread. With 1 thread the chunks are trained on the calling thread.
+   * 
+   * @param data
+   *          a {@code List<Vector>} of input vectors
+   * @param classifier
+   *          a prior ClusterClassifier
+   * @param numIterations
+   *          the int number of iterations to perform
+   * @param numThreads
+   *          the int number of threads training the models
+   * 
+   * @return the posterior ClusterClassifier
+   */
+  public static ClusterClassifier iterate(Iterable<Vector> data, ClusterClassifier classifier, int numIterations,
+      int numThreads) throws InterruptedException {
+    if (classifier.getPolicy() instanceof DirichletClusteringPolicy) {
+      return iterateDirichlet(data, classifier, numIterations);
+    }
+    KMeansBounds bounds = KMeansBounds.supports(classifier) ? new KMeansBounds(classifier) : null;
+    List<KMeansBounds.PointBounds[]> chunkBounds = Lists.newArrayList();
+    int maxBoundChunks = maxBoundChunks(KMeansBounds.maxPoints());
+    ExecutorService pool = newPool(numThreads);
+    try {
+      for (int iteration = 1; iteration <= numIterations; iteration++) {
+        classifier.getPolicy().update(classifier);
+        if (bounds != null) {
+          bounds.prepare(classifier.getModels());
+        }
+        train(data, classifier, bounds, chunkBounds, maxBoundChunks, pool, numThreads);
+        // compute the posterior models
+        classifier.close();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return classifier;
+  }
+  
+  /**
+   * @return a pool of numThreads threads, or an executor running the tasks on the calling thread for 1 thread
+   */
+  private static ExecutorService newPool(int numThreads) {
+    return numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : MoreExecutors.sameThreadExecutor();
+  }
+  
+  private static int maxBoundChunks(long maxPoints) {
+    return (int) Math.min(Integer.MAX_VALUE, maxPoints / CHUNK_SIZE);
+  }
+  
+  /**
+   * Trains the classifier with the data, one chunk per task. The bounds of the points of the first maxBoundChunks
+   * chunks are kept for the next iteration
+   */
+  private static void train(Iterable<Vector> data, ClusterClassifier classifier, KMeansBounds bounds,
+      List<KMeansBounds.PointBounds[]> chunkBounds, int maxBoundChunks, ExecutorService pool, int numThreads)
+    throws InterruptedException {
+    byte[] models = writeModels(classifier.getModels());
+    Queue<Future<List<Cluster>>> pending = Lists.newLinkedList();
+    List<Vector> chunk = Lists.newArrayListWithCapacity(CHUNK_SIZE);
+    int numChunks = 0;
+    for (Vector vector : data) {
+      chunk.add(vector);
+      if (chunk.size() == CHUNK_SIZE) {
+        pending.add(pool.submit(new ChunkTrainer(chunk, models, classifier.getPolicy(), bounds,
+            getBounds(chunkBounds, maxBoundChunks, numChunks++))));
+        chunk = Lists.newArrayListWithCapacity(CHUNK_SIZE);
+        // keeps a few chunks per thread in memory
+        if (pending.size() >= 2 * numThreads) {
+          merge(classifier, pending.remove());
+        }
+      }
+    }
+    if (!chunk.isEmpty()) {
+      pending.add(pool.submit(new ChunkTrainer(chunk, models, classifier.getPolicy(), bounds,
+          getBounds(chunkBounds, maxBoundChunks, numChunks))));
+    }
+    while (!pending.isEmpty()) {
+      merge(classifier, pending.remove());
+    }
+  }
+  
+  /**
+   * @return the bounds of the points of the chunk, null if the chunk is beyond the bounds kept
+   */
+  private static KMeansBounds.PointBounds[] getBounds(List<KMeansBounds.PointBounds[]> chunkBounds,
+      int maxBoundChunks, int chunk) {
+    if (chunk >= maxBoundChunks) {
+      return null;
+    }
+    if (chunkBounds.size() == chunk) {
+      chunkBounds.add(new KMeansBounds.PointBounds[CHUNK_SIZE]);
+    }
+    return chunkBounds.get(chunk);
+  }
+  
+  /**
+   * Adds the observations of the models trained by a chunk to the models of the classifier
+   */
+  private static void merge(ClusterClassifier classifier, Future<List<Cluster>> trained)
+    throws InterruptedException {
+    List<Cluster> models;
+    try {
+      models = trained.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    for (int i = 0; i < models.size(); i++) {
+      classifier.getModels().get(i).observe(models.get(i));
+    }
+  }
+  
+  private static byte[] writeModels(List<Cluster> models) {
+    DataOutputBuffer out = new DataOutputBuffer();
+    try {
+      out.writeInt(models.size());
+      for (Cluster model : models) {
+        new ClusterWritable(model).write(out);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+  
+  private static List<Cluster> readModels(byte[] bytes) {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(bytes, bytes.length);
+    try {
+      int size = in.readInt();
+      List<Cluster> models = Lists.newArrayListWithCapacity(size);
+      for (int i = 0; i < size; i++) {
+        ClusterWritable writable = new ClusterWritable();
+        writable.readFields(in);
+        models.add(writable.getValue());
+      }
+      return models;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * Trains copies of the models with a chunk of the data
+   */
+  private static final class ChunkTrainer implements Callable<List<Cluster>> {
+    
+    private final List<Vector> chunk;
+    private final byte[] models;
+    private final ClusteringPolicy policy;
+    private final KMeansBounds bounds;
+    private final KMeansBounds.PointBounds[] pointBounds;
+    
+    ChunkTrainer(List<Vector> chunk, byte[] models, ClusteringPolicy policy, KMeansBounds bounds,
+        KMeansBounds.PointBounds[] pointBounds) {
+      this.chunk = chunk;
+      this.models = models;
+      this.policy = policy;
+      this.bounds = bounds;
+      this.pointBounds = pointBounds;
+    }
+    
+    @Override
+    public List<Cluster> call() {
+      ClusterClassifier copy = new ClusterClassifier(readModels(models), policy);
+      KMeansBounds worker = bounds == null ? null : bounds.worker(copy);
+      // bounds of the points whose bounds are not kept, computed from scratch
+      KMeansBounds.PointBounds scratch = new KMeansBounds.PointBounds();
+      for (int i = 0; i < chunk.size(); i++) {
+        Vector vector = chunk.get(i);
+        if (worker != null) {
+          KMeansBounds.PointBounds point = scratch;
+          if (pointBounds == null) {
+            scratch.reset();
+          } else {
+            if (pointBounds[i] == null) {
+              pointBounds[i] = new KMeansBounds.PointBounds();
+            }
+            point = pointBounds[i];
+          }
+          copy.train(worker.assign(vector, point), vector, 1.0);
+          continue;
+        }
+        Vector weights = policy.select(copy.classify(vector));
+        for (Iterator<Vector.Element> it = weights.iterateNonZero(); it.hasNext();) {
+          int index = it.next().index();
+          copy.train(index, vector, weights.get(index));
+        }
+      }
+      return copy.getModels();
+    }
+  }
+  
   /**
    * Iterate over data using a prior-trained ClusterClassifier, for a number of iterations using a sequential
-   * implementation
+   * implementation. The vectors are trained in chunks as by {@link #iterate(Iterable, ClusterClassifier, int, int)},
+   * on {@link #NUM_THREADS_KEY} threads, so the posterior does not depend on the number of threads
    * 
    * @param conf
    *          the Configuration
@@ -106,42 +362,76 @@ public final class ClusterIterator {
     throws IOException {
     ClusterClassifier classifier = new ClusterClassifier();
     classifier.readFromSeqFiles(conf, priorPath);
+    KMeansBounds bounds = KMeansBounds.supports(classifier) ? new KMeansBounds(classifier) : null;
+    int numThreads = conf.getInt(NUM_THREADS_KEY, 1);
+    ExecutorService pool = classifier.getPolicy() instanceof DirichletClusteringPolicy ? null : newPool(numThreads);
+    List<KMeansBounds.PointBounds[]> chunkBounds = Lists.newArrayList();
+    int maxBoundChunks = maxBoundChunks(conf.getLong(MAX_BOUNDED_POINTS_KEY, KMeansBounds.maxPoints()));
     Path clustersOut = null;
     int iteration = 1;
-    while (iteration <= numIterations) {
-      for (VectorWritable vw : new SequenceFileDirValueIterable<VectorWritable>(inPath, PathType.LIST,
-          PathFilters.logsCRCFilter(), conf)) {
-        Vector vector = vw.get();
-        // classification yields probabilities
-        Vector probabilities = classifier.classify(vector);
-        // policy selects weights for models given those probabilities
-        Vector weights = classifier.getPolicy().select(probabilities);
-        // training causes all models to observe data
-        for (Iterator<Vector.Element> it = weights.iterateNonZero(); it.hasNext();) {
-          int index = it.next().index();
-          classifier.train(index, vector, weights.get(index));
+    try {
+      while (iteration <= numIterations) {
+        if (bounds != null) {
+          bounds.prepare(classifier.getModels());
+        }
+        Iterable<VectorWritable> input = new SequenceFileDirValueIterable<VectorWritable>(inPath, PathType.LIST,
+            PathFilters.logsCRCFilter(), conf);
+        if (pool == null) {
+          train(input, classifier);
+        } else {
+          train(Iterables.transform(input, new Function<VectorWritable, Vector>() {
+            @Override
+            public Vector apply(VectorWritable vw) {
+              return vw.get();
+            }
+          }), classifier, bounds, chunkBounds, maxBoundChunks, pool, numThreads);
+        }
+        // compute the posterior models
+        classifier.close();
+        // update the policy
+        classifier.getPolicy().update(classifier);
+        // output the classifier
+        clustersOut = new Path(outPath, Cluster.CLUSTERS_DIR + iteration);
+        classifier.writeToSeqFiles(clustersOut);
+        FileSystem fs = FileSystem.get(outPath.toUri(), conf);
+        iteration++;
+        if (isConverged(clustersOut, conf, fs)) {
+          break;
         }
       }
-      // compute the posterior models
-      classifier.close();
-      // update the policy
-      classifier.getPolicy().update(classifier);
-      // output the classifier
-      clustersOut = new Path(outPath, Cluster.CLUSTERS_DIR + iteration);
-      classifier.writeToSeqFiles(clustersOut);
-      FileSystem fs = FileSystem.get(outPath.toUri(), conf);
-      iteration++;
-      if (isConverged(clustersOut, conf, fs)) {
-        break;
+    } catch (InterruptedException e) {
+      throw (IOException) new InterruptedIOException("Interrupted in iteration " + iteration).initCause(e);
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
       }
     }
     Path finalClustersIn = new Path(outPath, Cluster.CLUSTERS_DIR + (iteration - 1) + Cluster.FINAL_ITERATION_SUFFIX);
     FileSystem.get(clustersOut.toUri(), conf).rename(clustersOut, finalClustersIn);
   }
   
+  /**
+   * Trains the classifier with the input on the calling thread, vector by vector, for the Dirichlet policy
+   */
+  private static void train(Iterable<VectorWritable> input, ClusterClassifier classifier) {
+    for (VectorWritable vw : input) {
+      Vector vector = vw.get();
+      // classification yields probabilities
+      Vector probabilities = classifier.classify(vector);
+      // policy selects weights for models given those probabilities
+      Vector weights = classifier.getPolicy().select(probabilities);
+      // training causes all models to observe data
+      for (Iterator<Vector.Element> it = weights.iterateNonZero(); it.hasNext();) {
+        int index = it.next().index();
+        classifier.train(index, vector, weights.get(index));
+      }
+    }
+  }
+  
   /**
    * Iterate over data using a prior-trained ClusterClassifier, for a number of iterations using a mapreduce
-   * implementation
+   * implementation. The mappers ship the observations of the clusters, merged by a combiner, and the clusters are
+   * partitioned by index over the reducers of the configuration (mapred.reduce.tasks), at most one per cluster.
    * 
    * @param conf
    *          the Configuration
@@ -157,25 +447,35 @@ public final class ClusterIterator {
   public static void iterateMR(Configuration conf, Path inPath, Path priorPath, Path outPath, int numIterations)
     throws IOException, InterruptedException, ClassNotFoundException {
     ClusteringPolicy policy = ClusterClassifier.readPolicy(priorPath);
+    ClusterClassifier prior = new ClusterClassifier();
+    prior.readFromSeqFiles(conf, priorPath);
+    int numClusters = prior.getModels().size();
+    Path previousPriorPath = null;
     Path clustersOut = null;
     int iteration = 1;
     while (iteration <= numIterations) {
       conf.set(PRIOR_PATH_KEY, priorPath.toString());
+      conf.set(PREVIOUS_PRIOR_PATH_KEY, previousPriorPath == null ? "" : previousPriorPath.toString());
+      conf.setBoolean(KEEP_BOUNDS_KEY, true);
       
       String jobName = "Cluster Iterator running iteration " + iteration + " over priorPath: " + priorPath;
       Job job = new Job(conf, jobName);
       job.setMapOutputKeyClass(IntWritable.class);
-      job.setMapOutputValueClass(ClusterWritable.class);
+      job.setMapOutputValueClass(ClusterObservations.class);
       job.setOutputKeyClass(IntWritable.class);
       job.setOutputValueClass(ClusterWritable.class);
       
       job.setInputFormatClass(SequenceFileInputFormat.class);
       job.setOutputFormatClass(SequenceFileOutputFormat.class);
       job.setMapperClass(CIMapper.class);
+      job.setCombinerClass(CICombiner.class);
       job.setReducerClass(CIReducer.class);
+      // the clusters are partitioned by index over the reducers configured, at most one per cluster
+      job.setNumReduceTasks(Math.max(1, Math.min(numClusters, job.getNumReduceTasks())));
       
       FileInputFormat.addInputPath(job, inPath);
       clustersOut = new Path(outPath, Cluster.CLUSTERS_DIR + iteration);
+      previousPriorPath = priorPath;
       priorPath = clustersOut;
       FileOutputFormat.setOutputPath(job, clustersOut);
       
@@ -185,11 +485,16 @@ public final class ClusterIterator {
       }
       ClusterClassifier.writePolicy(policy, clustersOut);
       FileSystem fs = FileSystem.get(outPath.toUri(), conf);
+      if (iteration > 1) {
+        // the bounds of the previous iteration, in its output, are no longer needed
+        fs.delete(new Path(previousPriorPath, BOUNDS_DIR), true);
+      }
       iteration++;
       if (isConverged(clustersOut, conf, fs)) {
         break;
       }
     }
+    FileSystem.get(clustersOut.toUri(), conf).delete(new Path(clustersOut, BOUNDS_DIR), true);
     Path finalClustersIn = new Path(outPath, Cluster.CLUSTERS_DIR + (iteration - 1) + Cluster.FINAL_ITERATION_SUFFIX);
     FileSystem.get(clustersOut.toUri(), conf).rename(clustersOut, finalClustersIn);
   }
@@ -26,12 +26,15 @@ import org.apache.mahout.clustering.AbstractCluster;
 import org.apache.mahout.clustering.Model;
 import org.apache.mahout.common.ClassUtils;
 import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.PreparedCentroid;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
 public class DistanceMeasureCluster extends AbstractCluster {
 
   private DistanceMeasure measure;
+  /** center prepared for the measure, rebuilt when the center is replaced */
+  private PreparedCentroid prepared;
 
   public DistanceMeasureCluster(Vector point, int id, DistanceMeasure measure) {
     super(point, id);
@@ -52,6 +55,7 @@ public class DistanceMeasureCluster extends AbstractCluster {
   public void readFields(DataInput in) throws IOException {
     String dm = in.readUTF();
     this.measure = ClassUtils.instantiateAs(dm, DistanceMeasure.class);
+    this.prepared = null;
     super.readFields(in);
   }
 
@@ -63,7 +67,19 @@ public class DistanceMeasureCluster extends AbstractCluster {
 
   @Override
   public double pdf(VectorWritable vw) {
-    return 1 / (1 + measure.distance(vw.get(), getCenter()));
+    return 1 / (1 + distance(vw.get()));
+  }
+
+  /**
+   * @return the distance between the point and the center, computed with the norms of the center cached
+   */
+  public double distance(Vector point) {
+    PreparedCentroid centroid = prepared;
+    if (centroid == null || centroid.getCentroid() != getCenter() || centroid.getMeasure() != measure) {
+      centroid = new PreparedCentroid(measure, getCenter());
+      prepared = centroid;
+    }
+    return centroid.distance(point);
   }
 
   @Override
@@ -81,6 +97,7 @@ public class DistanceMeasureCluster extends AbstractCluster {
    */
   public void setMeasure(DistanceMeasure measure) {
     this.measure = measure;
+    this.prepared = null;
   }
 
   @Override
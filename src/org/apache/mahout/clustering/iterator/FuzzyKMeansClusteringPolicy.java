@@ -19,17 +19,15 @@ package org.apache.mahout.clustering.iterator;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.List;
 
 import org.apache.mahout.clustering.Cluster;
 import org.apache.mahout.clustering.classify.ClusterClassifier;
 import org.apache.mahout.clustering.fuzzykmeans.FuzzyKMeansClusterer;
 import org.apache.mahout.clustering.fuzzykmeans.SoftCluster;
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Vector;
 
-import com.google.common.collect.Lists;
-
 /**
  * This is a probability-weighted clustering policy, suitable for fuzzy k-means
  * clustering
@@ -55,16 +53,13 @@ public class FuzzyKMeansClusteringPolicy extends AbstractClusteringPolicy {
   
   @Override
   public Vector classify(Vector data, ClusterClassifier prior) {
-    Collection<SoftCluster> clusters = Lists.newArrayList();
-    List<Double> distances = Lists.newArrayList();
-    for (Cluster model : prior.getModels()) {
-      SoftCluster sc = (SoftCluster) model;
-      clusters.add(sc);
-      distances.add(sc.getMeasure().distance(data, sc.getCenter()));
+    List<Cluster> models = prior.getModels();
+    double[] distances = new double[models.size()];
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] = ((SoftCluster) models.get(i)).distance(data);
     }
-    FuzzyKMeansClusterer fuzzyKMeansClusterer = new FuzzyKMeansClusterer();
-    fuzzyKMeansClusterer.setM(m);
-    return fuzzyKMeansClusterer.computePi(clusters, distances);
+    FuzzyKMeansClusterer.computeMemberships(distances, m);
+    return new DenseVector(distances, true);
   }
 
   @Override
@@ -0,0 +1,422 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering.iterator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.mahout.clustering.Cluster;
+import org.apache.mahout.clustering.classify.ClusterClassifier;
+import org.apache.mahout.common.distance.ChebyshevDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.ManhattanDistanceMeasure;
+import org.apache.mahout.common.distance.PreparedCentroid;
+import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Assigns points to k-means clusters while skipping most of the distance computations. Each point keeps the
+ * index of its cluster, an upper bound of the distance to its center and a lower bound of the distance to every
+ * other center (Hamerly). The bounds are moved by the drift of the centers between iterations, and the distances
+ * between centers prune the rest (Elkan): a point closer to its center than half the distance to any other one
+ * keeps its cluster without computing a single distance.<br>
+ * The assignments are the same as {@link KMeansClusteringPolicy}: a center is skipped only when its pdf is
+ * certainly lower than the best one by more than the rounding of the normalization, and the rare points with two
+ * nearly equal pdfs are classified by the classifier itself. The bounds need a metric, so this is only used with
+ * the Euclidean, squared Euclidean (through its square root), Manhattan and Chebyshev measures. The Euclidean
+ * distances come from the lengths and the dot product of the vectors, their rounding error grows with the lengths
+ * and not with the distance, so the bounds also keep an absolute slack.
+ */
+public final class KMeansBounds {
+
+  /** relative slack of the bounds, covers the rounding of the distances */
+  private static final double TOLERANCE = 1.0e-8;
+
+  /** rounding of a squared Euclidean distance, relative to the squared lengths and per dimension */
+  private static final double LENGTH_TOLERANCE = 4 * Math.ulp(1.0);
+
+  /** relative gap between two pdfs that makes their order independent of the normalization of the pdfs */
+  private static final double PDF_GAP = 1.0e-12;
+
+  /** estimated size of the bounds of a point on the heap: the object, its fields and a reference to it */
+  private static final long POINT_BOUNDS_BYTES = 48;
+
+  /**
+   * Bounds of a point
+   */
+  public static final class PointBounds implements Writable {
+
+    /** size of the serialized bounds */
+    static final int BYTES = 4 + 8 + 8;
+
+    private int cluster = -1;
+    private double upper;
+    private double lower;
+
+    /**
+     * Forgets the bounds, the next assignment computes the distance to every center
+     */
+    public void reset() {
+      cluster = -1;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeInt(cluster);
+      out.writeDouble(upper);
+      out.writeDouble(lower);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      cluster = in.readInt();
+      upper = in.readDouble();
+      lower = in.readDouble();
+    }
+  }
+
+  private final ClusterClassifier classifier;
+  private final DistanceMeasure measure;
+  private final boolean squared;
+  /** true if the distances are computed from the lengths of the vectors */
+  private final boolean euclidean;
+
+  private Vector[] centers;
+  /** centers prepared for the measure, as the pdf of the models prepares them */
+  private PreparedCentroid[] preparedCenters;
+  /** distance between the centers, as a metric */
+  private double[][] centerDistances;
+  /** half the distance from each center to the closest other one */
+  private double[] halfMinDistances;
+  /** distance moved by each center since the previous call to prepare, null if the bounds are not valid */
+  private double[] drifts;
+  private double maxDrift;
+  private double secondMaxDrift;
+  private int maxDriftIndex;
+  private double maxCenterLengthSquared;
+
+  /** per center scratch of assign: exact distance, NaN if pruned, and lower bound */
+  private double[] distances;
+  private double[] lowerBounds;
+
+  private long numAssignments;
+  private long numDistances;
+
+  public KMeansBounds(ClusterClassifier classifier) {
+    this.classifier = classifier;
+    measure = ((DistanceMeasureCluster) classifier.getModels().get(0)).getMeasure();
+    squared = measure.getClass() == SquaredEuclideanDistanceMeasure.class;
+    euclidean = squared || measure.getClass() == EuclideanDistanceMeasure.class;
+  }
+
+  private KMeansBounds(KMeansBounds prepared, ClusterClassifier classifier) {
+    this.classifier = classifier;
+    measure = prepared.measure;
+    squared = prepared.squared;
+    euclidean = prepared.euclidean;
+    centers = prepared.centers;
+    preparedCenters = prepared.preparedCenters;
+    centerDistances = prepared.centerDistances;
+    halfMinDistances = prepared.halfMinDistances;
+    drifts = prepared.drifts;
+    maxDrift = prepared.maxDrift;
+    secondMaxDrift = prepared.secondMaxDrift;
+    maxDriftIndex = prepared.maxDriftIndex;
+    maxCenterLengthSquared = prepared.maxCenterLengthSquared;
+    distances = new double[centers.length];
+    lowerBounds = new double[centers.length];
+  }
+
+  /**
+   * @return true if the classifier is a k-means classifier whose clusters share a measure that is, or is the
+   *         square of, a metric
+   */
+  public static boolean supports(ClusterClassifier classifier) {
+    if (classifier.getPolicy() == null || classifier.getPolicy().getClass() != KMeansClusteringPolicy.class) {
+      return false;
+    }
+    List<Cluster> models = classifier.getModels();
+    if (models == null || models.isEmpty()) {
+      return false;
+    }
+    Class<?> measureClass = null;
+    for (Cluster model : models) {
+      if (!(model instanceof DistanceMeasureCluster)) {
+        return false;
+      }
+      DistanceMeasure modelMeasure = ((DistanceMeasureCluster) model).getMeasure();
+      if (modelMeasure == null || (measureClass != null && modelMeasure.getClass() != measureClass)) {
+        return false;
+      }
+      measureClass = modelMeasure.getClass();
+    }
+    return measureClass == EuclideanDistanceMeasure.class || measureClass == SquaredEuclideanDistanceMeasure.class
+        || measureClass == ManhattanDistanceMeasure.class || measureClass == ChebyshevDistanceMeasure.class;
+  }
+
+  /**
+   * @return the number of points whose bounds a quarter of the heap holds
+   */
+  public static long maxPoints() {
+    return Runtime.getRuntime().maxMemory() / 4 / POINT_BOUNDS_BYTES;
+  }
+
+  /**
+   * Takes the centers of the models for the next assignments. Called before each iteration; from the second call
+   * on the bounds of the points are moved by the drift of the centers
+   */
+  public void prepare(List<Cluster> models) {
+    int k = models.size();
+    Vector[] newCenters = new Vector[k];
+    PreparedCentroid[] newPreparedCenters = new PreparedCentroid[k];
+    for (int c = 0; c < k; c++) {
+      newCenters[c] = models.get(c).getCenter().clone();
+      newPreparedCenters[c] = new PreparedCentroid(measure, newCenters[c]);
+    }
+
+    if (centers != null && centers.length == k) {
+      drifts = new double[k];
+      maxDrift = 0.0;
+      secondMaxDrift = 0.0;
+      maxDriftIndex = -1;
+      for (int c = 0; c < k; c++) {
+        drifts[c] = metric(preparedCenters[c].distance(newCenters[c])) * (1 + TOLERANCE)
+            + slack(centers[c], newCenters[c].getLengthSquared());
+        if (drifts[c] > maxDrift) {
+          secondMaxDrift = maxDrift;
+          maxDrift = drifts[c];
+          maxDriftIndex = c;
+        } else if (drifts[c] > secondMaxDrift) {
+          secondMaxDrift = drifts[c];
+        }
+      }
+    } else {
+      drifts = null;
+    }
+
+    centers = newCenters;
+    preparedCenters = newPreparedCenters;
+    maxCenterLengthSquared = 0.0;
+    if (euclidean) {
+      for (Vector center : centers) {
+        maxCenterLengthSquared = Math.max(maxCenterLengthSquared, center.getLengthSquared());
+      }
+    }
+    centerDistances = new double[k][k];
+    halfMinDistances = new double[k];
+    Arrays.fill(halfMinDistances, Double.POSITIVE_INFINITY);
+    for (int a = 0; a < k; a++) {
+      for (int b = a + 1; b < k; b++) {
+        double distance = metric(preparedCenters[a].distance(centers[b])) * (1 - TOLERANCE)
+            - slack(centers[a], centers[b].getLengthSquared());
+        centerDistances[a][b] = distance;
+        centerDistances[b][a] = distance;
+        halfMinDistances[a] = Math.min(halfMinDistances[a], distance / 2);
+        halfMinDistances[b] = Math.min(halfMinDistances[b], distance / 2);
+      }
+    }
+    distances = new double[k];
+    lowerBounds = new double[k];
+  }
+
+  /**
+   * Bounds sharing the centers prepared here, to assign points on another thread until the next call to prepare
+   *
+   * @param copy
+   *          classifier with the same models, used by this thread only
+   */
+  public KMeansBounds worker(ClusterClassifier copy) {
+    return new KMeansBounds(this, copy);
+  }
+
+  /**
+   * Assigns the point and updates its bounds
+   *
+   * @return the index of the cluster of the point
+   */
+  public int assign(Vector point, PointBounds bounds) {
+    numAssignments++;
+    double slack = slack(point, maxCenterLengthSquared);
+    int cluster = bounds.cluster;
+    if (cluster < 0 || drifts == null || cluster >= centers.length) {
+      return scan(point, bounds, -1, 0.0, slack);
+    }
+
+    bounds.upper += drifts[cluster];
+    bounds.lower -= cluster == maxDriftIndex ? secondMaxDrift : maxDrift;
+    if (keeps(bounds, cluster, slack)) {
+      return cluster;
+    }
+
+    double distance = distance(point, cluster);
+    bounds.upper = metric(distance) + slack;
+    if (keeps(bounds, cluster, slack)) {
+      return cluster;
+    }
+    return scan(point, bounds, cluster, distance, slack);
+  }
+
+  /**
+   * @return true if the bounds prove that every other center has a lower pdf than the center of the point
+   */
+  private boolean keeps(PointBounds bounds, int cluster, double slack) {
+    double otherBound = Math.max(bounds.lower, 2 * halfMinDistances[cluster] - bounds.upper);
+    return otherBound - slack > tieThreshold(bounds.upper + slack);
+  }
+
+  /**
+   * Finds the cluster of the point, computing the distances to the centers that cannot be pruned
+   *
+   * @param cluster
+   *          center whose distance is known, -1 if none
+   * @param slack
+   *          rounding of the distances of the point
+   */
+  private int scan(Vector point, PointBounds bounds, int cluster, double distance, double slack) {
+    int k = centers.length;
+    int first = cluster;
+    int best = cluster;
+    double bestDistance = distance;
+    if (best < 0) {
+      first = 0;
+      best = 0;
+      bestDistance = distance(point, 0);
+    }
+    if (Double.isNaN(bestDistance)) {
+      return scanAll(point, bounds, slack);
+    }
+    double bestMetric = metric(bestDistance);
+    distances[first] = bestDistance;
+    lowerBounds[first] = bestMetric - slack;
+
+    for (int c = 0; c < k; c++) {
+      if (c == first) {
+        continue;
+      }
+      double lowerBound = centerDistances[best][c] - bestMetric - slack;
+      if (lowerBound - slack > tieThreshold(bestMetric)) {
+        distances[c] = Double.NaN;
+        lowerBounds[c] = lowerBound;
+        continue;
+      }
+      double d = distance(point, c);
+      if (Double.isNaN(d)) {
+        return scanAll(point, bounds, slack);
+      }
+      distances[c] = d;
+      lowerBounds[c] = metric(d) - slack;
+      double pdf = pdf(d);
+      double bestPdf = pdf(bestDistance);
+      if (pdf > bestPdf || (pdf == bestPdf && c < best)) {
+        best = c;
+        bestDistance = d;
+        bestMetric = metric(d);
+      }
+    }
+
+    double minPdf = pdf(bestDistance) * (1 - PDF_GAP);
+    double lower = Double.POSITIVE_INFINITY;
+    for (int c = 0; c < k; c++) {
+      if (c == best) {
+        continue;
+      }
+      if (!Double.isNaN(distances[c]) && pdf(distances[c]) >= minPdf) {
+        // nearly equal pdfs, the normalization of the classifier decides
+        return scanAll(point, bounds, slack);
+      }
+      lower = Math.min(lower, lowerBounds[c]);
+    }
+    bounds.cluster = best;
+    bounds.upper = bestMetric + slack;
+    bounds.lower = lower;
+    return best;
+  }
+
+  /**
+   * Classifies the point as {@link KMeansClusteringPolicy} does and computes its bounds from all the distances
+   */
+  private int scanAll(Vector point, PointBounds bounds, double slack) {
+    int best = classifier.classify(point).maxValueIndex();
+    double lower = Double.POSITIVE_INFINITY;
+    for (int c = 0; c < centers.length; c++) {
+      double m = metric(distance(point, c));
+      if (c == best) {
+        bounds.upper = m + slack;
+      } else {
+        lower = Math.min(lower, m - slack);
+      }
+    }
+    bounds.cluster = best;
+    bounds.lower = lower;
+    return best;
+  }
+
+  /**
+   * @return the distance above which a center has a pdf certainly lower than a center at the given distance
+   */
+  private double tieThreshold(double metricDistance) {
+    double d = squared ? metricDistance * metricDistance : metricDistance;
+    double threshold = (1 + d) * (1 + 2 * PDF_GAP) - 1;
+    return metric(threshold) * (1 + TOLERANCE);
+  }
+
+  /**
+   * Same distance as the pdf of {@link DistanceMeasureCluster}
+   */
+  private double distance(Vector point, int cluster) {
+    numDistances++;
+    return preparedCenters[cluster].distance(point);
+  }
+
+  /**
+   * @return bound of the rounding error of a metric distance between the vector and a vector of the given squared
+   *         length
+   */
+  private double slack(Vector vector, double otherLengthSquared) {
+    if (!euclidean) {
+      return 0.0;
+    }
+    return Math.sqrt(LENGTH_TOLERANCE * vector.size() * (vector.getLengthSquared() + otherLengthSquared));
+  }
+
+  private static double pdf(double distance) {
+    return 1 / (1 + distance);
+  }
+
+  private double metric(double distance) {
+    return squared ? Math.sqrt(Math.max(0.0, distance)) : distance;
+  }
+
+  /**
+   * @return number of points assigned
+   */
+  public long getNumAssignments() {
+    return numAssignments;
+  }
+
+  /**
+   * @return number of point to center distances computed, at most k times the number of points assigned
+   */
+  public long getNumDistances() {
+    return numDistances;
+  }
+}
@@ -47,8 +47,8 @@ import org.apache.mahout.math.VectorWritable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.URI;
 import java.util.List;
 
 /**
@@ -98,6 +98,14 @@ import java.util.List;
  * <dt>{@code --iteration_block_size block}</dt>
  * <dd>Number of iterations between perplexity checks. Defaults to {@code 10}. This option is
  * ignored unless option {@code --test_set_percentage} is greater than zero.</dd>
+ * <dt>{@code --sparse_inference_threshold t}</dt>
+ * <dd>Fraction of the weight of the heaviest topic of a document below which its other topics are
+ * dropped during p(topic|doc) learning. Defaults to {@code 0.0}, dense learning.</dd>
+ * <dt>{@code --mapped_model}</dt>
+ * <dd>Convert the model of each iteration to a flat {@link TopicModelFile}, which the mappers map from the
+ * distributed cache instead of loading it on the heap.</dd>
+ * <dt>{@code --mapped_model_float}</dt>
+ * <dd>Same as {@code --mapped_model}, with the counts stored as floats.</dd>
  * </dl>
  */
 public class CVB0Driver extends AbstractJob {
@@ -119,7 +127,11 @@ public class CVB0Driver extends AbstractJob {
   public static final String MODEL_WEIGHT = "prev_iter_mult";
   public static final String NUM_REDUCE_TASKS = "num_reduce_tasks";
   public static final String BACKFILL_PERPLEXITY = "backfill_perplexity";
+  public static final String SPARSE_INFERENCE_THRESHOLD = "sparse_inference_threshold";
+  public static final String MAPPED_MODEL = "mapped_model";
+  public static final String MAPPED_MODEL_FLOAT = "mapped_model_float";
   private static final String MODEL_PATHS = "mahout.lda.cvb.modelPath";
+  private static final String MAPPED_MODEL_PATH = "mahout.lda.cvb.mappedModelPath";
 
   @Override
   public int run(String[] args) throws Exception {
@@ -143,14 +155,20 @@ public class CVB0Driver extends AbstractJob {
     addOption(RANDOM_SEED, "seed", "Random seed", false);
     addOption(TEST_SET_FRACTION, "tf", "Fraction of data to hold out for testing", "0");
     addOption(NUM_TRAIN_THREADS, "ntt", "number of threads per mapper to train with", "4");
-    addOption(NUM_UPDATE_THREADS, "nut", "number of threads per mapper to update the model with",
-        "1");
+    addOption(NUM_UPDATE_THREADS, "nut", "number of threads per mapper to update the model with, 0 to"
+        + " let the training threads update ranges of terms of the model themselves", "1");
     addOption(MAX_ITERATIONS_PER_DOC, "mipd",
         "max number of iterations per doc for p(topic|doc) learning", "10");
     addOption(NUM_REDUCE_TASKS, null,
         "number of reducers to use during model estimation", "10");
     addOption(buildOption(BACKFILL_PERPLEXITY, null,
         "enable backfilling of missing perplexity values", false, false, null));
+    addOption(SPARSE_INFERENCE_THRESHOLD, "sit", "drop the topics of a document lighter than this fraction"
+        + " of its heaviest topic during p(topic|doc) learning, 0 for dense inference", "0");
+    addOption(buildOption(MAPPED_MODEL, null,
+        "map the model from a flat file in the mappers instead of loading it", false, false, null));
+    addOption(buildOption(MAPPED_MODEL_FLOAT, null,
+        "map the model from a flat file of float counts in the mappers", false, false, null));
 
     if (parseArguments(args) == null) {
       return -1;
@@ -183,6 +201,9 @@ public class CVB0Driver extends AbstractJob {
                        : 0.0f;
     int numReduceTasks = Integer.parseInt(getOption(NUM_REDUCE_TASKS));
     boolean backfillPerplexity = hasOption(BACKFILL_PERPLEXITY);
+    getConf().set(SPARSE_INFERENCE_THRESHOLD, getOption(SPARSE_INFERENCE_THRESHOLD));
+    getConf().setBoolean(MAPPED_MODEL, hasOption(MAPPED_MODEL) || hasOption(MAPPED_MODEL_FLOAT));
+    getConf().setBoolean(MAPPED_MODEL_FLOAT, hasOption(MAPPED_MODEL_FLOAT));
 
     return run(getConf(), inputPath, topicModelOutputPath, numTopics, numTerms, alpha, eta,
         maxIterations, iterationBlockSize, convergenceDelta, dictionaryPath, docTopicOutputPath,
@@ -364,6 +385,17 @@ public class CVB0Driver extends AbstractJob {
     if (!job.waitForCompletion(true)) {
       throw new InterruptedException("Failed to calculate perplexity for: " + modelPath);
     }
+    long densePerplexity =
+        job.getCounters().findCounter(CachingCVB0PerplexityMapper.Counters.DENSE_PERPLEXITY).getValue();
+    if (densePerplexity != 0) {
+      // only counted with sparse inference
+      long sparsePerplexity =
+          job.getCounters().findCounter(CachingCVB0PerplexityMapper.Counters.SPARSE_PERPLEXITY).getValue();
+      log.info("Sparse inference perplexity sum at iteration {} = {} against {} with dense inference, delta {}%",
+          new Object[] {iteration, sparsePerplexity / CachingCVB0PerplexityMapper.PERPLEXITY_SCALE,
+              densePerplexity / CachingCVB0PerplexityMapper.PERPLEXITY_SCALE,
+              100.0 * (sparsePerplexity - densePerplexity) / densePerplexity});
+    }
     return readPerplexity(conf, modelPath.getParent(), iteration);
   }
 
@@ -451,15 +483,7 @@ public class CVB0Driver extends AbstractJob {
     job.setOutputFormatClass(SequenceFileOutputFormat.class);
     job.setOutputKeyClass(IntWritable.class);
     job.setOutputValueClass(VectorWritable.class);
-    FileSystem fs = FileSystem.get(corpus.toUri(), conf);
-    if (modelInput != null && fs.exists(modelInput)) {
-      FileStatus[] statuses = fs.listStatus(modelInput, PathFilters.partFilter());
-      URI[] modelUris = new URI[statuses.length];
-      for (int i = 0; i < statuses.length; i++) {
-        modelUris[i] = statuses[i].getPath().toUri();
-      }
-      DistributedCache.setCacheFiles(modelUris, conf);
-    }
+    setModelPaths(job, modelInput);
     FileInputFormat.addInputPath(job, corpus);
     FileOutputFormat.setOutputPath(job, output);
     job.setJarByClass(CVB0Driver.class);
@@ -530,6 +554,49 @@ public class CVB0Driver extends AbstractJob {
       modelPaths[i] = statuses[i].getPath().toUri().toString();
     }
     conf.setStrings(MODEL_PATHS, modelPaths);
+
+    if (conf.getBoolean(MAPPED_MODEL, false)) {
+      boolean singlePrecision = conf.getBoolean(MAPPED_MODEL_FLOAT, false);
+      Path mappedModelPath = mappedModelPath(modelPath, singlePrecision);
+      int numTopics = conf.getInt(NUM_TOPICS, -1);
+      int numTerms = conf.getInt(NUM_TERMS, -1);
+      // a file of another length is left by a conversion of another model, or by an older version that
+      // wrote the file in place
+      if (!TopicModelFile.isComplete(conf, mappedModelPath, numTopics, numTerms, singlePrecision)) {
+        log.info("Writing mapped model {}", mappedModelPath);
+        TopicModelFile.write(conf, getModelPaths(conf), mappedModelPath, numTopics, numTerms, singlePrecision);
+      }
+      DistributedCache.addCacheFile(mappedModelPath.toUri(), conf);
+      conf.set(MAPPED_MODEL_PATH, mappedModelPath.getName());
+    }
+  }
+
+  /**
+   * @return the {@link TopicModelFile} converted from the model at the given path, next to it
+   */
+  public static Path mappedModelPath(Path modelPath, boolean singlePrecision) {
+    return new Path(modelPath.getParent(), modelPath.getName() + (singlePrecision ? ".f32" : ".f64"));
+  }
+
+  /**
+   * @return the local copy of the mapped model of the job in the distributed cache, or null if the job
+   *         has none
+   */
+  public static File getMappedModelFile(Configuration conf) throws IOException {
+    String mappedModelName = conf.get(MAPPED_MODEL_PATH);
+    if (mappedModelName == null) {
+      return null;
+    }
+    Path[] localFiles = DistributedCache.getLocalCacheFiles(conf);
+    if (localFiles != null) {
+      for (Path localFile : localFiles) {
+        if (localFile.getName().equals(mappedModelName)) {
+          return new File(localFile.toUri().getPath());
+        }
+      }
+    }
+    log.warn("Mapped model {} is not in the distributed cache", mappedModelName);
+    return null;
   }
 
   public static Path[] getModelPaths(Configuration conf) {
@@ -28,6 +28,7 @@ import org.apache.mahout.math.VectorWritable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -90,7 +91,11 @@ public class CachingCVB0Mapper
     log.info("Initializing read model");
     TopicModel readModel;
     Path[] modelPaths = CVB0Driver.getModelPaths(conf);
-    if (modelPaths != null && modelPaths.length > 0) {
+    File mappedModel = CVB0Driver.getMappedModelFile(conf);
+    if (mappedModel != null && modelWeight == 1) {
+      log.info("Mapping model file {}", mappedModel);
+      readModel = new TopicModel(TopicModelFile.map(mappedModel), eta, alpha, null, numUpdateThreads);
+    } else if (modelPaths != null && modelPaths.length > 0) {
       readModel = new TopicModel(conf, eta, alpha, null, numUpdateThreads, modelWeight, modelPaths);
     } else {
       log.info("No model files found");
@@ -100,9 +105,11 @@ public class CachingCVB0Mapper
 
     log.info("Initializing write model");
     TopicModel writeModel = modelWeight == 1
-        ? new TopicModel(numTopics, numTerms, eta, alpha, null, numUpdateThreads)
+        ? new TopicModel(numTopics, numTerms, eta, alpha, null, numUpdateThreads, 1)
         : readModel;
 
+    readModel.setSparseInferenceThreshold(conf.getFloat(CVB0Driver.SPARSE_INFERENCE_THRESHOLD, 0.0f));
+
     log.info("Initializing model trainer");
     modelTrainer = new ModelTrainer(readModel, writeModel, numTrainThreads, numTopics, numTerms);
     modelTrainer.start();
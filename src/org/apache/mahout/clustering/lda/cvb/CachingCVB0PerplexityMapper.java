@@ -24,11 +24,13 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.mahout.common.MemoryUtil;
 import org.apache.mahout.common.RandomUtils;
 import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.SparseRowMatrix;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Random;
 
@@ -38,13 +40,22 @@ public class CachingCVB0PerplexityMapper extends
    * Hadoop counters for {@link CachingCVB0PerplexityMapper}, to aid in debugging.
    */
   public enum Counters {
-    SAMPLED_DOCUMENTS
+    SAMPLED_DOCUMENTS,
+    /** perplexities of the sampled documents under sparse and dense inference, times PERPLEXITY_SCALE */
+    SPARSE_PERPLEXITY,
+    DENSE_PERPLEXITY
   }
 
+  /** factor of the perplexities summed as counters */
+  public static final double PERPLEXITY_SCALE = 1000.0;
+
   private static final Logger log = LoggerFactory.getLogger(CachingCVB0PerplexityMapper.class);
 
   private ModelTrainer modelTrainer;
+  private TopicModel readModel;
+  private boolean sparseInference;
   private int maxIters;
+  private int numTerms;
   private int numTopics;
   private float testFraction;
   private Random random;
@@ -63,7 +74,7 @@ public class CachingCVB0PerplexityMapper extends
     long seed = conf.getLong(CVB0Driver.RANDOM_SEED, 1234L);
     random = RandomUtils.getRandom(seed);
     numTopics = conf.getInt(CVB0Driver.NUM_TOPICS, -1);
-    int numTerms = conf.getInt(CVB0Driver.NUM_TERMS, -1);
+    numTerms = conf.getInt(CVB0Driver.NUM_TERMS, -1);
     int numUpdateThreads = conf.getInt(CVB0Driver.NUM_UPDATE_THREADS, 1);
     int numTrainThreads = conf.getInt(CVB0Driver.NUM_TRAIN_THREADS, 4);
     maxIters = conf.getInt(CVB0Driver.MAX_ITERATIONS_PER_DOC, 10);
@@ -71,9 +82,12 @@ public class CachingCVB0PerplexityMapper extends
     testFraction = conf.getFloat(CVB0Driver.TEST_SET_FRACTION, 0.1f);
 
     log.info("Initializing read model");
-    TopicModel readModel;
     Path[] modelPaths = CVB0Driver.getModelPaths(conf);
-    if (modelPaths != null && modelPaths.length > 0) {
+    File mappedModel = CVB0Driver.getMappedModelFile(conf);
+    if (mappedModel != null && modelWeight == 1) {
+      log.info("Mapping model file {}", mappedModel);
+      readModel = new TopicModel(TopicModelFile.map(mappedModel), eta, alpha, null, numUpdateThreads);
+    } else if (modelPaths != null && modelPaths.length > 0) {
       readModel = new TopicModel(conf, eta, alpha, null, numUpdateThreads, modelWeight, modelPaths);
     } else {
       log.info("No model files found");
@@ -81,6 +95,9 @@ public class CachingCVB0PerplexityMapper extends
           numTrainThreads, modelWeight);
     }
 
+    readModel.setSparseInferenceThreshold(conf.getFloat(CVB0Driver.SPARSE_INFERENCE_THRESHOLD, 0.0f));
+    sparseInference = readModel.getSparseInferenceThreshold() > 0;
+
     log.info("Initializing model trainer");
     modelTrainer = new ModelTrainer(readModel, null, numTrainThreads, numTopics, numTerms);
 
@@ -103,5 +120,23 @@ public class CachingCVB0PerplexityMapper extends
     outKey.set(document.get().norm(1));
     outValue.set(modelTrainer.calculatePerplexity(document.get(), topicVector.assign(1.0 / numTopics), maxIters));
     context.write(outKey, outValue);
+    if (sparseInference) {
+      // summed over the tasks, the driver compares them
+      context.getCounter(Counters.SPARSE_PERPLEXITY).increment(Math.round(outValue.get() * PERPLEXITY_SCALE));
+      context.getCounter(Counters.DENSE_PERPLEXITY).increment(
+          Math.round(densePerplexity(document.get()) * PERPLEXITY_SCALE));
+    }
+  }
+
+  /**
+   * Perplexity of the document under dense inference, to measure what sparse inference loses
+   */
+  private double densePerplexity(Vector document) {
+    topicVector.assign(1.0 / numTopics);
+    SparseRowMatrix docTopicModel = new SparseRowMatrix(numTopics, numTerms, true);
+    for (int i = 0; i < maxIters; i++) {
+      readModel.trainDenseDocTopicModel(document, topicVector, docTopicModel);
+    }
+    return readModel.perplexity(document, topicVector);
   }
 }
@@ -181,7 +181,12 @@ public class InMemoryCollapsedVariationalBayes0 extends AbstractJob {
     for (int docId = 0; docId < corpusWeights.numRows(); docId++) {
       if (testFraction == 0 || docId % (1/testFraction) != 0) {
         Vector docTopics = new DenseVector(numTopics).assign(1.0/numTopics); // docTopicCounts.getRow(docId)
-        modelTrainer.trainSync(corpusWeights.viewRow(docId), docTopics , true, 10);
+        if (numUpdatingThreads == 0) {
+          // the training threads of the sharded engine update the model themselves, once stopped
+          modelTrainer.train(corpusWeights.viewRow(docId), docTopics, true, 10);
+        } else {
+          modelTrainer.trainSync(corpusWeights.viewRow(docId), docTopics, true, 10);
+        }
       }
     }
     modelTrainer.stop();
@@ -338,7 +343,8 @@ public class InMemoryCollapsedVariationalBayes0 extends AbstractJob {
     Option numUpdateThreadsOpt = obuilder.withLongName("numUpdateThreads").withRequired(false)
         .withArgument(abuilder.withName("numUpdateThreads").withMinimum(1).withMaximum(1)
         .withDefault("1").create())
-        .withDescription("number of threads to update the model with")
+        .withDescription("number of threads to update the model with, 0 to let the training threads"
+            + " update ranges of terms of the model themselves")
         .withShortName("nut").create();
 
     Option verboseOpt = obuilder.withLongName("verbose").withRequired(false)
@@ -35,6 +35,9 @@ import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -54,11 +57,19 @@ import java.util.concurrent.TimeUnit;
  *
  * Setting the read model and the write model to be the same object may not quite work yet,
  * on account of parallelism badness.
+ *
+ * When the write model is {@link TopicModel#isSharded() sharded}, the documents are handed to the
+ * training threads in chunks, which every thread takes from a shared queue as soon as it is done with
+ * its previous chunk, and each thread adds its own updates to the write model through a
+ * {@link TopicModel.DeltaBuffer}: neither a task per document nor update threads.
  */
 public class ModelTrainer {
 
   private static final Logger log = LoggerFactory.getLogger(ModelTrainer.class);
 
+  /** number of documents handed at once to a training thread of a sharded model */
+  private static final int CHUNK_SIZE = 16;
+
   private final int numTopics;
   private final int numTerms;
   private TopicModel readModel;
@@ -68,6 +79,11 @@ public class ModelTrainer {
   private final int numTrainThreads;
   private final boolean isReadWrite;
 
+  /** chunks of documents of the sharded training, null if the write model is not sharded */
+  private BlockingQueue<DocumentChunk> chunks;
+  private DocumentChunk chunk;
+  private List<Future<?>> chunkTrainers;
+
   public ModelTrainer(TopicModel initialReadModel, TopicModel initialWriteModel,
       int numTrainThreads, int numTopics, int numTerms) {
     this.readModel = initialReadModel;
@@ -101,7 +117,17 @@ public class ModelTrainer {
     threadPool = new ThreadPoolExecutor(numTrainThreads, numTrainThreads, 0, TimeUnit.SECONDS,
         workQueue);
     threadPool.allowCoreThreadTimeOut(false);
-    threadPool.prestartAllCoreThreads();
+    if (writeModel != null && writeModel.isSharded()) {
+      chunks = new ArrayBlockingQueue<DocumentChunk>(numTrainThreads * 2);
+      chunk = new DocumentChunk();
+      chunkTrainers = Lists.newArrayList();
+      for (int i = 0; i < numTrainThreads; i++) {
+        chunkTrainers.add(threadPool.submit(new ChunkTrainer(chunks, writeModel.newDeltaBuffer())));
+      }
+    } else {
+      chunks = null;
+      threadPool.prestartAllCoreThreads();
+    }
   }
 
   public void train(VectorIterable matrix, VectorIterable docTopicCounts) {
@@ -182,6 +208,10 @@ public class ModelTrainer {
   }
 
   public void batchTrain(Map<Vector, Vector> batch, boolean update, int numDocTopicsIters) {
+    if (chunks != null) {
+      batchTrainChunks(batch, update, numDocTopicsIters);
+      return;
+    }
     while (true) {
       try {
         List<TrainerRunnable> runnables = Lists.newArrayList();
@@ -203,7 +233,53 @@ public class ModelTrainer {
     }
   }
 
+  /**
+   * Trains a batch on the threads of a sharded model, which only take chunks: the batch is split in one chunk
+   * per thread, and, as with the other engine, the updates of the batch are added to the write model before
+   * this method returns, so that a read-write model trains the next batch on the updated counts
+   */
+  private void batchTrainChunks(Map<Vector, Vector> batch, boolean update, int numDocTopicsIters) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    if (chunk.size > 0) {
+      putChunk(chunk);
+      chunk = new DocumentChunk();
+    }
+    int chunkSize = Math.min(CHUNK_SIZE, (batch.size() + numTrainThreads - 1) / numTrainThreads);
+    CountDownLatch trained = new CountDownLatch((batch.size() + chunkSize - 1) / chunkSize);
+    DocumentChunk documents = new DocumentChunk(trained);
+    for (Map.Entry<Vector, Vector> entry : batch.entrySet()) {
+      documents.add(entry.getKey(), entry.getValue(), update, numDocTopicsIters);
+      if (documents.size == chunkSize) {
+        putChunk(documents);
+        documents = new DocumentChunk(trained);
+      }
+    }
+    if (documents.size > 0) {
+      putChunk(documents);
+    }
+    while (true) {
+      try {
+        if (trained.await(1, TimeUnit.SECONDS)) {
+          return;
+        }
+        checkChunkTrainers();
+      } catch (InterruptedException e) {
+        log.warn("Interrupted waiting for the batch to be trained", e);
+      }
+    }
+  }
+
   public void train(Vector document, Vector docTopicCounts, boolean update, int numDocTopicIters) {
+    if (chunks != null) {
+      chunk.add(document, docTopicCounts, update, numDocTopicIters);
+      if (chunk.size == CHUNK_SIZE) {
+        putChunk(chunk);
+        chunk = new DocumentChunk();
+      }
+      return;
+    }
     while (true) {
       try {
         workQueue.put(new TrainerRunnable(readModel,
@@ -216,6 +292,35 @@ public class ModelTrainer {
     }
   }
 
+  private void putChunk(DocumentChunk documents) {
+    while (true) {
+      try {
+        if (chunks.offer(documents, 1, TimeUnit.SECONDS)) {
+          return;
+        }
+        checkChunkTrainers();
+      } catch (InterruptedException e) {
+        log.warn("Interrupted waiting to submit documents to the training threads", e);
+      }
+    }
+  }
+
+  /**
+   * Throws the failure of a training thread of a sharded model, whose share of the chunks would never
+   * be taken
+   */
+  private void checkChunkTrainers() throws InterruptedException {
+    for (Future<?> trainer : chunkTrainers) {
+      if (trainer.isDone()) {
+        try {
+          trainer.get();
+        } catch (ExecutionException e) {
+          throw new IllegalStateException("A training thread failed", e.getCause());
+        }
+      }
+    }
+  }
+
   public void trainSync(Vector document, Vector docTopicCounts, boolean update,
       int numDocTopicIters) {
     new TrainerRunnable(readModel,
@@ -233,11 +338,26 @@ public class ModelTrainer {
   public void stop() {
     long startTime = System.nanoTime();
     log.info("Initiating stopping of training threadpool");
+    if (chunks != null) {
+      if (chunk.size > 0) {
+        putChunk(chunk);
+      }
+      // an empty chunk stops a training thread
+      for (int i = 0; i < numTrainThreads; i++) {
+        putChunk(new DocumentChunk());
+      }
+      chunks = null;
+      chunk = null;
+    }
     try {
       threadPool.shutdown();
       if (!threadPool.awaitTermination(60, TimeUnit.SECONDS)) {
         log.warn("Threadpool timed out on await termination - jobs still running!");
       }
+      if (chunkTrainers != null) {
+        checkChunkTrainers();
+        chunkTrainers = null;
+      }
       long newTime = System.nanoTime();
       log.info("threadpool took: " + (newTime - startTime) / 1.0e6 + "ms");
       startTime = newTime;
@@ -257,6 +377,13 @@ public class ModelTrainer {
     readModel.persist(outputPath, true);
   }
 
+  /**
+   * Writes the model as a flat {@link TopicModelFile}, which read only models map instead of loading
+   */
+  public void persistMapped(Path outputPath, boolean singlePrecision) throws IOException {
+    readModel.persistMapped(outputPath, singlePrecision);
+  }
+
   private static class TrainerRunnable implements Runnable, Callable<Double> {
     private final TopicModel readModel;
     private final TopicModel writeModel;
@@ -295,4 +422,77 @@ public class ModelTrainer {
       return readModel.perplexity(document, docTopics);
     }
   }
+
+  /**
+   * Documents to train, with their topic distributions and options
+   */
+  private static final class DocumentChunk {
+    private final Vector[] documents = new Vector[CHUNK_SIZE];
+    private final Vector[] docTopics = new Vector[CHUNK_SIZE];
+    private final boolean[] updates = new boolean[CHUNK_SIZE];
+    private final int[] numDocTopicIters = new int[CHUNK_SIZE];
+    /** counted down once the updates of the chunk are in the write model, null if nobody waits for them */
+    private final CountDownLatch trained;
+    private int size;
+
+    DocumentChunk() {
+      this(null);
+    }
+
+    DocumentChunk(CountDownLatch trained) {
+      this.trained = trained;
+    }
+
+    void add(Vector document, Vector topics, boolean update, int numIters) {
+      documents[size] = document;
+      docTopics[size] = topics;
+      updates[size] = update;
+      numDocTopicIters[size] = numIters;
+      size++;
+    }
+  }
+
+  /**
+   * Trains the chunks of documents of the queue until an empty one, and adds their updates to the
+   * write model through its own delta buffer
+   */
+  private final class ChunkTrainer implements Runnable {
+    private final BlockingQueue<DocumentChunk> queue;
+    private final TopicModel.DeltaBuffer deltas;
+
+    private ChunkTrainer(BlockingQueue<DocumentChunk> queue, TopicModel.DeltaBuffer deltas) {
+      this.queue = queue;
+      this.deltas = deltas;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        DocumentChunk documents;
+        try {
+          documents = queue.take();
+        } catch (InterruptedException e) {
+          log.warn("Interrupted waiting for documents to train", e);
+          continue;
+        }
+        if (documents.size == 0) {
+          break;
+        }
+        for (int i = 0; i < documents.size; i++) {
+          Matrix docTopicModel = new SparseRowMatrix(numTopics, numTerms, true);
+          for (int j = 0; j < documents.numDocTopicIters[i]; j++) {
+            readModel.trainDocTopicModel(documents.documents[i], documents.docTopics[i], docTopicModel);
+          }
+          if (documents.updates[i]) {
+            deltas.add(documents.documents[i], docTopicModel);
+          }
+        }
+        if (documents.trained != null) {
+          deltas.flush();
+          documents.trained.countDown();
+        }
+      }
+      deltas.flush();
+    }
+  }
 }
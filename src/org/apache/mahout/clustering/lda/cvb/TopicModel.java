@@ -16,7 +16,9 @@
  */
 package org.apache.mahout.clustering.lda.cvb;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -49,6 +51,8 @@ import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Thin wrapper around a {@link Matrix} of counts of occurrences of (topic, term) pairs.  Dividing
@@ -60,6 +64,13 @@ import java.util.concurrent.TimeUnit;
  * merely submits the matrix to a work queue.  When all work has been submitted,
  * {@code awaitTermination()} should be called, which will block until updates have been
  * accumulated.
+ *
+ * With no update threads, the updates are sharded instead: the model is split in ranges of terms,
+ * each guarded by its own lock, and every training thread adds its updates itself through a
+ * {@link DeltaBuffer}, a batch of documents at a time.
+ *
+ * A model read from a {@link TopicModelFile} keeps its counts in the mapped file instead of a matrix,
+ * and is read only.
  */
 public class TopicModel implements Configurable, Iterable<MatrixSlice> {
   
@@ -67,6 +78,8 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
   
   private final String[] dictionary;
   private final Matrix topicTermCounts;
+  /** counts of a model mapped from a file, null if they are in {@link #topicTermCounts} */
+  private final TopicModelFile mappedCounts;
   private final Vector topicSums;
   private final int numTopics;
   private final int numTerms;
@@ -79,6 +92,21 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
   private final int numThreads;
   private Updater[] updaters;
 
+  /** weight, relative to the heaviest topic of a document, below which a topic is dropped; 0 for dense inference */
+  private double sparseInferenceThreshold;
+
+  /** locks of the term ranges of the model, null unless the updates are sharded */
+  private final ReentrantLock[] shardLocks;
+  private final int shardWidth;
+  private final AtomicInteger numDeltaBuffers = new AtomicInteger();
+
+  /** largest number of term ranges of a sharded model */
+  private static final int MAX_SHARDS = 256;
+  /** number of terms buffered by a {@link DeltaBuffer} before they are added to the model */
+  private static final int DELTA_BUFFER_SIZE = 4096;
+  /** number of (topic, count) pairs of a {@link DeltaBuffer}, 4 MB of topics and counts whatever the topics */
+  private static final int DELTA_BUFFER_PAIRS = (4 << 20) / 12;
+
   public int getNumTerms() {
     return numTerms;
   }
@@ -126,15 +154,39 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
 
   public TopicModel(Matrix topicTermCounts, Vector topicSums, double eta, double alpha,
     String[] dictionary, int numThreads, double modelWeight) {
+    this(topicTermCounts, null, topicSums, eta, alpha, dictionary, numThreads, modelWeight);
+  }
+
+  /**
+   * Read only model over the counts of a mapped model file
+   */
+  public TopicModel(TopicModelFile mappedCounts, double eta, double alpha, String[] dictionary,
+      int numThreads) {
+    this(null, mappedCounts, mappedCounts.topicSums(), eta, alpha, dictionary, numThreads, 1);
+  }
+
+  private TopicModel(Matrix topicTermCounts, TopicModelFile mappedCounts, Vector topicSums, double eta,
+      double alpha, String[] dictionary, int numThreads, double modelWeight) {
     this.dictionary = dictionary;
     this.topicTermCounts = topicTermCounts;
+    this.mappedCounts = mappedCounts;
     this.topicSums = topicSums;
     this.numTopics = topicSums.size();
-    this.numTerms = topicTermCounts.numCols();
+    this.numTerms = mappedCounts != null ? mappedCounts.getNumTerms() : topicTermCounts.numCols();
     this.eta = eta;
     this.alpha = alpha;
     this.sampler = new Sampler(RandomUtils.getRandom());
     this.numThreads = numThreads;
+    if (numThreads > 0) {
+      shardLocks = null;
+      shardWidth = 0;
+    } else {
+      shardWidth = Math.max(1, (numTerms + MAX_SHARDS - 1) / MAX_SHARDS);
+      shardLocks = new ReentrantLock[Math.max(1, (numTerms + shardWidth - 1) / shardWidth)];
+      for (int i = 0; i < shardLocks.length; i++) {
+        shardLocks[i] = new ReentrantLock();
+      }
+    }
     if (modelWeight != 1) {
       topicSums.assign(Functions.mult(modelWeight));
       for (int x = 0; x < numTopics; x++) {
@@ -153,6 +205,10 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
   }
 
   private void initializeThreadPool() {
+    if (numThreads == 0) {
+      updaters = new Updater[0];
+      return;
+    }
     ThreadPoolExecutor threadPool = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.SECONDS,
                                                            new ArrayBlockingQueue<Runnable>(numThreads * 10));
     threadPool.allowCoreThreadTimeOut(false);
@@ -163,13 +219,86 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
     }
   }
 
+  /**
+   * @return true if the model has no update threads and is updated through {@link DeltaBuffer}s
+   */
+  public boolean isSharded() {
+    return shardLocks != null;
+  }
+
+  /**
+   * @return a buffer of the updates of one thread, the model must be sharded
+   */
+  public DeltaBuffer newDeltaBuffer() {
+    checkWritable();
+    if (shardLocks == null) {
+      throw new IllegalStateException("Model updated by " + numThreads + " threads is not sharded");
+    }
+    return new DeltaBuffer();
+  }
+
+  /**
+   * Makes {@link #trainDocTopicModel} sparse: the topics of a document lighter than the given fraction of its
+   * heaviest topic are dropped for good, and later iterations only compute the topics left. The first iteration
+   * of a document which starts with uniform topics is dense.
+   *
+   * @param sparseInferenceThreshold
+   *          fraction of the weight of the heaviest topic, 0 for dense inference
+   */
+  public void setSparseInferenceThreshold(double sparseInferenceThreshold) {
+    this.sparseInferenceThreshold = sparseInferenceThreshold;
+  }
+
+  public double getSparseInferenceThreshold() {
+    return sparseInferenceThreshold;
+  }
+
+  /**
+   * @return true if the counts of the model are read from a mapped {@link TopicModelFile}
+   */
+  public boolean isMapped() {
+    return mappedCounts != null;
+  }
+
+  private void checkWritable() {
+    if (mappedCounts != null) {
+      throw new IllegalStateException("A mapped topic model is read only");
+    }
+  }
+
+  private double termCount(int topic, int term) {
+    return mappedCounts != null ? mappedCounts.get(topic, term) : topicTermCounts.getQuick(topic, term);
+  }
+
+  /**
+   * @return the counts of the topic, a copy on the heap for a mapped model
+   */
+  private Vector topicRow(int topic) {
+    return mappedCounts != null ? mappedCounts.row(topic) : topicTermCounts.viewRow(topic);
+  }
+
   Matrix topicTermCounts() {
     return topicTermCounts;
   }
 
   @Override
   public Iterator<MatrixSlice> iterator() {
-    return topicTermCounts.iterateAll();
+    if (mappedCounts == null) {
+      return topicTermCounts.iterateAll();
+    }
+    return new AbstractIterator<MatrixSlice>() {
+      private int topic;
+
+      @Override
+      protected MatrixSlice computeNext() {
+        if (topic == numTopics) {
+          return endOfData();
+        }
+        MatrixSlice slice = new MatrixSlice(mappedCounts.row(topic), topic);
+        topic++;
+        return slice;
+      }
+    };
   }
 
   public Vector topicSums() {
@@ -226,26 +355,29 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
     StringBuilder buf = new StringBuilder();
     for (int x = 0; x < numTopics; x++) {
       String v = dictionary != null
-          ? vectorToSortedString(topicTermCounts.viewRow(x).normalize(1), dictionary)
-          : topicTermCounts.viewRow(x).asFormatString();
+          ? vectorToSortedString(topicRow(x).normalize(1), dictionary)
+          : topicRow(x).asFormatString();
       buf.append(v).append('\n');
     }
     return buf.toString();
   }
 
   public int sampleTerm(Vector topicDistribution) {
-    return sampler.sample(topicTermCounts.viewRow(sampler.sample(topicDistribution)));
+    return sampler.sample(topicRow(sampler.sample(topicDistribution)));
   }
 
   public int sampleTerm(int topic) {
-    return sampler.sample(topicTermCounts.viewRow(topic));
+    return sampler.sample(topicRow(topic));
   }
 
   public void reset() {
-    for (int x = 0; x < numTopics; x++) {
-      topicTermCounts.assignRow(x, new SequentialAccessSparseVector(numTerms));
+    // a mapped model, swapped out of a trainer when it stops, has no counts of its own to clear
+    if (mappedCounts == null) {
+      for (int x = 0; x < numTopics; x++) {
+        topicTermCounts.assignRow(x, new SequentialAccessSparseVector(numTerms));
+      }
+      topicSums.assign(1.0);
     }
-    topicSums.assign(1.0);
     initializeThreadPool();
   }
 
@@ -256,6 +388,7 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
   }
 
   public void renormalize() {
+    checkWritable();
     for (int x = 0; x < numTopics; x++) {
       topicTermCounts.assignRow(x, topicTermCounts.viewRow(x).normalize(1));
       topicSums.assign(1.0);
@@ -263,6 +396,17 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
   }
 
   public void trainDocTopicModel(Vector original, Vector topics, Matrix docTopicModel) {
+    if (sparseInferenceThreshold > 0) {
+      trainSparseDocTopicModel(original, topics, docTopicModel);
+    } else {
+      trainDenseDocTopicModel(original, topics, docTopicModel);
+    }
+  }
+
+  /**
+   * The dense {@link #trainDocTopicModel} over all topics, whatever the sparse inference threshold
+   */
+  void trainDenseDocTopicModel(Vector original, Vector topics, Matrix docTopicModel) {
     // first calculate p(topic|term,document) for all terms in original, and all topics,
     // using p(term|topic) and p(topic|doc)
     pTopicGivenTerm(original, topics, docTopicModel);
@@ -286,6 +430,57 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
     topics.assign(Functions.mult(1/topics.norm(1)));
   }
 
+  /**
+   * Same as the dense {@link #trainDocTopicModel}, over the topics heavier than the threshold only; the rows of
+   * the other topics are emptied and their weight set to 0
+   */
+  private void trainSparseDocTopicModel(Vector original, Vector topics, Matrix docTopicModel) {
+    double minWeight = sparseInferenceThreshold * topics.maxValue();
+    int[] active = new int[numTopics];
+    int numActive = 0;
+    for (int x = 0; x < numTopics; x++) {
+      if (topics.getQuick(x) >= minWeight) {
+        active[numActive++] = x;
+      } else {
+        topics.setQuick(x, 0.0);
+        Vector row = docTopicModel.viewRow(x);
+        if (row.getNumNondefaultElements() > 0) {
+          Iterator<Vector.Element> it = original.iterateNonZero();
+          while (it.hasNext()) {
+            row.setQuick(it.next().index(), 0.0);
+          }
+        }
+      }
+    }
+
+    // p(topic|term,document) of the active topics, normalized over them, times the term weight
+    Vector[] rows = new Vector[numActive];
+    double[] likelihoods = new double[numActive];
+    for (int i = 0; i < numActive; i++) {
+      rows[i] = docTopicModel.viewRow(active[i]);
+    }
+    Iterator<Vector.Element> it = original.iterateNonZero();
+    while (it.hasNext()) {
+      Vector.Element e = it.next();
+      int termIndex = e.index();
+      double sum = 0;
+      for (int i = 0; i < numActive; i++) {
+        int x = active[i];
+        likelihoods[i] = (termCount(x, termIndex) + eta) * (topics.getQuick(x) + alpha)
+            / (topicSums.getQuick(x) + eta * numTerms);
+        sum += likelihoods[i];
+      }
+      for (int i = 0; i < numActive; i++) {
+        rows[i].setQuick(termIndex, likelihoods[i] / sum * e.get());
+      }
+    }
+
+    for (int i = 0; i < numActive; i++) {
+      topics.setQuick(active[i], rows[i].norm(1));
+    }
+    topics.assign(Functions.mult(1 / topics.norm(1)));
+  }
+
   public Vector infer(Vector original, Vector docTopics) {
     Vector pTerm = original.like();
     Iterator<Vector.Element> it = original.iterateNonZero();
@@ -295,7 +490,7 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
       // p(a) = sum_x (p(a|x) * p(x|i))
       double pA = 0;
       for (int x = 0; x < numTopics; x++) {
-        pA += (topicTermCounts.viewRow(x).get(term) / topicSums.get(x)) * docTopics.get(x);
+        pA += (termCount(x, term) / topicSums.get(x)) * docTopics.get(x);
       }
       pTerm.set(term, pA);
     }
@@ -303,17 +498,38 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
   }
 
   public void update(Matrix docTopicCounts) {
+    checkWritable();
+    if (shardLocks != null) {
+      // updates which do not go through a delta buffer take the whole model
+      for (ReentrantLock lock : shardLocks) {
+        lock.lock();
+      }
+      try {
+        synchronized (topicSums) {
+          for (int x = 0; x < numTopics; x++) {
+            updateTopic(x, docTopicCounts.viewRow(x));
+          }
+        }
+      } finally {
+        for (ReentrantLock lock : shardLocks) {
+          lock.unlock();
+        }
+      }
+      return;
+    }
     for (int x = 0; x < numTopics; x++) {
       updaters[x % updaters.length].update(x, docTopicCounts.viewRow(x));
     }
   }
 
   public void updateTopic(int topic, Vector docTopicCounts) {
+    checkWritable();
     topicTermCounts.viewRow(topic).assign(docTopicCounts, Functions.PLUS);
     topicSums.set(topic, topicSums.get(topic) + docTopicCounts.norm(1));
   }
 
   public void update(int termId, Vector topicCounts) {
+    checkWritable();
     for (int x = 0; x < numTopics; x++) {
       Vector v = topicTermCounts.viewRow(x);
       v.set(termId, v.get(termId) + topicCounts.get(x));
@@ -322,6 +538,7 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
   }
 
   public void persist(Path outputDir, boolean overwrite) throws IOException {
+    checkWritable();
     FileSystem fs = outputDir.getFileSystem(conf);
     if (overwrite) {
       fs.delete(outputDir, true); // CHECK second arg
@@ -329,6 +546,22 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
     DistributedRowMatrixWriter.write(outputDir, conf, topicTermCounts);
   }
 
+  /**
+   * Writes the model as a {@link TopicModelFile}, to be mapped by read only models
+   */
+  public void persistMapped(Path output, boolean singlePrecision) throws IOException {
+    TopicModelFile.Writer writer = new TopicModelFile.Writer(conf, output, numTopics, numTerms, singlePrecision);
+    boolean threw = true;
+    try {
+      for (int x = 0; x < numTopics; x++) {
+        writer.write(x, topicRow(x));
+      }
+      threw = false;
+    } finally {
+      Closeables.close(writer, threw);
+    }
+  }
+
   /**
    * Computes {@code p(topic x|term a, document i)} distributions given input document {@code i}.
    * {@code pTGT[x][a]} is the (un-normalized) {@code p(x|a,i)}, or if docTopics is {@code null},
@@ -344,8 +577,6 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
     for (int x = 0; x < numTopics; x++) {
       // get p(topic x | document i), or 1.0 if docTopics is null
       double topicWeight = docTopics == null ? 1.0 : docTopics.get(x);
-      // get w(term a | topic x)
-      Vector topicTermRow = topicTermCounts.viewRow(x);
       // get \sum_a w(term a | topic x)
       double topicSum = topicSums.get(x);
       // get p(topic x | term a) distribution to update
@@ -358,7 +589,8 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
         int termIndex = e.index();
 
         // calc un-normalized p(topic x | term a, document i)
-        double termTopicLikelihood = (topicTermRow.get(termIndex) + eta) * (topicWeight + alpha) / (topicSum + eta * numTerms);
+        // with w(term a | topic x)
+        double termTopicLikelihood = (termCount(x, termIndex) + eta) * (topicWeight + alpha) / (topicSum + eta * numTerms);
         termTopicRow.set(termIndex, termTopicLikelihood);
       }
     }
@@ -377,7 +609,7 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
       double prob = 0;
       for (int x = 0; x < numTopics; x++) {
         double d = (docTopics.get(x) + alpha) / norm;
-        double p = d * (topicTermCounts.viewRow(x).get(term) + eta)
+        double p = d * (termCount(x, term) + eta)
                    / (topicSums.get(x) + eta * numTerms);
         prob += p;
       }
@@ -445,6 +677,153 @@ public class TopicModel implements Configurable, Iterable<MatrixSlice> {
     return conf;
   }
 
+  /**
+   * The updates of the documents trained by one thread, by term, as the non-zero (topic, count) pairs of
+   * each term. They are added to the model when the buffer is full or flushed, a range of terms at a time: the ranges locked by other threads are
+   * skipped and come back last, so that threads flushing together rarely wait for each other.
+   * A buffer must be used by a single thread, and flushed before the model is read.
+   */
+  public final class DeltaBuffer {
+    private int[] terms = new int[DELTA_BUFFER_SIZE];
+    /** the pairs of the buffered term i are [starts[i], starts[i + 1]) */
+    private int[] starts = new int[DELTA_BUFFER_SIZE + 1];
+    private int[] topics = new int[DELTA_BUFFER_PAIRS];
+    private double[] counts = new double[DELTA_BUFFER_PAIRS];
+    private final double[] sums = new double[numTopics];
+    private int size;
+
+    /** entries ordered by range, and start of each range in that order */
+    private int[] order = new int[DELTA_BUFFER_SIZE];
+    private final int[] shardStarts = new int[shardLocks.length + 1];
+    private final int[] positions = new int[shardLocks.length];
+    private final boolean[] applied = new boolean[shardLocks.length];
+    private final Vector[] rows = new Vector[numTopics];
+    private final int[] nonEmptyRows = new int[numTopics];
+    /** first range added by this buffer, spread over the ranges from one buffer to the next */
+    private final int firstShard;
+
+    private DeltaBuffer() {
+      double spread = numDeltaBuffers.getAndIncrement() * 0.6180339887498949;
+      firstShard = (int) ((spread - Math.floor(spread)) * shardLocks.length);
+    }
+
+    /**
+     * Buffers the counts of the terms of the document, as {@link TopicModel#update(Matrix)} would add them
+     */
+    public void add(Vector document, Matrix docTopicModel) {
+      // the topics dropped by sparse inference have empty rows
+      int numNonEmpty = 0;
+      for (int x = 0; x < numTopics; x++) {
+        rows[x] = docTopicModel.viewRow(x);
+        if (rows[x].getNumNondefaultElements() > 0) {
+          nonEmptyRows[numNonEmpty++] = x;
+        }
+      }
+      int numElements = document.getNumNondefaultElements();
+      int maxPairs = numElements * numNonEmpty;
+      if (size + numElements > terms.length || starts[size] + maxPairs > counts.length) {
+        flush();
+        if (numElements > terms.length) {
+          terms = new int[numElements];
+          starts = new int[numElements + 1];
+          order = new int[numElements];
+        }
+        if (maxPairs > counts.length) {
+          topics = new int[maxPairs];
+          counts = new double[maxPairs];
+        }
+      }
+      int pair = starts[size];
+      Iterator<Vector.Element> it = document.iterateNonZero();
+      while (it.hasNext()) {
+        int term = it.next().index();
+        for (int i = 0; i < numNonEmpty; i++) {
+          int x = nonEmptyRows[i];
+          double count = rows[x].getQuick(term);
+          if (count != 0.0) {
+            topics[pair] = x;
+            counts[pair++] = count;
+            sums[x] += count;
+          }
+        }
+        terms[size++] = term;
+        starts[size] = pair;
+      }
+    }
+
+    /**
+     * Adds the buffered counts to the model
+     */
+    public void flush() {
+      if (size == 0) {
+        return;
+      }
+      int numShards = shardLocks.length;
+      Arrays.fill(shardStarts, 0);
+      for (int i = 0; i < size; i++) {
+        shardStarts[terms[i] / shardWidth + 1]++;
+      }
+      for (int shard = 0; shard < numShards; shard++) {
+        shardStarts[shard + 1] += shardStarts[shard];
+      }
+      System.arraycopy(shardStarts, 0, positions, 0, numShards);
+      for (int i = 0; i < size; i++) {
+        order[positions[terms[i] / shardWidth]++] = i;
+      }
+
+      int remaining = 0;
+      for (int shard = 0; shard < numShards; shard++) {
+        applied[shard] = shardStarts[shard] == shardStarts[shard + 1];
+        if (!applied[shard]) {
+          remaining++;
+        }
+      }
+      boolean wait = false;
+      while (remaining > 0) {
+        for (int n = 0; n < numShards; n++) {
+          int shard = (firstShard + n) % numShards;
+          if (applied[shard]) {
+            continue;
+          }
+          ReentrantLock lock = shardLocks[shard];
+          if (wait) {
+            lock.lock();
+          } else if (!lock.tryLock()) {
+            continue;
+          }
+          try {
+            apply(shardStarts[shard], shardStarts[shard + 1]);
+          } finally {
+            lock.unlock();
+          }
+          applied[shard] = true;
+          remaining--;
+        }
+        // every range left is locked by another thread
+        wait = true;
+      }
+
+      synchronized (topicSums) {
+        for (int x = 0; x < numTopics; x++) {
+          topicSums.setQuick(x, topicSums.getQuick(x) + sums[x]);
+        }
+      }
+      Arrays.fill(sums, 0.0);
+      size = 0;
+    }
+
+    private void apply(int start, int end) {
+      for (int i = start; i < end; i++) {
+        int entry = order[i];
+        int term = terms[entry];
+        for (int pair = starts[entry]; pair < starts[entry + 1]; pair++) {
+          int x = topics[pair];
+          topicTermCounts.setQuick(x, term, topicTermCounts.getQuick(x, term) + counts[pair]);
+        }
+      }
+    }
+  }
+
   private final class Updater implements Runnable {
     private final ArrayBlockingQueue<Pair<Integer, Vector>> queue =
         new ArrayBlockingQueue<Pair<Integer, Vector>>(100);
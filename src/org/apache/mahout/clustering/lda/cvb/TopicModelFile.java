@@ -0,0 +1,264 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.clustering.lda.cvb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.mahout.common.Pair;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterable;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Flat binary topic-term counts, read through memory mapped pages instead of being loaded on the heap.
+ * Tasks mapping the same local file, such as a distributed cache file, share its pages through the OS
+ * page cache, and only the pages of the terms actually read are loaded.<br>
+ * The file starts with a header (magic, number of topics, number of terms, bytes per count), followed
+ * by one record per topic in any order: the topic, its sum of counts, then the counts of all the terms,
+ * as doubles or as floats. The counts are read only.
+ */
+public final class TopicModelFile {
+
+  private static final int MAGIC = 0x43564230;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_HEADER_SIZE = 16;
+
+  private final int numTopics;
+  private final int numTerms;
+  private final Vector topicSums;
+  /** counts of each topic, only one of both is set */
+  private final DoubleBuffer[] doubleRows;
+  private final FloatBuffer[] floatRows;
+
+  private TopicModelFile(int numTopics, int numTerms, Vector topicSums, DoubleBuffer[] doubleRows,
+      FloatBuffer[] floatRows) {
+    this.numTopics = numTopics;
+    this.numTerms = numTerms;
+    this.topicSums = topicSums;
+    this.doubleRows = doubleRows;
+    this.floatRows = floatRows;
+  }
+
+  public int getNumTopics() {
+    return numTopics;
+  }
+
+  public int getNumTerms() {
+    return numTerms;
+  }
+
+  /**
+   * @return the sums of the counts of each topic, on the heap
+   */
+  public Vector topicSums() {
+    return topicSums;
+  }
+
+  public boolean isSinglePrecision() {
+    return floatRows != null;
+  }
+
+  public double get(int topic, int term) {
+    return doubleRows != null ? doubleRows[topic].get(term) : floatRows[topic].get(term);
+  }
+
+  /**
+   * @return a copy of the counts of the topic, on the heap
+   */
+  public Vector row(int topic) {
+    double[] values = new double[numTerms];
+    for (int term = 0; term < numTerms; term++) {
+      values[term] = get(topic, term);
+    }
+    return new DenseVector(values, true);
+  }
+
+  /**
+   * @return the length in bytes of the file of a model
+   */
+  public static long length(int numTopics, int numTerms, boolean singlePrecision) {
+    return HEADER_SIZE + numTopics * (RECORD_HEADER_SIZE + (long) numTerms * (singlePrecision ? 4 : 8));
+  }
+
+  /**
+   * Maps a local model file, each topic in its own read only region
+   */
+  public static TopicModelFile map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC) {
+        throw new IOException(file + " is not a topic model file");
+      }
+      int numTopics = header.getInt();
+      int numTerms = header.getInt();
+      int countSize = header.getInt();
+      Preconditions.checkState(countSize == 4 || countSize == 8, "Invalid count size %s in %s", countSize, file);
+      long recordSize = RECORD_HEADER_SIZE + (long) numTerms * countSize;
+      if (channel.size() != length(numTopics, numTerms, countSize == 4)) {
+        throw new IOException(file + " is truncated: " + channel.size() + " bytes for " + numTopics + " topics of "
+            + numTerms + " terms");
+      }
+
+      Vector topicSums = new DenseVector(numTopics);
+      DoubleBuffer[] doubleRows = countSize == 8 ? new DoubleBuffer[numTopics] : null;
+      FloatBuffer[] floatRows = countSize == 4 ? new FloatBuffer[numTopics] : null;
+      for (int i = 0; i < numTopics; i++) {
+        ByteBuffer record = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + i * recordSize, recordSize);
+        int topic = record.getInt();
+        record.getInt();
+        if (topic < 0 || topic >= numTopics) {
+          throw new IOException("Invalid topic " + topic + " in " + file);
+        }
+        topicSums.setQuick(topic, record.getDouble());
+        if (doubleRows != null) {
+          doubleRows[topic] = record.slice().asDoubleBuffer();
+        } else {
+          floatRows[topic] = record.slice().asFloatBuffer();
+        }
+      }
+      for (int topic = 0; topic < numTopics; topic++) {
+        if ((doubleRows != null ? doubleRows[topic] : floatRows[topic]) == null) {
+          throw new IOException("Topic " + topic + " is missing from " + file);
+        }
+      }
+      return new TopicModelFile(numTopics, numTerms, topicSums, doubleRows, floatRows);
+    } finally {
+      // the regions stay mapped once the file is closed
+      Closeables.closeQuietly(raf);
+    }
+  }
+
+  /**
+   * Converts the rows of a model, as written by the CVB0 iterations, to a model file. The rows are
+   * streamed, only one is in memory at a time.
+   */
+  public static void write(Configuration conf, Path[] modelPaths, Path output, int numTopics, int numTerms,
+      boolean singlePrecision) throws IOException {
+    Writer writer = new Writer(conf, output, numTopics, numTerms, singlePrecision);
+    boolean threw = true;
+    try {
+      for (Path modelPath : modelPaths) {
+        for (Pair<IntWritable, VectorWritable> row :
+            new SequenceFileIterable<IntWritable, VectorWritable>(modelPath, true, conf)) {
+          writer.write(row.getFirst().get(), row.getSecond().get());
+        }
+      }
+      threw = false;
+    } finally {
+      Closeables.close(writer, threw);
+    }
+  }
+
+  /**
+   * @return true if the file at the given path is a complete model file of the given shape
+   */
+  public static boolean isComplete(Configuration conf, Path path, int numTopics, int numTerms,
+      boolean singlePrecision) throws IOException {
+    FileSystem fs = path.getFileSystem(conf);
+    return fs.exists(path) && fs.getFileStatus(path).getLen() == length(numTopics, numTerms, singlePrecision);
+  }
+
+  /**
+   * Writes the topics of a model file one at a time. Every topic must be written exactly once. The topics are
+   * written to a temporary file next to the output, renamed to the output once all of them are written, so that
+   * the output is never a partial file, even if the writing fails or the process is killed.
+   */
+  public static class Writer implements Closeable {
+    private final FileSystem fs;
+    private final Path output;
+    private final Path tmp;
+    private final DataOutputStream out;
+    private final int numTopics;
+    private final int numTerms;
+    private final boolean singlePrecision;
+    private final boolean[] written;
+    private int numWritten;
+
+    public Writer(Configuration conf, Path output, int numTopics, int numTerms, boolean singlePrecision)
+        throws IOException {
+      this.fs = output.getFileSystem(conf);
+      this.output = output;
+      this.tmp = new Path(output.getParent(), '_' + output.getName() + ".tmp");
+      this.out = new DataOutputStream(new BufferedOutputStream(fs.create(tmp, true), 1 << 16));
+      this.numTopics = numTopics;
+      this.numTerms = numTerms;
+      this.singlePrecision = singlePrecision;
+      this.written = new boolean[numTopics];
+      out.writeInt(MAGIC);
+      out.writeInt(numTopics);
+      out.writeInt(numTerms);
+      out.writeInt(singlePrecision ? 4 : 8);
+    }
+
+    public void write(int topic, Vector counts) throws IOException {
+      Preconditions.checkArgument(topic >= 0 && topic < numTopics, "Invalid topic %s", topic);
+      Preconditions.checkArgument(counts.size() == numTerms, "Topic %s has %s terms instead of %s",
+          topic, counts.size(), numTerms);
+      Preconditions.checkState(!written[topic], "Topic %s is written twice", topic);
+      written[topic] = true;
+      numWritten++;
+      out.writeInt(topic);
+      out.writeInt(0);
+      out.writeDouble(counts.norm(1));
+      for (int term = 0; term < numTerms; term++) {
+        if (singlePrecision) {
+          out.writeFloat((float) counts.getQuick(term));
+        } else {
+          out.writeDouble(counts.getQuick(term));
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+        if (numWritten != numTopics) {
+          throw new IOException("Only " + numWritten + " topics of " + numTopics + " were written");
+        }
+      } catch (IOException e) {
+        fs.delete(tmp, false);
+        throw e;
+      }
+      if (fs.exists(output)) {
+        fs.delete(output, false);
+      }
+      if (!fs.rename(tmp, output)) {
+        throw new IOException("Could not rename " + tmp + " to " + output);
+      }
+    }
+  }
+}
@@ -22,9 +22,12 @@ import java.util.List;
 
 import com.google.common.collect.Lists;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.clustering.ClusterIndex;
 import org.apache.mahout.common.ClassUtils;
 import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.PreparedCentroid;
 import org.apache.mahout.common.kernel.IKernelProfile;
+import org.apache.mahout.common.kernel.TriangularKernelProfile;
 import org.apache.mahout.math.Vector;
 
 public class MeanShiftCanopyClusterer {
@@ -45,6 +48,12 @@ public class MeanShiftCanopyClusterer {
   // if true accumulate clusters during merge so clusters can be produced later
   private final boolean runClustering;
 
+  // the index of the canopies given to mergeCanopy, null if the measure or the kernel is not supported
+  private ClusterIndex<MeanShiftCanopy> index;
+
+  // the canopies of the index
+  private Collection<MeanShiftCanopy> indexedCanopies;
+
   public MeanShiftCanopyClusterer(Configuration configuration) {
     measure = ClassUtils.instantiateAs(configuration.get(MeanShiftCanopyConfigKeys.DISTANCE_MEASURE_KEY), 
                                        DistanceMeasure.class);
@@ -87,6 +96,10 @@ public class MeanShiftCanopyClusterer {
    * other canopies (norm<T2), then merge the given canopy with the closest
    * covering canopy. If the given canopy does not cover any other canopies, add
    * it to the canopies list.
+   * <p>
+   * With a triangular kernel only the canopies within T1 or T2 are compared, through a
+   * {@link ClusterIndex} kept across the calls with the same collection, which must
+   * then only grow through this method.
    * 
    * @param aCanopy
    *          a MeanShiftCanopy to be merged
@@ -97,24 +110,66 @@ public class MeanShiftCanopyClusterer {
       Collection<MeanShiftCanopy> canopies) {
     MeanShiftCanopy closestCoveringCanopy = null;
     double closestNorm = Double.MAX_VALUE;
-    for (MeanShiftCanopy canopy : canopies) {
-      double norm = measure.distance(canopy.getCenter(), aCanopy.getCenter());
-      double weight = kernelProfile.calculateDerivativeValue(norm, t1);
-      if (weight > 0.0) {
-        aCanopy.touch(canopy, weight);
+    ClusterIndex<MeanShiftCanopy> canopyIndex = getIndex(aCanopy, canopies);
+    if (canopyIndex == null) {
+      // touching the canopies only adds observations, the center of aCanopy stays the same
+      PreparedCentroid center = new PreparedCentroid(measure, aCanopy.getCenter());
+      for (MeanShiftCanopy canopy : canopies) {
+        double norm = center.distance(canopy.getCenter());
+        touch(aCanopy, canopy, norm);
+        if (norm < t2 && (closestCoveringCanopy == null || norm < closestNorm)) {
+          closestNorm = norm;
+          closestCoveringCanopy = canopy;
+        }
       }
-      if (norm < t2 && (closestCoveringCanopy == null || norm < closestNorm)) {
-        closestNorm = norm;
-        closestCoveringCanopy = canopy;
+    } else {
+      int numFound = canopyIndex.search(aCanopy.getCenter());
+      for (int i = 0; i < numFound; i++) {
+        MeanShiftCanopy canopy = canopyIndex.getFound(i);
+        double norm = canopyIndex.getFoundDistance(i);
+        touch(aCanopy, canopy, norm);
+        if (norm < t2 && (closestCoveringCanopy == null || norm < closestNorm)) {
+          closestNorm = norm;
+          closestCoveringCanopy = canopy;
+        }
       }
     }
     if (closestCoveringCanopy == null) {
       canopies.add(aCanopy);
+      if (canopyIndex != null) {
+        canopyIndex.add(aCanopy);
+      }
     } else {
       closestCoveringCanopy.merge(aCanopy, runClustering);
     }
   }
 
+  private void touch(MeanShiftCanopy aCanopy, MeanShiftCanopy canopy, double norm) {
+    double weight = kernelProfile.calculateDerivativeValue(norm, t1);
+    if (weight > 0.0) {
+      aCanopy.touch(canopy, weight);
+    }
+  }
+
+  /**
+   * @return the index of the canopies, rebuilt if they are not the ones indexed, null if the measure is not
+   *         supported or if the kernel weighs canopies beyond T1
+   */
+  private ClusterIndex<MeanShiftCanopy> getIndex(MeanShiftCanopy aCanopy, Collection<MeanShiftCanopy> canopies) {
+    if (kernelProfile.getClass() != TriangularKernelProfile.class || !ClusterIndex.supports(measure)) {
+      return null;
+    }
+    if (index == null || indexedCanopies != canopies || index.size() != canopies.size()) {
+      // the centers are sparse vectors whatever the points, a grid suits any of few dimensions
+      index = new ClusterIndex<MeanShiftCanopy>(measure, Math.max(t1, t2), true, aCanopy.getCenter().size());
+      indexedCanopies = canopies;
+      for (MeanShiftCanopy canopy : canopies) {
+        index.add(canopy);
+      }
+    }
+    return index;
+  }
+
   /**
    * Shift the center to the new centroid of the cluster
    * 
@@ -28,7 +28,7 @@ public final class HashFactory {
   }
 
   public enum HashType {
-    LINEAR, POLYNOMIAL, MURMUR, MURMUR3
+    LINEAR, POLYNOMIAL, MURMUR, MURMUR3, MIXED
   }
 
   public static HashFunction[] createHashFunctions(HashType type, int numFunctions) {
@@ -55,6 +55,11 @@ public final class HashFactory {
           hashFunction[i] = new MurmurHash3Wrapper(seed.nextInt());
         }
         break;
+      case MIXED:
+        for (int i = 0; i < numFunctions; i++) {
+          hashFunction[i] = new MixedHash(seed.nextInt());
+        }
+        break;
       default:
         throw new IllegalStateException("Unknown type: " + type);
     }
@@ -131,4 +136,39 @@ public final class HashFactory {
       return Math.abs((int) (hashValue % RandomUtils.MAX_INT_SMALLER_TWIN_PRIME));
     }
   }
+
+  /**
+   * Remixes a single MurmurHash3 of the bytes with its seed, so that the hash of the bytes is computed once for
+   * all the functions: see {@link #baseHash} and {@link #remix}.
+   */
+  static class MixedHash implements HashFunction {
+    private final int seed;
+
+    MixedHash(int seed) {
+      this.seed = seed;
+    }
+
+    @Override
+    public int hash(byte[] bytes) {
+      return remix(baseHash(bytes));
+    }
+
+    static int baseHash(byte[] bytes) {
+      return MurmurHash3.murmurhash3_x86_32(bytes, 0, bytes.length, 0);
+    }
+
+    /**
+     * @return the hash of the bytes whose base hash is given, the finalization mix of MurmurHash3 of the base hash
+     *         and the seed
+     */
+    int remix(int baseHash) {
+      int h = baseHash ^ seed;
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h & Integer.MAX_VALUE;
+    }
+  }
 }
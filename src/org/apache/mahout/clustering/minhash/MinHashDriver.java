@@ -77,7 +77,7 @@ public final class MinHashDriver extends AbstractJob {
     job.setInputFormatClass(SequenceFileInputFormat.class);
     job.setOutputFormatClass(outputFormatClass);
 
-    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputKeyClass(MinHashKey.class);
     job.setMapOutputValueClass(outputClass);
 
     job.setOutputKeyClass(Text.class);
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.clustering.minhash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The cluster id of a group of minhash values, written as their number followed by the values as fixed size ints
+ * so that the keys are sorted without being deserialized. {@link #toString()} gives the textual cluster id,
+ * "value-value-...".
+ */
+public final class MinHashKey implements WritableComparable<MinHashKey> {
+
+  private static final int INT_BYTE_LENGTH = 4;
+
+  private int[] values = new int[0];
+  private int numValues;
+
+  public MinHashKey() {
+  }
+
+  public MinHashKey(int... values) {
+    this.values = values.clone();
+    this.numValues = values.length;
+  }
+
+  /**
+   * Takes the group of values starting at the given index, wrapping around the end of the signature
+   */
+  public void set(int[] signature, int start, int groupSize) {
+    if (values.length < groupSize) {
+      values = new int[groupSize];
+    }
+    for (int j = 0; j < groupSize; j++) {
+      values[j] = signature[(start + j) % signature.length];
+    }
+    numValues = groupSize;
+  }
+
+  public int getNumValues() {
+    return numValues;
+  }
+
+  public int getValue(int index) {
+    return values[index];
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, numValues);
+    for (int i = 0; i < numValues; i++) {
+      out.writeInt(values[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    numValues = WritableUtils.readVInt(in);
+    if (values.length < numValues) {
+      values = new int[numValues];
+    }
+    for (int i = 0; i < numValues; i++) {
+      values[i] = in.readInt();
+    }
+  }
+
+  @Override
+  public int compareTo(MinHashKey other) {
+    int length = Math.min(numValues, other.numValues);
+    for (int i = 0; i < length; i++) {
+      if (values[i] != other.values[i]) {
+        return values[i] < other.values[i] ? -1 : 1;
+      }
+    }
+    return numValues - other.numValues;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof MinHashKey)) {
+      return false;
+    }
+    return compareTo((MinHashKey) obj) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    int hashCode = 1;
+    for (int i = 0; i < numValues; i++) {
+      hashCode = 31 * hashCode + values[i];
+    }
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder clusterId = new StringBuilder();
+    for (int i = 0; i < numValues; i++) {
+      if (i > 0) {
+        clusterId.append('-');
+      }
+      clusterId.append(values[i]);
+    }
+    return clusterId.toString();
+  }
+
+  static {
+    WritableComparator.define(MinHashKey.class, new Comparator());
+  }
+
+  public static final class Comparator extends WritableComparator {
+
+    public Comparator() {
+      super(MinHashKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      try {
+        int numValues1 = readVInt(b1, s1);
+        int numValues2 = readVInt(b2, s2);
+        int start1 = s1 + WritableUtils.decodeVIntSize(b1[s1]);
+        int start2 = s2 + WritableUtils.decodeVIntSize(b2[s2]);
+        int length = Math.min(numValues1, numValues2);
+        for (int i = 0; i < length; i++) {
+          int value1 = readInt(b1, start1 + i * INT_BYTE_LENGTH);
+          int value2 = readInt(b2, start2 + i * INT_BYTE_LENGTH);
+          if (value1 != value2) {
+            return value1 < value2 ? -1 : 1;
+          }
+        }
+        return numValues1 - numValues2;
+      } catch (IOException ioe) {
+        throw new IllegalArgumentException(ioe);
+      }
+    }
+  }
+}
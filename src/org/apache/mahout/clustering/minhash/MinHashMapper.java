@@ -22,6 +22,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.mahout.clustering.minhash.HashFactory.HashType;
+import org.apache.mahout.clustering.minhash.HashFactory.MixedHash;
 import org.apache.mahout.common.commandline.MinhashOptionCreator;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
@@ -29,18 +30,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
 
-public class MinHashMapper extends Mapper<Text, VectorWritable, Text, Writable> {
+public class MinHashMapper extends Mapper<Text, VectorWritable, MinHashKey, Writable> {
 
   private static final Logger log = LoggerFactory.getLogger(MinHashMapper.class);
 
   private HashFunction[] hashFunction;
+  /** the hash functions if they all remix a single hash of the values, null otherwise */
+  private MixedHash[] mixedHashes;
   private int numHashFunctions;
   private int keyGroups;
   private int minVectorSize;
   private boolean debugOutput;
   private int[] minHashValues;
   private byte[] bytesToHash;
+  private final MinHashKey cluster = new MinHashKey();
 
   @Override
   protected void setup(Context context) throws IOException, InterruptedException {
@@ -56,19 +63,26 @@ public class MinHashMapper extends Mapper<Text, VectorWritable, Text, Writable>
 
     HashType hashType;
     try {
-      hashType = HashType.valueOf(htype);
+      hashType = HashType.valueOf(htype.toUpperCase(Locale.ENGLISH));
     } catch (IllegalArgumentException iae) {
       log.warn("No valid hash type found in configuration for {}, assuming type: {}", htype, HashType.LINEAR);
       hashType = HashType.LINEAR;
     }
     hashFunction = HashFactory.createHashFunctions(hashType, numHashFunctions);
+    if (hashType == HashType.MIXED) {
+      mixedHashes = new MixedHash[numHashFunctions];
+      for (int i = 0; i < numHashFunctions; i++) {
+        mixedHashes[i] = (MixedHash) hashFunction[i];
+      }
+    }
   }
 
   /**
    * Hash all items with each function and retain min. value for each iteration. We up with X number of
-   * minhash signatures.
+   * minhash signatures. The items are the non-zero values of the vector, each is encoded once for all the
+   * functions.
    * <p/>
-   * Now depending upon the number of key-groups (1 - 4) concatenate that many minhash values to form
+   * Now depending upon the number of key-groups (1 - 4) group that many minhash values to form
    * cluster-id as 'key' and item-id as 'value'
    */
   @Override
@@ -78,39 +92,37 @@ public class MinHashMapper extends Mapper<Text, VectorWritable, Text, Writable>
       return;
     }
     // Initialize the minhash values to highest
-    for (int i = 0; i < numHashFunctions; i++) {
-      minHashValues[i] = Integer.MAX_VALUE;
-    }
+    Arrays.fill(minHashValues, Integer.MAX_VALUE);
 
-    for (int i = 0; i < numHashFunctions; i++) {
-      for (Vector.Element ele : featureVector) {
-        int value = (int) ele.get();
-        bytesToHash[0] = (byte) (value >> 24);
-        bytesToHash[1] = (byte) (value >> 16);
-        bytesToHash[2] = (byte) (value >> 8);
-        bytesToHash[3] = (byte) value;
-        int hashIndex = hashFunction[i].hash(bytesToHash);
-        //if our new hash value is less than the old one, replace the old one
-        if (minHashValues[i] > hashIndex) {
-          minHashValues[i] = hashIndex;
+    Iterator<Vector.Element> it = featureVector.iterateNonZero();
+    while (it.hasNext()) {
+      int value = (int) it.next().get();
+      bytesToHash[0] = (byte) (value >> 24);
+      bytesToHash[1] = (byte) (value >> 16);
+      bytesToHash[2] = (byte) (value >> 8);
+      bytesToHash[3] = (byte) value;
+      if (mixedHashes != null) {
+        int baseHash = MixedHash.baseHash(bytesToHash);
+        for (int i = 0; i < numHashFunctions; i++) {
+          int hashIndex = mixedHashes[i].remix(baseHash);
+          if (minHashValues[i] > hashIndex) {
+            minHashValues[i] = hashIndex;
+          }
+        }
+      } else {
+        for (int i = 0; i < numHashFunctions; i++) {
+          int hashIndex = hashFunction[i].hash(bytesToHash);
+          //if our new hash value is less than the old one, replace the old one
+          if (minHashValues[i] > hashIndex) {
+            minHashValues[i] = hashIndex;
+          }
         }
       }
     }
-    // output the cluster information
+    // output the cluster information, the key and the point are serialized by the write
+    Writable point = debugOutput ? features : item;
     for (int i = 0; i < numHashFunctions; i++) {
-      StringBuilder clusterIdBuilder = new StringBuilder();
-      for (int j = 0; j < keyGroups; j++) {
-        clusterIdBuilder.append(minHashValues[(i + j) % numHashFunctions]).append('-');
-      }
-      //remove the last dash
-      clusterIdBuilder.deleteCharAt(clusterIdBuilder.length() - 1);
-      Text cluster = new Text(clusterIdBuilder.toString());
-      Writable point;
-      if (debugOutput) {
-        point = new VectorWritable(featureVector.clone());
-      } else {
-        point = new Text(item.toString());
-      }
+      cluster.set(minHashValues, i, keyGroups);
       context.write(cluster, point);
     }
   }
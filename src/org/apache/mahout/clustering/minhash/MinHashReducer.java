@@ -29,7 +29,7 @@ import org.apache.mahout.math.VectorWritable;
 import java.io.IOException;
 import java.util.Collection;
 
-public class MinHashReducer extends Reducer<Text,Writable,Text,Writable> {
+public class MinHashReducer extends Reducer<MinHashKey,Writable,Text,Writable> {
   
   private int minClusterSize;
   private boolean debugOutput;
@@ -48,10 +48,10 @@ public class MinHashReducer extends Reducer<Text,Writable,Text,Writable> {
   }
   
   /**
-   * output the items clustered
+   * output the items clustered, with the textual cluster id
    */
   @Override
-  protected void reduce(Text cluster, Iterable<Writable> points, Context context)
+  protected void reduce(MinHashKey cluster, Iterable<Writable> points, Context context)
     throws IOException, InterruptedException {
     Collection<Writable> pointList = Lists.newArrayList();
     for (Writable point : points) {
@@ -60,14 +60,15 @@ public class MinHashReducer extends Reducer<Text,Writable,Text,Writable> {
         Writable writablePointVector = new VectorWritable(pointVector);
         pointList.add(writablePointVector);
       } else {
-        Writable pointText = new Text(point.toString());
+        Writable pointText = new Text((Text) point);
         pointList.add(pointText);
       }
     }
     if (pointList.size() >= minClusterSize) {
       context.getCounter(Clusters.ACCEPTED).increment(1);
+      Text clusterId = new Text(cluster.toString());
       for (Writable point : pointList) {
-        context.write(cluster, point);
+        context.write(clusterId, point);
       }
     } else {
       context.getCounter(Clusters.DISCARDED).increment(1);
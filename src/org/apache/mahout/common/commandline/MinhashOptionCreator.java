@@ -78,7 +78,7 @@ public final class MinhashOptionCreator {
             new ArgumentBuilder().withName(HASH_TYPE).withDefault("murmur")
                 .withMinimum(1).withMaximum(1).create())
         .withDescription(
-            "Type of hash function to use. Available types: (linear, polynomial, murmur) ")
+            "Type of hash function to use. Available types: (linear, polynomial, murmur, murmur3, mixed) ")
         .withShortName("ht");
   }
 
@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.common.distance;
+
+import java.util.Iterator;
+
+import org.apache.mahout.math.CardinalityException;
+import org.apache.mahout.math.Vector;
+
+/**
+ * A centroid prepared for the computation of many distances with the same measure: its squared length is computed
+ * once and, unless it is mostly empty, its elements are copied in an array. The Euclidean and squared Euclidean
+ * distances to a dense or sequential access vector sum the squared differences with the array, and only a sparse
+ * vector and a sparse centroid use the expansion |c|^2 - 2c.v + |v|^2, which loses precision for close vectors;
+ * the cosine and Tanimoto distances take a dot product over the non-zero elements of the other vector only; the
+ * Manhattan and Chebyshev distances to a dense vector are a loop over the two arrays. Other measures, and weighted
+ * Tanimoto, are computed by the measure.<br>
+ * The centroid must not change once prepared. A prepared centroid is immutable and can be shared by threads.
+ */
+public final class PreparedCentroid {
+
+  private final DistanceMeasure measure;
+  private final Vector centroid;
+  /** elements of the centroid, null if it is sparse */
+  private final double[] values;
+  private final double lengthSquared;
+
+  public PreparedCentroid(DistanceMeasure measure, Vector centroid) {
+    this.measure = measure;
+    this.centroid = centroid;
+    int size = centroid.size();
+    // a copy of a sparse centroid would cost more than the lookups of its elements
+    if (centroid.isDense() || 2 * centroid.getNumNondefaultElements() >= size) {
+      values = new double[size];
+      Iterator<Vector.Element> it = centroid.iterateNonZero();
+      while (it.hasNext()) {
+        Vector.Element e = it.next();
+        values[e.index()] = e.get();
+      }
+      double sum = 0.0;
+      for (double value : values) {
+        sum += value * value;
+      }
+      lengthSquared = sum;
+    } else {
+      values = null;
+      lengthSquared = centroid.getLengthSquared();
+    }
+  }
+
+  public Vector getCentroid() {
+    return centroid;
+  }
+
+  public DistanceMeasure getMeasure() {
+    return measure;
+  }
+
+  public double getLengthSquared() {
+    return lengthSquared;
+  }
+
+  /**
+   * @return the distance between the centroid and the vector, as {@code getMeasure().distance(centroid, v)} up to
+   *         the rounding; squared Euclidean distances are never negative
+   */
+  public double distance(Vector v) {
+    if (v.size() != centroid.size()) {
+      throw new CardinalityException(centroid.size(), v.size());
+    }
+    Class<?> measureClass = measure.getClass();
+    if (measureClass == SquaredEuclideanDistanceMeasure.class) {
+      return squaredEuclidean(v);
+    }
+    if (measureClass == EuclideanDistanceMeasure.class) {
+      return Math.sqrt(squaredEuclidean(v));
+    }
+    if (measureClass == CosineDistanceMeasure.class) {
+      return cosine(v);
+    }
+    if (measureClass == TanimotoDistanceMeasure.class && ((TanimotoDistanceMeasure) measure).getWeights() == null) {
+      return tanimoto(v);
+    }
+    if (values != null && v.isDense()) {
+      if (measureClass == ManhattanDistanceMeasure.class) {
+        return manhattan(v);
+      }
+      if (measureClass == ChebyshevDistanceMeasure.class) {
+        return chebyshev(v);
+      }
+    }
+    return measure.distance(centroid, v);
+  }
+
+  /**
+   * @return the dot product of the centroid and the vector, over the non-zero elements of the vector
+   */
+  public double dot(Vector v) {
+    double dot = 0.0;
+    Iterator<Vector.Element> it = v.iterateNonZero();
+    if (values != null) {
+      while (it.hasNext()) {
+        Vector.Element e = it.next();
+        dot += e.get() * values[e.index()];
+      }
+    } else {
+      while (it.hasNext()) {
+        Vector.Element e = it.next();
+        dot += e.get() * centroid.getQuick(e.index());
+      }
+    }
+    return dot;
+  }
+
+  private double squaredEuclidean(Vector v) {
+    if (values == null) {
+      if (v.isDense()) {
+        return v.getDistanceSquared(centroid);
+      }
+      // only the non-zero elements of both sparse vectors are visited
+      return Math.max(0.0, lengthSquared - 2 * dot(v) + v.getLengthSquared());
+    }
+    double result = 0.0;
+    if (v.isDense()) {
+      for (int i = 0; i < values.length; i++) {
+        double d = values[i] - v.getQuick(i);
+        result += d * d;
+      }
+      return result;
+    }
+    if (!v.isSequentialAccess()) {
+      return v.getDistanceSquared(centroid);
+    }
+    // the non-zero elements of the vector come in the order of their indexes
+    int next = 0;
+    Iterator<Vector.Element> it = v.iterateNonZero();
+    while (it.hasNext()) {
+      Vector.Element e = it.next();
+      int index = e.index();
+      for (; next < index; next++) {
+        result += values[next] * values[next];
+      }
+      double d = values[index] - e.get();
+      result += d * d;
+      next = index + 1;
+    }
+    for (; next < values.length; next++) {
+      result += values[next] * values[next];
+    }
+    return result;
+  }
+
+  /**
+   * Same corrections as {@link CosineDistanceMeasure}
+   */
+  private double cosine(Vector v) {
+    double dotProduct = dot(v);
+    double denominator = Math.sqrt(lengthSquared) * Math.sqrt(v.getLengthSquared());
+    if (denominator < dotProduct) {
+      denominator = dotProduct;
+    }
+    if (denominator == 0 && dotProduct == 0) {
+      return 1;
+    }
+    return 1.0 - dotProduct / denominator;
+  }
+
+  /**
+   * Same corrections as {@link TanimotoDistanceMeasure}
+   */
+  private double tanimoto(Vector v) {
+    double ab = dot(v);
+    double denominator = lengthSquared + v.getLengthSquared() - ab;
+    if (denominator < ab) {
+      denominator = ab;
+    }
+    return denominator > 0 ? 1.0 - ab / denominator : 0.0;
+  }
+
+  private double manhattan(Vector v) {
+    double result = 0.0;
+    for (int i = 0; i < values.length; i++) {
+      result += Math.abs(values[i] - v.getQuick(i));
+    }
+    return result;
+  }
+
+  private double chebyshev(Vector v) {
+    double result = 0.0;
+    for (int i = 0; i < values.length; i++) {
+      double d = Math.abs(values[i] - v.getQuick(i));
+      if (d > result) {
+        result = d;
+      }
+    }
+    return result;
+  }
+}
@@ -77,7 +77,15 @@ public class TanimotoDistanceMeasure extends WeightedDistanceMeasure {
   
   @Override
   public double distance(double centroidLengthSquare, Vector centroid, Vector v) {
-    return distance(centroid, v); // TODO
+    if (getWeights() != null) {
+      return distance(centroid, v);
+    }
+    double ab = v.dot(centroid);
+    double denominator = centroidLengthSquare + v.getLengthSquared() - ab;
+    if (denominator < ab) { // correct for fp round-off: distance >= 0
+      denominator = ab;
+    }
+    return denominator > 0 ? 1.0 - ab / denominator : 0.0;
   }
   
 }
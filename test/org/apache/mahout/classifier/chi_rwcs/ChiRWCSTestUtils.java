@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.classifier.chi_rwcs.builder.Fuzzy_ChiCSBuilder;
+import org.apache.mahout.classifier.chi_rwcs.data.Data;
+import org.apache.mahout.classifier.chi_rwcs.data.DataLoader;
+import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
+import org.apache.mahout.classifier.chi_rwcs.data.DescriptorException;
+import org.apache.mahout.classifier.chi_rwcs.data.DescriptorUtils;
+import org.apache.mahout.classifier.chi_rwcs.mapreduce.BuildModel;
+import org.apache.mahout.common.DummyRecordWriter;
+import org.apache.mahout.common.ListRecordReader;
+import org.apache.mahout.common.Pair;
+
+/**
+ * Random data sets and the rule bases learnt from them
+ */
+public final class ChiRWCSTestUtils {
+
+  private ChiRWCSTestUtils() { }
+
+  /**
+   * @return descriptor of the data sets of {@link #randomLines}: the numerical attributes then the label
+   */
+  public static String descriptor(int numAttributes) throws DescriptorException {
+    return DescriptorUtils.generateDescriptor(numAttributes + " N L");
+  }
+
+  /**
+   * @return lines of random numerical attributes in [0, 1), labelled "a" or "b" by the sum of the attributes
+   */
+  public static String[] randomLines(Random rng, int numLines, int numAttributes) {
+    String[] lines = new String[numLines];
+    for (int i = 0; i < numLines; i++) {
+      StringBuilder line = new StringBuilder();
+      double sum = 0;
+      for (int attr = 0; attr < numAttributes; attr++) {
+        double value = rng.nextDouble();
+        sum += value;
+        line.append(String.format(Locale.ENGLISH, "%.4f", value)).append(',');
+      }
+      line.append(sum > numAttributes / 2.0 ? 'a' : 'b');
+      lines[i] = line.toString();
+    }
+    return lines;
+  }
+
+  public static Dataset dataset(String[] lines, int numAttributes) throws DescriptorException {
+    return DataLoader.generateDataset(descriptor(numAttributes), false, lines);
+  }
+
+  /**
+   * Learns the rules of the given lines the way the mappers of the builder do
+   */
+  public static RuleBase ruleBase(Dataset dataset, String[] lines, int nLabels, int combinationType,
+                                  int inferenceType) throws IOException, InterruptedException {
+    Data data = DataLoader.loadData(dataset, lines);
+
+    Fuzzy_ChiCSBuilder builder = new Fuzzy_ChiCSBuilder();
+    builder.setNLabels(nLabels);
+    builder.setCombinationType(combinationType);
+    builder.setInferenceType(inferenceType);
+    builder.setRuleWeight(BuildModel.PCF_IV);
+    builder.build(data, 0, 1.0, 1.0, context());
+    return builder.getRuleBase();
+  }
+
+  /**
+   * @return a context that only reports the progress of the rule generation
+   */
+  private static Mapper.Context context() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    Mapper<LongWritable,Text,LongWritable,Text> mapper = new Mapper<LongWritable,Text,LongWritable,Text>();
+    return DummyRecordWriter.build(mapper, conf,
+        new ListRecordReader<LongWritable,Text>(Lists.<Pair<LongWritable,Text>>newArrayList()),
+        new DummyRecordWriter<LongWritable,Text>(conf), null);
+  }
+}
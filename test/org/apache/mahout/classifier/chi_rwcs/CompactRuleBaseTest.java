@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs;
+
+import java.util.Random;
+
+import org.apache.mahout.classifier.chi_rwcs.data.Data;
+import org.apache.mahout.classifier.chi_rwcs.data.DataLoader;
+import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
+import org.apache.mahout.classifier.chi_rwcs.mapreduce.BuildModel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the predictions of the rule objects with the ones of the double and single precision layouts
+ */
+public final class CompactRuleBaseTest {
+
+  private static void check(int numAttributes, int numTrain, int combinationType, int inferenceType,
+                            boolean fromTrain) throws Exception {
+    Random rng = new Random(numAttributes * 31L + combinationType * 7L + inferenceType);
+    String[] train = ChiRWCSTestUtils.randomLines(rng, numTrain, numAttributes);
+    Dataset dataset = ChiRWCSTestUtils.dataset(train, numAttributes);
+    RuleBase ruleBase = ChiRWCSTestUtils.ruleBase(dataset, train, 3, combinationType, inferenceType);
+    Data test = DataLoader.loadData(dataset, fromTrain ? train : ChiRWCSTestUtils.randomLines(rng, 1000,
+        numAttributes));
+
+    int n = test.size();
+    double[][] examples = new double[n][];
+    int[] exact = new int[n];
+    for (int i = 0; i < n; i++) {
+      examples[i] = test.get(i).get();
+      exact[i] = ruleBase.FRM(examples[i]);
+    }
+
+    assertTrue(ruleBase.compact(false));
+    int[] batch = ruleBase.FRM(examples);
+    for (int i = 0; i < n; i++) {
+      assertEquals(exact[i], ruleBase.FRM(examples[i]));
+      assertEquals(exact[i], batch[i]);
+    }
+
+    assertTrue(ruleBase.compact(true));
+    batch = ruleBase.FRM(examples);
+    int numFired = 0;
+    int numAgree = 0;
+    for (int i = 0; i < n; i++) {
+      int single = ruleBase.FRM(examples[i]);
+      assertEquals(single, batch[i]);
+      // the single precision degrees never underflow where the double ones do not
+      assertEquals(exact[i] < 0, single < 0);
+      if (exact[i] >= 0) {
+        numFired++;
+      }
+      if (single == exact[i]) {
+        numAgree++;
+      }
+    }
+    // only near ties, within the rounding errors of the floats, may differ
+    assertTrue(numAgree >= 0.99 * n);
+    if (fromTrain) {
+      // every training example fires at least its own rule
+      assertEquals(n, numFired);
+    }
+  }
+
+  @Test
+  public void testFewVariables() throws Exception {
+    for (int combinationType : new int[] {BuildModel.MINIMUM, BuildModel.PRODUCT}) {
+      for (int inferenceType : new int[] {BuildModel.WINNING_RULE, BuildModel.ADDITIVE_COMBINATION}) {
+        check(6, 2000, combinationType, inferenceType, false);
+      }
+    }
+  }
+
+  @Test
+  public void testProductOfManyVariables() throws Exception {
+    // the memberships of the rule of a training example are above 0.5, and their product over 200 variables is
+    // above 0.5^200 (6e-61), below the smallest float
+    for (int inferenceType : new int[] {BuildModel.WINNING_RULE, BuildModel.ADDITIVE_COMBINATION}) {
+      check(200, 300, BuildModel.PRODUCT, inferenceType, true);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.classifier.chi_rwcs.mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.mahout.classifier.chi_rwcs.ChiRWCSTestUtils;
+import org.apache.mahout.classifier.chi_rwcs.Chi_RWCSUtils;
+import org.apache.mahout.classifier.chi_rwcs.RuleBase;
+import org.apache.mahout.classifier.chi_rwcs.data.Dataset;
+import org.apache.mahout.common.DummyRecordWriter;
+import org.apache.mahout.common.ListRecordReader;
+import org.apache.mahout.common.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class ClassifierMapperTest {
+
+  private static final int NUM_ATTRIBUTES = 3;
+
+  private Configuration conf;
+  private List<Pair<LongWritable,Text>> records;
+
+  @Before
+  public void setUp() throws Exception {
+    Random rng = new Random(11L);
+    String[] lines = ChiRWCSTestUtils.randomLines(rng, 1000, NUM_ATTRIBUTES);
+    Dataset dataset = ChiRWCSTestUtils.dataset(lines, NUM_ATTRIBUTES);
+    RuleBase ruleBase = ChiRWCSTestUtils.ruleBase(dataset, lines, 3, BuildModel.PRODUCT, BuildModel.WINNING_RULE);
+
+    File dir = Files.createTempDir();
+    dir.deleteOnExit();
+    conf = new Configuration();
+    Path datasetPath = new Path(dir.getAbsolutePath(), "dataset.info");
+    Path modelPath = new Path(dir.getAbsolutePath(), "fuzzy_ChiCS.model");
+    Chi_RWCSUtils.storeWritable(conf, datasetPath, dataset);
+    Chi_RWCSUtils.storeWritable(conf, modelPath, ruleBase);
+    DistributedCache.setCacheFiles(new URI[] {datasetPath.toUri(), modelPath.toUri()}, conf);
+
+    // the split starts with empty lines, and has some in the middle
+    records = Lists.newArrayList();
+    long offset = 4096;
+    for (int i = 0; i < lines.length; i++) {
+      String line = i < 2 || i % 97 == 0 ? "" : lines[i];
+      records.add(new Pair<LongWritable,Text>(new LongWritable(offset), new Text(line)));
+      offset += line.length() + 1;
+    }
+  }
+
+  private List<Pair<DoubleWritable,Text>> classify(int prefetchRows) throws IOException, InterruptedException {
+    Configuration taskConf = new Configuration(conf);
+    taskConf.setInt("mahout.fc.prefetch.rows", prefetchRows);
+    Chi_RWCSClassifier.ClassifierMapper mapper = new Chi_RWCSClassifier.ClassifierMapper();
+    DummyRecordWriter<DoubleWritable,Text> writer = new DummyRecordWriter<DoubleWritable,Text>(taskConf);
+    FileSplit split = new FileSplit(new Path("/input/part-00003"), 4096, 1 << 20, null);
+    Mapper<LongWritable,Text,DoubleWritable,Text>.Context context = DummyRecordWriter.build(mapper, taskConf,
+        new ListRecordReader<LongWritable,Text>(records), writer, split);
+    mapper.run(context);
+    return writer.getRecords();
+  }
+
+  @Test
+  public void testMarkerIsTheFirstRecord() throws Exception {
+    for (int prefetchRows : new int[] {0, 256}) {
+      List<Pair<DoubleWritable,Text>> output = classify(prefetchRows);
+      // the marker is keyed by the offset of the first record of the split, even though it is empty
+      assertEquals(4096.0, output.get(0).getFirst().get(), 0.0);
+      assertEquals("part-00003", output.get(0).getSecond().toString());
+      int numEmpty = 2 + (records.size() - 1) / 97;
+      assertEquals(records.size() - numEmpty + 1, output.size());
+    }
+  }
+
+  @Test
+  public void testPrefetchingMatchesMap() throws Exception {
+    List<Pair<DoubleWritable,Text>> expected = classify(0);
+    // fewer rows than a chunk, a few chunks, and more rows than the split
+    for (int prefetchRows : new int[] {1, 300, 5000}) {
+      List<Pair<DoubleWritable,Text>> actual = classify(prefetchRows);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.get(i).getFirst(), actual.get(i).getFirst());
+        assertEquals(expected.get(i).getSecond(), actual.get(i).getSecond());
+      }
+    }
+  }
+}
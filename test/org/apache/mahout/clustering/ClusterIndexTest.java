@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.clustering.canopy.Canopy;
+import org.apache.mahout.common.distance.ChebyshevDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.ManhattanDistanceMeasure;
+import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class ClusterIndexTest {
+
+  private static final DistanceMeasure[] MEASURES = {new EuclideanDistanceMeasure(),
+      new SquaredEuclideanDistanceMeasure(), new ManhattanDistanceMeasure(), new ChebyshevDistanceMeasure()};
+
+  private static Vector point(Random rng, boolean dense, int cardinality) {
+    Vector point = dense ? new DenseVector(cardinality) : new RandomAccessSparseVector(cardinality);
+    int numValues = dense ? cardinality : 4;
+    for (int i = 0; i < numValues; i++) {
+      // a few blobs, so that the searches find several clusters
+      point.set(dense ? i : rng.nextInt(cardinality), rng.nextInt(3) + 0.5 * rng.nextGaussian());
+    }
+    return point;
+  }
+
+  /**
+   * Interleaves additions and searches, and compares every search with a scan of all the clusters
+   */
+  private static void assertSameAsScan(DistanceMeasure measure, boolean dense, int cardinality) {
+    Random rng = new Random(31L);
+    // a radius a few percent of the pairs of points are within
+    double[] distances = new double[200];
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] = measure.distance(point(rng, dense, cardinality), point(rng, dense, cardinality));
+    }
+    Arrays.sort(distances);
+    double radius = distances[distances.length / 20];
+
+    ClusterIndex<Canopy> index = new ClusterIndex<Canopy>(measure, radius, dense, cardinality);
+    List<Canopy> canopies = Lists.newArrayList();
+    int totalFound = 0;
+    for (int i = 0; i < 3000; i++) {
+      Vector point = point(rng, dense, cardinality);
+      List<Canopy> expected = Lists.newArrayList();
+      List<Double> expectedDistances = Lists.newArrayList();
+      for (Canopy canopy : canopies) {
+        double distance = measure.distance(canopy.getCenter().getLengthSquared(), canopy.getCenter(), point);
+        if (distance < radius) {
+          expected.add(canopy);
+          expectedDistances.add(distance);
+        }
+      }
+
+      int numFound = index.search(point);
+      assertEquals(expected.size(), numFound);
+      for (int j = 0; j < numFound; j++) {
+        assertSame(expected.get(j), index.getFound(j));
+        assertEquals(expectedDistances.get(j), index.getFoundDistance(j), 0.0);
+      }
+      totalFound += numFound;
+
+      if (i % 3 == 0) {
+        Canopy canopy = new Canopy(point, canopies.size(), measure);
+        canopies.add(canopy);
+        index.add(canopy);
+      }
+    }
+    assertEquals(canopies.size(), index.size());
+    assertTrue(totalFound > 0);
+  }
+
+  @Test
+  public void testGridMatchesScan() {
+    for (DistanceMeasure measure : MEASURES) {
+      assertSameAsScan(measure, true, 3);
+    }
+  }
+
+  @Test
+  public void testPivotsMatchScan() {
+    for (DistanceMeasure measure : MEASURES) {
+      // high dimensional dense points, and sparse points
+      assertSameAsScan(measure, true, 40);
+      assertSameAsScan(measure, false, 50);
+    }
+  }
+}
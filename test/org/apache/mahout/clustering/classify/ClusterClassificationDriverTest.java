@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering.classify;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.mahout.clustering.Cluster;
+import org.apache.mahout.clustering.iterator.FuzzyKMeansClusteringPolicy;
+import org.apache.mahout.clustering.kmeans.Kluster;
+import org.apache.mahout.common.Pair;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterable;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class ClusterClassificationDriverTest {
+
+  private static final int NUM_VECTORS = 3456;
+
+  private Configuration conf;
+  private Path dir;
+  private Path input;
+  private Path clusters;
+
+  @Before
+  public void setUp() throws Exception {
+    File tmp = Files.createTempDir();
+    tmp.deleteOnExit();
+    conf = new Configuration();
+    dir = new Path(tmp.getAbsolutePath());
+    FileSystem fs = dir.getFileSystem(conf);
+    Random rng = new Random(7L);
+
+    input = new Path(dir, "input");
+    SequenceFile.Writer writer = new SequenceFile.Writer(fs, conf, new Path(input, "part-00000"), IntWritable.class,
+        VectorWritable.class);
+    try {
+      for (int i = 0; i < NUM_VECTORS; i++) {
+        writer.append(new IntWritable(i), new VectorWritable(randomVector(rng)));
+      }
+    } finally {
+      writer.close();
+    }
+
+    List<Cluster> models = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      models.add(new Kluster(randomVector(rng), i, new EuclideanDistanceMeasure()));
+    }
+    clusters = new Path(dir, "clusters");
+    new ClusterClassifier(models, new FuzzyKMeansClusteringPolicy(2.0, 0.001))
+        .writeToSeqFiles(new Path(clusters, "clusters-1-final"));
+  }
+
+  private static Vector randomVector(Random rng) {
+    Vector vector = new DenseVector(4);
+    for (int i = 0; i < vector.size(); i++) {
+      vector.set(i, rng.nextGaussian());
+    }
+    return vector;
+  }
+
+  private List<Path> classify(int numThreads, boolean emitMostLikely) throws Exception {
+    Configuration taskConf = new Configuration(conf);
+    taskConf.setInt(ClusterClassificationConfigKeys.NUM_THREADS, numThreads);
+    Path output = new Path(dir, "output-" + numThreads + '-' + emitMostLikely);
+    ClusterClassificationDriver.run(taskConf, input, clusters, output, 0.2, emitMostLikely, true);
+    List<Path> parts = Lists.newArrayList();
+    for (FileStatus status : output.getFileSystem(conf).listStatus(output)) {
+      if (!status.getPath().getName().endsWith(".crc")) {
+        parts.add(status.getPath());
+      }
+    }
+    return parts;
+  }
+
+  @Test
+  public void testThreadsWriteTheSingleThreadedOutput() throws Exception {
+    for (boolean emitMostLikely : new boolean[] {true, false}) {
+      List<Path> expected = classify(1, emitMostLikely);
+      List<Path> actual = classify(3, emitMostLikely);
+      // a single part file, named as the single threaded one
+      assertEquals(1, expected.size());
+      assertEquals(1, actual.size());
+      assertEquals("part-m-0", actual.get(0).getName());
+
+      Iterator<Pair<IntWritable,WeightedVectorWritable>> actualRecords =
+          new SequenceFileIterable<IntWritable,WeightedVectorWritable>(actual.get(0), conf).iterator();
+      int numRecords = 0;
+      for (Pair<IntWritable,WeightedVectorWritable> record
+          : new SequenceFileIterable<IntWritable,WeightedVectorWritable>(expected.get(0), conf)) {
+        assertTrue(actualRecords.hasNext());
+        Pair<IntWritable,WeightedVectorWritable> actualRecord = actualRecords.next();
+        assertEquals(record.getFirst(), actualRecord.getFirst());
+        assertEquals(record.getSecond().getWeight(), actualRecord.getSecond().getWeight(), 0.0);
+        assertEquals(record.getSecond().getVector(), actualRecord.getSecond().getVector());
+        numRecords++;
+      }
+      assertFalse(actualRecords.hasNext());
+      // the largest of the memberships to the 5 clusters is above the threshold
+      assertTrue(numRecords >= NUM_VECTORS);
+    }
+  }
+}
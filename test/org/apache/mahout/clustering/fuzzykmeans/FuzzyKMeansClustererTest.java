@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering.fuzzykmeans;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.clustering.Cluster;
+import org.apache.mahout.clustering.classify.ClusterClassifier;
+import org.apache.mahout.clustering.iterator.FuzzyKMeansClusteringPolicy;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class FuzzyKMeansClustererTest {
+
+  private static final double EPSILON = 1.0e-12;
+
+  /** fuzziness from nearly crisp, where the old sums overflow, to very fuzzy */
+  private static final double[] FUZZINESS = {1.05, 1.5, 2.0, 3.0, 10.0};
+
+  private static List<Double> randomDistances(Random rng, int k) {
+    List<Double> distances = Lists.newArrayList();
+    for (int i = 0; i < k; i++) {
+      // some points on a cluster, and distances of several orders of magnitude
+      distances.add(rng.nextInt(10) == 0 ? 0.0 : Math.pow(10, 3 * rng.nextDouble()));
+    }
+    return distances;
+  }
+
+  @Test
+  public void testMembershipsMatchTheProbabilityWeights() {
+    Random rng = new Random(13L);
+    for (double m : FUZZINESS) {
+      FuzzyKMeansClusterer clusterer = new FuzzyKMeansClusterer();
+      clusterer.setM(m);
+      for (int n = 0; n < 200; n++) {
+        List<Double> distances = randomDistances(rng, 1 + rng.nextInt(20));
+        double[] memberships = new double[distances.size()];
+        for (int i = 0; i < memberships.length; i++) {
+          memberships[i] = distances.get(i);
+        }
+        FuzzyKMeansClusterer.computeMemberships(memberships, m);
+        double sum = 0.0;
+        for (int i = 0; i < memberships.length; i++) {
+          assertEquals(clusterer.computeProbWeight(distances.get(i), distances), memberships[i], EPSILON);
+          sum += memberships[i];
+        }
+        assertEquals(1.0, sum, EPSILON);
+      }
+    }
+  }
+
+  @Test
+  public void testPolicyMatchesTheProbabilityWeights() {
+    Random rng = new Random(19L);
+    List<Cluster> models = Lists.newArrayList();
+    for (int i = 0; i < 12; i++) {
+      Vector center = new DenseVector(4);
+      for (int j = 0; j < center.size(); j++) {
+        center.set(j, 10 * rng.nextGaussian());
+      }
+      models.add(new SoftCluster(center, i, new EuclideanDistanceMeasure()));
+    }
+    for (double m : FUZZINESS) {
+      FuzzyKMeansClusterer clusterer = new FuzzyKMeansClusterer();
+      clusterer.setM(m);
+      ClusterClassifier classifier = new ClusterClassifier(models, new FuzzyKMeansClusteringPolicy(m, 0.001));
+      for (int n = 0; n < 100; n++) {
+        // the centers themselves are at a zero distance
+        Vector point = n < models.size() ? models.get(n).getCenter().clone() : new DenseVector(4);
+        if (n >= models.size()) {
+          for (int j = 0; j < point.size(); j++) {
+            point.set(j, 10 * rng.nextGaussian());
+          }
+        }
+        List<Double> distances = Lists.newArrayList();
+        for (Cluster model : models) {
+          distances.add(((SoftCluster) model).distance(point));
+        }
+        Vector pi = classifier.classify(point);
+        for (int i = 0; i < models.size(); i++) {
+          assertEquals(clusterer.computeProbWeight(distances.get(i), distances), pi.get(i), EPSILON);
+        }
+      }
+    }
+  }
+}
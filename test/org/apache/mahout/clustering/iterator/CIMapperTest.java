@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering.iterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.mahout.clustering.Cluster;
+import org.apache.mahout.clustering.ClusterObservations;
+import org.apache.mahout.clustering.classify.ClusterClassifier;
+import org.apache.mahout.clustering.kmeans.Kluster;
+import org.apache.mahout.common.DummyRecordWriter;
+import org.apache.mahout.common.ListRecordReader;
+import org.apache.mahout.common.Pair;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class CIMapperTest {
+
+  private static final int NUM_CLUSTERS = 4;
+  private static final String COUNTER_GROUP = "K-Means Bounds";
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path dir;
+  private FileSplit split;
+  private List<Vector> data;
+  private List<Pair<WritableComparable<?>,VectorWritable>> records;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf);
+    File tmp = Files.createTempDir();
+    dir = new Path(tmp.getAbsolutePath());
+
+    Random rng = new Random(23L);
+    data = Lists.newArrayList();
+    records = Lists.newArrayList();
+    Path input = new Path(dir, "input");
+    SequenceFile.Writer writer = new SequenceFile.Writer(fs, conf, input, IntWritable.class, VectorWritable.class);
+    try {
+      for (int i = 0; i < 3000; i++) {
+        int blob = rng.nextInt(NUM_CLUSTERS);
+        Vector vector = new DenseVector(3);
+        for (int j = 0; j < vector.size(); j++) {
+          vector.set(j, blob * 3 + rng.nextGaussian());
+        }
+        data.add(vector);
+        records.add(new Pair<WritableComparable<?>,VectorWritable>(new IntWritable(i), new VectorWritable(vector)));
+        writer.append(new IntWritable(i), new VectorWritable(vector));
+      }
+    } finally {
+      writer.close();
+    }
+    split = new FileSplit(input, 0, fs.getFileStatus(input).getLen(), null);
+
+    // the prior of the first iteration, and the clusters it computes
+    prior().writeToSeqFiles(new Path(dir, "clusters-0"));
+    ClusterIterator.iterate(data, prior(), 1).writeToSeqFiles(new Path(dir, "clusters-1"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.delete(dir, true);
+  }
+
+  private ClusterClassifier prior() {
+    List<Cluster> models = Lists.newArrayList();
+    for (int i = 0; i < NUM_CLUSTERS; i++) {
+      models.add(new Kluster(data.get(i * 7).clone(), i, new EuclideanDistanceMeasure()));
+    }
+    return new ClusterClassifier(models, new KMeansClusteringPolicy(0.001));
+  }
+
+  /**
+   * Runs a mapper over the split and commits its task into the output
+   */
+  private Mapper<WritableComparable<?>,VectorWritable,IntWritable,ClusterObservations>.Context map(String prior,
+      String previousPrior, boolean keepBounds, String output,
+      DummyRecordWriter<IntWritable,ClusterObservations> writer) throws IOException, InterruptedException {
+    Configuration taskConf = new Configuration(conf);
+    taskConf.set(ClusterIterator.PRIOR_PATH_KEY, new Path(dir, prior).toString());
+    taskConf.set(ClusterIterator.PREVIOUS_PRIOR_PATH_KEY,
+        previousPrior == null ? "" : new Path(dir, previousPrior).toString());
+    taskConf.setBoolean(ClusterIterator.KEEP_BOUNDS_KEY, keepBounds);
+    TaskAttemptID attemptId = new TaskAttemptID("test", 1, true, 0, 0);
+    TaskAttemptContext taskContext = new TaskAttemptContext(taskConf, attemptId);
+    FileOutputCommitter committer = new FileOutputCommitter(new Path(dir, output), taskContext);
+    CIMapper mapper = new CIMapper();
+    Mapper<WritableComparable<?>,VectorWritable,IntWritable,ClusterObservations>.Context context =
+        DummyRecordWriter.build(mapper, taskConf, attemptId,
+            new ListRecordReader<WritableComparable<?>,VectorWritable>(records), writer, committer, split);
+    mapper.run(context);
+    committer.commitTask(taskContext);
+    return context;
+  }
+
+  private Path boundsFile(String output) throws IOException {
+    FileStatus[] files = fs.listStatus(new Path(new Path(dir, output), ClusterIterator.BOUNDS_DIR));
+    assertEquals(1, files.length);
+    return files[0].getPath();
+  }
+
+  private static byte[] bytes(Writable writable) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    writable.write(out);
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  private static void assertSameObservations(DummyRecordWriter<IntWritable,ClusterObservations> expected,
+      DummyRecordWriter<IntWritable,ClusterObservations> actual) throws IOException {
+    assertEquals(expected.getRecords().size(), actual.getRecords().size());
+    for (int i = 0; i < expected.getRecords().size(); i++) {
+      assertEquals(expected.getRecords().get(i).getFirst(), actual.getRecords().get(i).getFirst());
+      assertArrayEquals(bytes(expected.getRecords().get(i).getSecond()),
+          bytes(actual.getRecords().get(i).getSecond()));
+    }
+  }
+
+  private static long counter(Mapper<?,?,?,?>.Context context, String name) {
+    return context.getCounter(COUNTER_GROUP, name).getValue();
+  }
+
+  @Test
+  public void testBoundsOfThePreviousIterationAreUsed() throws Exception {
+    // the first iteration commits the bounds of the split with its output
+    map("clusters-0", null, true, "clusters-1", new DummyRecordWriter<IntWritable,ClusterObservations>(conf));
+    long length = fs.getFileStatus(boundsFile("clusters-1")).getLen();
+    assertTrue(length > data.size() * KMeansBounds.PointBounds.BYTES);
+
+    DummyRecordWriter<IntWritable,ClusterObservations> expected =
+        new DummyRecordWriter<IntWritable,ClusterObservations>(conf);
+    Mapper<?,?,?,?>.Context scratch = map("clusters-1", null, false, "scratch", expected);
+    DummyRecordWriter<IntWritable,ClusterObservations> actual =
+        new DummyRecordWriter<IntWritable,ClusterObservations>(conf);
+    Mapper<?,?,?,?>.Context bounded = map("clusters-1", "clusters-0", true, "clusters-2", actual);
+
+    assertSameObservations(expected, actual);
+    assertEquals(0, counter(bounded, "Mismatched bounds files"));
+    assertTrue(counter(bounded, "Distances") < counter(scratch, "Distances"));
+    assertEquals(length, fs.getFileStatus(boundsFile("clusters-2")).getLen());
+  }
+
+  @Test
+  public void testTruncatedBoundsAreNotUsed() throws Exception {
+    map("clusters-0", null, true, "clusters-1", new DummyRecordWriter<IntWritable,ClusterObservations>(conf));
+    // drops the bounds of the last point, the count at the end no longer matches the length
+    Path file = boundsFile("clusters-1");
+    byte[] content = new byte[(int) fs.getFileStatus(file).getLen()];
+    FSDataInputStream in = fs.open(file);
+    try {
+      in.readFully(content);
+    } finally {
+      in.close();
+    }
+    FSDataOutputStream out = fs.create(file, true);
+    try {
+      out.write(content, 0, content.length - 8 - KMeansBounds.PointBounds.BYTES);
+      out.write(content, content.length - 8, 8);
+    } finally {
+      out.close();
+    }
+
+    DummyRecordWriter<IntWritable,ClusterObservations> expected =
+        new DummyRecordWriter<IntWritable,ClusterObservations>(conf);
+    map("clusters-1", null, false, "scratch", expected);
+    DummyRecordWriter<IntWritable,ClusterObservations> actual =
+        new DummyRecordWriter<IntWritable,ClusterObservations>(conf);
+    Mapper<?,?,?,?>.Context bounded = map("clusters-1", "clusters-0", true, "clusters-2", actual);
+
+    assertSameObservations(expected, actual);
+    assertEquals(1, counter(bounded, "Mismatched bounds files"));
+  }
+}
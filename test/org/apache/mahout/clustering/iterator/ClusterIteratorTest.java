@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering.iterator;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.mahout.clustering.Cluster;
+import org.apache.mahout.clustering.classify.ClusterClassifier;
+import org.apache.mahout.clustering.fuzzykmeans.SoftCluster;
+import org.apache.mahout.clustering.kmeans.Kluster;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class ClusterIteratorTest {
+
+  private static final int NUM_CLUSTERS = 4;
+
+  private List<Vector> data;
+
+  @Before
+  public void setUp() {
+    Random rng = new Random(17L);
+    data = Lists.newArrayList();
+    // more than two chunks, the last one partial
+    for (int i = 0; i < 5000; i++) {
+      int blob = rng.nextInt(NUM_CLUSTERS);
+      Vector vector = new DenseVector(3);
+      for (int j = 0; j < vector.size(); j++) {
+        vector.set(j, blob * 2 + rng.nextGaussian());
+      }
+      data.add(vector);
+    }
+  }
+
+  private ClusterClassifier prior(ClusteringPolicy policy) {
+    List<Cluster> models = Lists.newArrayList();
+    for (int i = 0; i < NUM_CLUSTERS; i++) {
+      Vector center = data.get(i * 7).clone();
+      if (policy instanceof FuzzyKMeansClusteringPolicy) {
+        models.add(new SoftCluster(center, i, new EuclideanDistanceMeasure()));
+      } else {
+        models.add(new Kluster(center, i, new EuclideanDistanceMeasure()));
+      }
+    }
+    return new ClusterClassifier(models, policy);
+  }
+
+  static void assertSameCenters(ClusterClassifier expected, ClusterClassifier actual) {
+    assertEquals(expected.getModels().size(), actual.getModels().size());
+    for (int i = 0; i < expected.getModels().size(); i++) {
+      assertEquals(expected.getModels().get(i).getCenter(), actual.getModels().get(i).getCenter());
+      assertEquals(expected.getModels().get(i).getNumObservations(), actual.getModels().get(i).getNumObservations());
+    }
+  }
+
+  @Test
+  public void testIterationsDoNotDependOnThreads() throws Exception {
+    ClusteringPolicy[] policies = {new KMeansClusteringPolicy(0.001), new FuzzyKMeansClusteringPolicy(2.0, 0.001)};
+    for (ClusteringPolicy policy : policies) {
+      ClusterClassifier expected = ClusterIterator.iterate(data, prior(policy), 5);
+      assertSameCenters(expected, ClusterIterator.iterate(data, prior(policy), 5, 1));
+      assertSameCenters(expected, ClusterIterator.iterate(data, prior(policy), 5, 3));
+    }
+  }
+
+  @Test
+  public void testBoundsDoNotChangeTheCenters() throws Exception {
+    // a subclass of the k-means policy is not bounded
+    ClusterClassifier expected = ClusterIterator.iterate(data, prior(new KMeansClusteringPolicy(0.001) {}), 5, 2);
+    assertSameCenters(expected, ClusterIterator.iterate(data, prior(new KMeansClusteringPolicy(0.001)), 5, 2));
+  }
+
+  @Test
+  public void testCappedBoundsDoNotChangeTheCenters() throws Exception {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(Files.createTempDir().getAbsolutePath());
+    try {
+      Path input = new Path(dir, "input");
+      SequenceFile.Writer writer = new SequenceFile.Writer(fs, conf, input, IntWritable.class, VectorWritable.class);
+      try {
+        for (int i = 0; i < data.size(); i++) {
+          writer.append(new IntWritable(i), new VectorWritable(data.get(i)));
+        }
+      } finally {
+        writer.close();
+      }
+      Path priorPath = new Path(dir, "prior");
+      prior(new KMeansClusteringPolicy(0.001)).writeToSeqFiles(priorPath);
+
+      ClusterClassifier expected = iterateSeq(conf, fs, input, priorPath, new Path(dir, "all"), Long.MAX_VALUE);
+      // no bounds, and the bounds of the first chunk only
+      for (long maxPoints : new long[] {0, ClusterIterator.CHUNK_SIZE}) {
+        assertSameCenters(expected, iterateSeq(conf, fs, input, priorPath, new Path(dir, "capped" + maxPoints),
+            maxPoints));
+      }
+    } finally {
+      fs.delete(dir, true);
+    }
+  }
+
+  private static ClusterClassifier iterateSeq(Configuration conf, FileSystem fs, Path input, Path priorPath,
+      Path output, long maxPoints) throws IOException {
+    Configuration iterationConf = new Configuration(conf);
+    iterationConf.setLong(ClusterIterator.MAX_BOUNDED_POINTS_KEY, maxPoints);
+    ClusterIterator.iterateSeq(iterationConf, input, priorPath, output, 5);
+    FileStatus[] clusters = fs.globStatus(new Path(output, Cluster.CLUSTERS_DIR + '*'
+        + Cluster.FINAL_ITERATION_SUFFIX));
+    assertEquals(1, clusters.length);
+    ClusterClassifier classifier = new ClusterClassifier();
+    classifier.readFromSeqFiles(conf, clusters[0].getPath());
+    return classifier;
+  }
+}
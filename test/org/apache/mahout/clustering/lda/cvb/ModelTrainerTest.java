@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering.lda.cvb;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.Maps;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.MatrixSlice;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.apache.mahout.math.Vector;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public final class ModelTrainerTest {
+
+  private static final int NUM_TOPICS = 5;
+  private static final int NUM_TERMS = 400;
+  private static final int NUM_DOCS = 300;
+  private static final double ETA = 0.1;
+  private static final double ALPHA = 0.1;
+  private static final long MODEL_SEED = 5L;
+
+  private Matrix corpus;
+
+  @Before
+  public void setUp() {
+    Random rng = new Random(13L);
+    corpus = new SparseRowMatrix(NUM_DOCS, NUM_TERMS, true);
+    for (int doc = 0; doc < NUM_DOCS; doc++) {
+      for (int i = 0; i < 30; i++) {
+        int term = rng.nextInt(NUM_TERMS);
+        corpus.set(doc, term, corpus.get(doc, term) + 1 + rng.nextInt(3));
+      }
+    }
+  }
+
+  private static Matrix docTopics() {
+    return new DenseMatrix(NUM_DOCS, NUM_TOPICS).assign(1.0 / NUM_TOPICS);
+  }
+
+  private static TopicModel initialModel(int numUpdateThreads) {
+    return new TopicModel(NUM_TOPICS, NUM_TERMS, ETA, ALPHA, new Random(MODEL_SEED), null, numUpdateThreads, 1);
+  }
+
+  /**
+   * Trains the corpus once from the same initial model
+   * @return the trained counts
+   */
+  private TopicModel train(int numTrainThreads, int numUpdateThreads) {
+    TopicModel readModel = initialModel(1);
+    TopicModel writeModel = new TopicModel(NUM_TOPICS, NUM_TERMS, ETA, ALPHA, null, numUpdateThreads, 1);
+    assertEquals(numUpdateThreads == 0, writeModel.isSharded());
+    ModelTrainer trainer = new ModelTrainer(readModel, writeModel, numTrainThreads, NUM_TOPICS, NUM_TERMS);
+    trainer.train(corpus, docTopics(), 3);
+    return trainer.getReadModel();
+  }
+
+  private static void assertSameCounts(TopicModel expected, TopicModel actual) {
+    Iterator<MatrixSlice> actualRows = actual.iterator();
+    for (MatrixSlice expectedRow : expected) {
+      Vector actualRow = actualRows.next().vector();
+      assertEquals(0.0, expectedRow.vector().minus(actualRow).norm(1), 1.0e-9 * expectedRow.vector().norm(1));
+    }
+    assertFalse(actualRows.hasNext());
+    assertEquals(0.0, expected.topicSums().minus(actual.topicSums()).norm(1),
+        1.0e-9 * expected.topicSums().norm(1));
+  }
+
+  @Test
+  public void testShardedMatchesUpdateThreads() {
+    // the read model does not change during an iteration, so all the engines add the same counts, in any order
+    TopicModel expected = train(1, 1);
+    assertSameCounts(expected, train(1, 0));
+    assertSameCounts(expected, train(4, 0));
+    assertSameCounts(expected, train(4, 2));
+  }
+
+  @Test
+  public void testShardedIsDeterministic() {
+    TopicModel expected = train(3, 0);
+    for (int run = 0; run < 3; run++) {
+      assertSameCounts(expected, train(3, 0));
+    }
+  }
+
+  /**
+   * The threads of a read-write sharded trainer wait for chunks, batchTrain used to wait for them forever
+   */
+  @Test(timeout = 60000)
+  public void testReadWriteShardedTrainerTerminates() {
+    ModelTrainer trainer = new ModelTrainer(initialModel(0), 4, NUM_TOPICS, NUM_TERMS);
+    trainer.train(corpus, docTopics(), 2);
+  }
+
+  /**
+   * As with the update threads, a batch is in the read-write model when batchTrain returns
+   */
+  @Test(timeout = 60000)
+  public void testShardedBatchTrainIsSynchronous() {
+    TopicModel model = initialModel(0);
+    ModelTrainer trainer = new ModelTrainer(model, 3, NUM_TOPICS, NUM_TERMS);
+    trainer.start();
+    Matrix docTopics = docTopics();
+    for (int start = 0; start < 100; start += 10) {
+      double sum = model.topicSums().norm(1);
+      Map<Vector, Vector> batch = Maps.newHashMap();
+      double batchWeight = 0;
+      for (int doc = start; doc < start + 10; doc++) {
+        batch.put(corpus.viewRow(doc), docTopics.viewRow(doc));
+        batchWeight += corpus.viewRow(doc).norm(1);
+      }
+      trainer.batchTrain(batch, true, 2);
+      // every document adds its own weight to the counts
+      assertEquals(sum + batchWeight, model.topicSums().norm(1), 1.0e-6 * sum);
+    }
+    trainer.stop();
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering.lda.cvb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class TopicModelFileTest {
+
+  private static final int NUM_TOPICS = 7;
+  private static final int NUM_TERMS = 301;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path dir;
+  private Path modelPath;
+  private Vector[] rows;
+
+  @Before
+  public void setUp() throws Exception {
+    File tmp = Files.createTempDir();
+    tmp.deleteOnExit();
+    conf = new Configuration();
+    dir = new Path(tmp.getAbsolutePath());
+    fs = dir.getFileSystem(conf);
+
+    Random rng = new Random(3L);
+    rows = new Vector[NUM_TOPICS];
+    List<Integer> topics = Lists.newArrayList();
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      rows[topic] = new DenseVector(NUM_TERMS);
+      for (int term = 0; term < NUM_TERMS; term++) {
+        rows[topic].setQuick(term, rng.nextDouble() * 100);
+      }
+      topics.add(topic);
+    }
+    // the iterations write the topics in any order
+    Collections.shuffle(topics, rng);
+    modelPath = new Path(dir, "model-3");
+    SequenceFile.Writer writer = new SequenceFile.Writer(fs, conf, new Path(modelPath, "part-r-00000"),
+        IntWritable.class, VectorWritable.class);
+    try {
+      for (int topic : topics) {
+        writer.append(new IntWritable(topic), new VectorWritable(rows[topic]));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private TopicModelFile write(boolean singlePrecision) throws IOException {
+    Path output = CVB0Driver.mappedModelPath(modelPath, singlePrecision);
+    TopicModelFile.write(conf, new Path[] {new Path(modelPath, "part-r-00000")}, output, NUM_TOPICS, NUM_TERMS,
+        singlePrecision);
+    assertTrue(TopicModelFile.isComplete(conf, output, NUM_TOPICS, NUM_TERMS, singlePrecision));
+    assertFalse(fs.exists(new Path(dir, '_' + output.getName() + ".tmp")));
+    return TopicModelFile.map(new File(output.toUri().getPath()));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    TopicModelFile model = write(false);
+    assertFalse(model.isSinglePrecision());
+    assertEquals(NUM_TOPICS, model.getNumTopics());
+    assertEquals(NUM_TERMS, model.getNumTerms());
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      assertEquals(rows[topic].norm(1), model.topicSums().get(topic), 0.0);
+      for (int term = 0; term < NUM_TERMS; term++) {
+        assertEquals(rows[topic].get(term), model.get(topic, term), 0.0);
+      }
+      assertEquals(rows[topic], model.row(topic));
+    }
+  }
+
+  @Test
+  public void testSinglePrecisionRoundTrip() throws Exception {
+    TopicModelFile model = write(true);
+    assertTrue(model.isSinglePrecision());
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      assertEquals(rows[topic].norm(1), model.topicSums().get(topic), 0.0);
+      for (int term = 0; term < NUM_TERMS; term++) {
+        assertEquals((float) rows[topic].get(term), model.get(topic, term), 0.0);
+      }
+    }
+  }
+
+  @Test
+  public void testTruncatedFileIsRejected() throws Exception {
+    write(false);
+    Path output = CVB0Driver.mappedModelPath(modelPath, false);
+    File file = new File(output.toUri().getPath());
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(file.length() - 8);
+    } finally {
+      raf.close();
+    }
+    assertFalse(TopicModelFile.isComplete(conf, output, NUM_TOPICS, NUM_TERMS, false));
+    try {
+      TopicModelFile.map(file);
+      fail("a truncated file must not be mapped");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMissingTopicLeavesNoFile() throws Exception {
+    Path output = CVB0Driver.mappedModelPath(modelPath, false);
+    TopicModelFile.Writer writer = new TopicModelFile.Writer(conf, output, NUM_TOPICS, NUM_TERMS, false);
+    for (int topic = 1; topic < NUM_TOPICS; topic++) {
+      writer.write(topic, rows[topic]);
+    }
+    try {
+      writer.close();
+      fail("a model file with a missing topic must not be written");
+    } catch (IOException e) {
+      // expected
+    }
+    assertFalse(fs.exists(output));
+    assertFalse(fs.exists(new Path(dir, '_' + output.getName() + ".tmp")));
+  }
+}
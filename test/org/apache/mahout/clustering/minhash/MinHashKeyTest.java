@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.clustering.minhash;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class MinHashKeyTest {
+
+  private static byte[] bytes(MinHashKey key) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    key.write(out);
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  private static MinHashKey randomKey(Random rng) {
+    int[] values = new int[1 + rng.nextInt(4)];
+    for (int i = 0; i < values.length; i++) {
+      // few distinct values, so that the keys often share a prefix, and negative ones
+      values[i] = rng.nextBoolean() ? rng.nextInt(3) - 1 : rng.nextInt();
+    }
+    return new MinHashKey(values);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Random rng = new Random(5L);
+    // a key reused for shorter groups keeps its larger array
+    MinHashKey read = new MinHashKey(1, 2, 3, 4, 5, 6);
+    for (int i = 0; i < 1000; i++) {
+      MinHashKey key = randomKey(rng);
+      DataInputBuffer in = new DataInputBuffer();
+      byte[] data = bytes(key);
+      in.reset(data, data.length);
+      read.readFields(in);
+      assertEquals(key, read);
+      assertEquals(key.hashCode(), read.hashCode());
+      assertEquals(key.toString(), read.toString());
+    }
+  }
+
+  @Test
+  public void testSetWrapsAroundTheSignature() {
+    MinHashKey key = new MinHashKey();
+    key.set(new int[] {7, -8, 9, 10}, 3, 3);
+    assertEquals(new MinHashKey(10, 7, -8), key);
+    assertEquals("10-7--8", key.toString());
+  }
+
+  @Test
+  public void testRawComparatorMatchesCompareTo() throws Exception {
+    Random rng = new Random(7L);
+    // the comparator is registered when the class is initialized
+    randomKey(rng);
+    WritableComparator comparator = WritableComparator.get(MinHashKey.class);
+    assertTrue(comparator instanceof MinHashKey.Comparator);
+    for (int i = 0; i < 10000; i++) {
+      MinHashKey key1 = randomKey(rng);
+      MinHashKey key2 = randomKey(rng);
+      // the keys are compared at an offset within larger buffers
+      byte[] data1 = bytes(key1);
+      byte[] data2 = bytes(key2);
+      byte[] buffer1 = new byte[data1.length + 3];
+      byte[] buffer2 = new byte[data2.length + 5];
+      System.arraycopy(data1, 0, buffer1, 3, data1.length);
+      System.arraycopy(data2, 0, buffer2, 5, data2.length);
+      int expected = Integer.signum(key1.compareTo(key2));
+      assertEquals(expected, Integer.signum(comparator.compare(buffer1, 3, data1.length, buffer2, 5, data2.length)));
+      assertEquals(-expected, Integer.signum(key2.compareTo(key1)));
+      assertEquals(expected == 0, key1.equals(key2));
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.common;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+
+/**
+ * Keeps copies of the records written by a task, in the order they are written, and builds the contexts that run
+ * a mapper in memory
+ */
+public final class DummyRecordWriter<K extends Writable,V extends Writable> extends RecordWriter<K,V> {
+
+  private final Configuration conf;
+  private final List<Pair<K,V>> records = Lists.newArrayList();
+
+  public DummyRecordWriter(Configuration conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public void write(K key, V value) {
+    // the tasks reuse their writables
+    records.add(new Pair<K,V>(WritableUtils.clone(key, conf), WritableUtils.clone(value, conf)));
+  }
+
+  @Override
+  public void close(TaskAttemptContext context) {
+  }
+
+  public List<Pair<K,V>> getRecords() {
+    return records;
+  }
+
+  public static <K1,V1,K2 extends Writable,V2 extends Writable> Mapper<K1,V1,K2,V2>.Context build(
+      Mapper<K1,V1,K2,V2> mapper, Configuration conf, RecordReader<K1,V1> reader, DummyRecordWriter<K2,V2> writer,
+      InputSplit split) throws IOException, InterruptedException {
+    return build(mapper, conf, new TaskAttemptID(), reader, writer, null, split);
+  }
+
+  /**
+   * Builds a context whose side files go through the committer, for the tasks that write under their work path
+   */
+  public static <K1,V1,K2 extends Writable,V2 extends Writable> Mapper<K1,V1,K2,V2>.Context build(
+      Mapper<K1,V1,K2,V2> mapper, Configuration conf, TaskAttemptID attemptId, RecordReader<K1,V1> reader,
+      DummyRecordWriter<K2,V2> writer, OutputCommitter committer, InputSplit split)
+    throws IOException, InterruptedException {
+    return mapper.new Context(conf, attemptId, reader, writer, committer, new DummyStatusReporter(), split);
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.common;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Hands a list of records to a task
+ */
+public final class ListRecordReader<K,V> extends RecordReader<K,V> {
+
+  private final List<Pair<K,V>> records;
+  private Iterator<Pair<K,V>> iterator;
+  private Pair<K,V> current;
+  private int numRead;
+
+  public ListRecordReader(List<Pair<K,V>> records) {
+    this.records = records;
+    iterator = records.iterator();
+  }
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context) {
+  }
+
+  @Override
+  public boolean nextKeyValue() {
+    if (!iterator.hasNext()) {
+      current = null;
+      return false;
+    }
+    current = iterator.next();
+    numRead++;
+    return true;
+  }
+
+  @Override
+  public K getCurrentKey() {
+    return current.getFirst();
+  }
+
+  @Override
+  public V getCurrentValue() {
+    return current.getSecond();
+  }
+
+  @Override
+  public float getProgress() {
+    return records.isEmpty() ? 1.0f : (float) numRead / records.size();
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.common.distance;
+
+import java.util.Random;
+
+import org.apache.mahout.math.CardinalityException;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class PreparedCentroidTest {
+
+  private static final int CARDINALITY = 30;
+
+  private static DistanceMeasure[] measures() {
+    TanimotoDistanceMeasure weighted = new TanimotoDistanceMeasure();
+    Vector weights = new DenseVector(CARDINALITY);
+    weights.assign(2.0);
+    weighted.setWeights(weights);
+    return new DistanceMeasure[] {new EuclideanDistanceMeasure(), new SquaredEuclideanDistanceMeasure(),
+        new CosineDistanceMeasure(), new TanimotoDistanceMeasure(), weighted, new ManhattanDistanceMeasure(),
+        new ChebyshevDistanceMeasure(), new MinkowskiDistanceMeasure()};
+  }
+
+  /**
+   * @return a dense vector, a random access sparse vector holding many or few elements, and a sequential access
+   *         sparse vector holding few elements
+   */
+  private static Vector[] vectors(Random rng) {
+    Vector dense = new DenseVector(CARDINALITY);
+    Vector full = new RandomAccessSparseVector(CARDINALITY);
+    Vector sparse = new RandomAccessSparseVector(CARDINALITY);
+    for (int i = 0; i < CARDINALITY; i++) {
+      dense.set(i, rng.nextGaussian());
+      full.set(i, rng.nextGaussian());
+      if (rng.nextInt(5) == 0) {
+        sparse.set(i, rng.nextGaussian());
+      }
+    }
+    return new Vector[] {dense, full, sparse, new SequentialAccessSparseVector(sparse)};
+  }
+
+  @Test
+  public void testDistancesMatchTheMeasures() {
+    Random rng = new Random(3L);
+    for (int n = 0; n < 20; n++) {
+      for (Vector centroid : vectors(rng)) {
+        for (DistanceMeasure measure : measures()) {
+          PreparedCentroid prepared = new PreparedCentroid(measure, centroid);
+          assertEquals(centroid.getLengthSquared(), prepared.getLengthSquared(), 1.0e-12 * CARDINALITY);
+          for (Vector v : vectors(rng)) {
+            double expected = measure.distance(centroid, v);
+            // the expansion of a sparse centroid and a sparse vector rounds relative to their lengths
+            double tolerance = 1.0e-12 * (1 + centroid.getLengthSquared() + v.getLengthSquared());
+            assertEquals(measure.getClass().getSimpleName(), expected, prepared.distance(v), tolerance);
+            assertEquals(centroid.dot(v), prepared.dot(v), tolerance);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCloseVectorsAreExact() {
+    Random rng = new Random(4L);
+    Vector[] vectors = vectors(rng);
+    // the centroids copied in an array, which every vector is subtracted from
+    for (Vector centroid : new Vector[] {vectors[0], vectors[1]}) {
+      PreparedCentroid prepared = new PreparedCentroid(new SquaredEuclideanDistanceMeasure(), centroid);
+      for (Vector v : new Vector[] {new DenseVector(centroid), new RandomAccessSparseVector(centroid),
+          new SequentialAccessSparseVector(centroid)}) {
+        v.set(0, v.get(0) + 1.0e-7);
+        assertEquals(1.0e-14, prepared.distance(v), 1.0e-20);
+      }
+    }
+  }
+
+  @Test(expected = CardinalityException.class)
+  public void testCardinalityMismatch() {
+    new PreparedCentroid(new EuclideanDistanceMeasure(), new DenseVector(3)).distance(new DenseVector(4));
+  }
+}